@@ -0,0 +1,53 @@
+package edu.wisc.cs.sdn.vnet.bench;
+
+import java.util.regex.Pattern;
+
+/**
+ * Runs the benchmarks of the packet library and the router data plane.
+ */
+public class BenchMain
+{
+	private static final long DEFAULT_WARMUP_MILLIS = 1000;
+	private static final long DEFAULT_MEASURE_MILLIS = 2000;
+
+	public static void main(String[] args) throws Exception
+	{
+		Pattern filter = null;
+		long warmupMillis = DEFAULT_WARMUP_MILLIS;
+		long measureMillis = DEFAULT_MEASURE_MILLIS;
+
+		// Parse arguments
+		for(int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-h"))
+			{
+				usage();
+				return;
+			}
+			else if (arg.equals("-f"))
+			{ filter = Pattern.compile(args[++i]); }
+			else if (arg.equals("-w"))
+			{ warmupMillis = Long.parseLong(args[++i]); }
+			else if (arg.equals("-m"))
+			{ measureMillis = Long.parseLong(args[++i]); }
+		}
+
+		Harness harness = new Harness(filter, warmupMillis, measureMillis);
+		harness.printHeader();
+		PacketBenchmarks.run(harness);
+		TableBenchmarks.run(harness);
+		RouterBenchmarks.run(harness);
+
+		// The MAC table's timeout thread would keep the JVM running
+		System.exit(0);
+	}
+
+	static void usage()
+	{
+		System.out.println("VNet benchmarks");
+		System.out.println("BenchMain [-f name_regex] [-w warmup_ms] [-m measure_ms] [-h]");
+		System.out.println(String.format("  defaults warmup_ms=%d measure_ms=%d",
+				DEFAULT_WARMUP_MILLIS, DEFAULT_MEASURE_MILLIS));
+	}
+}
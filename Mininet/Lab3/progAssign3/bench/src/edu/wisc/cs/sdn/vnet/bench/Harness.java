@@ -0,0 +1,134 @@
+package edu.wisc.cs.sdn.vnet.bench;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal microbenchmark harness. Each benchmark is an operation that is run
+ * repeatedly on the calling thread, first to warm up the JIT and then for a
+ * measured period. For every benchmark the harness reports the time per
+ * operation, the bytes allocated per operation, and the number of garbage
+ * collections during the measured period.
+ */
+public class Harness
+{
+	/** An operation to benchmark */
+	public interface Operation
+	{
+		/**
+		 * Run the operation once.
+		 * @return a result of the operation, which is kept so the operation
+		 *         cannot be optimized away
+		 */
+		public Object run();
+	}
+
+	/** Number of operations run between checks of the clock */
+	private static final int BATCH = 64;
+
+	/** Only benchmarks whose names match are run; null to run all */
+	private Pattern filter;
+
+	private long warmupNanos;
+	private long measureNanos;
+
+	/** Stream results are printed to, even if benchmarks replace System.out */
+	private PrintStream out;
+
+	private com.sun.management.ThreadMXBean threadBean;
+	private List<GarbageCollectorMXBean> gcBeans;
+
+	/** Result of the last operation run */
+	private Object sink;
+
+	/**
+	 * @param filter only benchmarks whose names contain a match are run;
+	 *        null to run all
+	 * @param warmupMillis time to run each benchmark before measuring
+	 * @param measureMillis time to measure each benchmark for
+	 */
+	public Harness(Pattern filter, long warmupMillis, long measureMillis)
+	{
+		this.filter = filter;
+		this.warmupNanos = warmupMillis * 1000000;
+		this.measureNanos = measureMillis * 1000000;
+		this.out = System.out;
+		this.threadBean = (com.sun.management.ThreadMXBean)
+				ManagementFactory.getThreadMXBean();
+		this.gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+	}
+
+	/**
+	 * @param name name of a benchmark
+	 * @return true if the benchmark is selected to run
+	 */
+	public boolean isSelected(String name)
+	{ return null == this.filter || this.filter.matcher(name).find(); }
+
+	/**
+	 * Print the header of the result table.
+	 */
+	public void printHeader()
+	{
+		this.out.println(String.format("%-44s %12s %12s %8s %12s",
+				"Benchmark", "ns/op", "B/op", "gc", "ops"));
+	}
+
+	/**
+	 * Run a benchmark and print its results, if it is selected.
+	 * @param name name of the benchmark
+	 * @param op operation to benchmark
+	 */
+	public void run(String name, Operation op)
+	{
+		if (!this.isSelected(name))
+		{ return; }
+
+		this.runFor(op, this.warmupNanos);
+
+		System.gc();
+		long threadId = Thread.currentThread().getId();
+		long startGcs = this.gcCount();
+		long startBytes = this.threadBean.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		long ops = this.runFor(op, this.measureNanos);
+		long elapsed = System.nanoTime() - start;
+		long bytes = this.threadBean.getThreadAllocatedBytes(threadId)
+				- startBytes;
+		long gcs = this.gcCount() - startGcs;
+
+		this.out.println(String.format("%-44s %12.1f %12.1f %8d %12d",
+				name, (double)elapsed / ops, (double)bytes / ops, gcs, ops));
+	}
+
+	private long runFor(Operation op, long nanos)
+	{
+		long ops = 0;
+		long start = System.nanoTime();
+		do
+		{
+			for (int i = 0; i < BATCH; i++)
+			{ this.sink = op.run(); }
+			ops += BATCH;
+		}
+		while (System.nanoTime() - start < nanos);
+		return ops;
+	}
+
+	private long gcCount()
+	{
+		long count = 0;
+		for (GarbageCollectorMXBean gcBean : this.gcBeans)
+		{ count += Math.max(0, gcBean.getCollectionCount()); }
+		return count;
+	}
+
+	/**
+	 * @return result of the last operation run
+	 */
+	public Object getSink()
+	{ return this.sink; }
+}
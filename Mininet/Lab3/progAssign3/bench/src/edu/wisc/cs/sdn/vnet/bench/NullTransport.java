@@ -0,0 +1,37 @@
+package edu.wisc.cs.sdn.vnet.bench;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import edu.wisc.cs.sdn.vnet.vns.VNSTransport;
+
+/**
+ * Transport that is never connected to a server and discards all commands
+ * written to it, counting them.
+ */
+public class NullTransport implements VNSTransport
+{
+	private long commandsWritten;
+
+	public boolean connect(InetAddress addr, short port)
+	{ return true; }
+
+	public ByteBuffer readCommand()
+	{ return null; }
+
+	public boolean writeCommands(List<byte[]> bufs)
+	{
+		this.commandsWritten += bufs.size();
+		return true;
+	}
+
+	public void close()
+	{ }
+
+	/**
+	 * @return number of commands written so far
+	 */
+	public long getCommandsWritten()
+	{ return this.commandsWritten; }
+}
@@ -0,0 +1,141 @@
+package edu.wisc.cs.sdn.vnet.bench;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.BasePacket;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.EthernetView;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.IPv4View;
+import net.floodlightcontroller.packet.RIPv2;
+import net.floodlightcontroller.packet.RIPv2Entry;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * Benchmarks for serializing and deserializing packets, with the object
+ * model and with views.
+ */
+public class PacketBenchmarks
+{
+	public static void run(Harness harness)
+	{
+		benchmark(harness, "tcp", tcpPacket());
+		benchmark(harness, "udp", udpPacket());
+		benchmark(harness, "arp", arpPacket());
+		benchmark(harness, "rip", ripPacket());
+
+		final byte[] frame = tcpPacket().serialize();
+		final EthernetView etherView = new EthernetView();
+		final IPv4View ipView = new IPv4View();
+		harness.run("packet.tcp.view", new Harness.Operation() {
+			public Object run()
+			{
+				etherView.wrap(frame, 0, frame.length);
+				ipView.wrap(etherView);
+				return ipView.isChecksumValid() ? ipView : null;
+			}
+		});
+	}
+
+	private static void benchmark(Harness harness, String name,
+			final Ethernet packet)
+	{
+		final byte[] frame = packet.serialize();
+		harness.run("packet." + name + ".serialize", new Harness.Operation() {
+			public Object run()
+			{
+				packet.resetChecksum();
+				return packet.serialize();
+			}
+		});
+		harness.run("packet." + name + ".deserialize", new Harness.Operation() {
+			public Object run()
+			{
+				BasePacket.setLazyDecoding(false);
+				return new Ethernet().deserialize(frame, 0, frame.length);
+			}
+		});
+		harness.run("packet." + name + ".deserialize.lazy",
+				new Harness.Operation() {
+			public Object run()
+			{
+				BasePacket.setLazyDecoding(true);
+				return new Ethernet().deserialize(frame, 0, frame.length);
+			}
+		});
+		BasePacket.setLazyDecoding(false);
+	}
+
+	static Ethernet ipPacket(byte protocol, BasePacket payload)
+	{
+		IPv4 ip = new IPv4();
+		ip.setTtl((byte)64);
+		ip.setProtocol(protocol);
+		ip.setSourceAddress("10.0.1.100");
+		ip.setDestinationAddress("10.0.2.100");
+		ip.setPayload(payload);
+
+		Ethernet ether = new Ethernet();
+		ether.setEtherType(Ethernet.TYPE_IPv4);
+		ether.setSourceMACAddress("00:00:00:00:01:64");
+		ether.setDestinationMACAddress("00:00:00:00:01:01");
+		ether.setPayload(ip);
+		return ether;
+	}
+
+	static Ethernet tcpPacket()
+	{
+		TCP tcp = new TCP();
+		tcp.setSourcePort((short)40000);
+		tcp.setDestinationPort((short)80);
+		tcp.setSequence(1);
+		tcp.setWindowSize((short)1024);
+		tcp.setPayload(new Data(new byte[512]));
+		return ipPacket(IPv4.PROTOCOL_TCP, tcp);
+	}
+
+	static Ethernet udpPacket()
+	{
+		UDP udp = new UDP();
+		udp.setSourcePort((short)40000);
+		udp.setDestinationPort((short)53);
+		udp.setPayload(new Data(new byte[64]));
+		return ipPacket(IPv4.PROTOCOL_UDP, udp);
+	}
+
+	static Ethernet arpPacket()
+	{
+		ARP arp = new ARP();
+		arp.setHardwareType(ARP.HW_TYPE_ETHERNET);
+		arp.setProtocolType(ARP.PROTO_TYPE_IP);
+		arp.setHardwareAddressLength((byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
+		arp.setProtocolAddressLength((byte)4);
+		arp.setOpCode(ARP.OP_REQUEST);
+		arp.setSenderHardwareAddress(Ethernet.toMACAddress("00:00:00:00:01:64"));
+		arp.setSenderProtocolAddress(IPv4.toIPv4Address("10.0.1.100"));
+		arp.setTargetHardwareAddress(new byte[6]);
+		arp.setTargetProtocolAddress(IPv4.toIPv4Address("10.0.1.1"));
+
+		Ethernet ether = new Ethernet();
+		ether.setEtherType(Ethernet.TYPE_ARP);
+		ether.setSourceMACAddress("00:00:00:00:01:64");
+		ether.setDestinationMACAddress("FF:FF:FF:FF:FF:FF");
+		ether.setPayload(arp);
+		return ether;
+	}
+
+	static Ethernet ripPacket()
+	{
+		RIPv2 rip = new RIPv2();
+		rip.setCommand(RIPv2.COMMAND_RESPONSE);
+		for (int i = 0; i < 25; i++)
+		{ rip.addEntry(new RIPv2Entry((10 << 24) | (i << 8), 0xffffff00, i % 16)); }
+
+		UDP udp = new UDP();
+		udp.setSourcePort(UDP.RIP_PORT);
+		udp.setDestinationPort(UDP.RIP_PORT);
+		udp.setPayload(rip);
+		return ipPacket(IPv4.PROTOCOL_UDP, udp);
+	}
+}
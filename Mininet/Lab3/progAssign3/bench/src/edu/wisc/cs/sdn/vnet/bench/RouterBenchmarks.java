@@ -0,0 +1,172 @@
+package edu.wisc.cs.sdn.vnet.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Random;
+
+import net.floodlightcontroller.packet.BasePacket;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.rt.RouteTable;
+import edu.wisc.cs.sdn.vnet.rt.Router;
+import edu.wisc.cs.sdn.vnet.rt.RouterSnapshot;
+import edu.wisc.cs.sdn.vnet.vns.VNSComm;
+
+/**
+ * End-to-end benchmarks for forwarding a TCP packet through a router whose
+ * packets are sent to a transport that discards them, and for loading a
+ * large route table from a text file and from a snapshot. Console output of
+ * the router is discarded while these benchmarks run.
+ */
+public class RouterBenchmarks
+{
+	/** Length of the header preceding the frame in a VNS_PACKET command */
+	private static final int COMMAND_HEADER_LENGTH = 4 + 4 + 16;
+
+	/** Number of routes loaded by the load benchmarks */
+	private static final int LOADED_ROUTES = 10000;
+
+	public static void run(Harness harness) throws IOException
+	{
+		if (!harness.isSelected("router."))
+		{ return; }
+
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(out) {
+			public void write(int b) { }
+			public void write(byte[] buf, int off, int len) { }
+		});
+		try
+		{
+			benchmark(harness);
+			benchmarkLoad(harness);
+		}
+		finally
+		{ System.setOut(out); }
+	}
+
+	private static void benchmark(Harness harness) throws IOException
+	{
+		final Router router = createRouter();
+		final Iface inIface = router.getInterface("eth0");
+
+		final byte[] frame = PacketBenchmarks.tcpPacket().serialize();
+		harness.run("router.handlePacket", new Harness.Operation() {
+			public Object run()
+			{
+				Ethernet etherPacket = new Ethernet();
+				etherPacket.deserialize(frame, 0, frame.length);
+				router.handlePacket(etherPacket, inIface);
+				return etherPacket;
+			}
+		});
+		harness.run("router.handlePacket.lazy", new Harness.Operation() {
+			public Object run()
+			{
+				BasePacket.setLazyDecoding(true);
+				Ethernet etherPacket = new Ethernet();
+				etherPacket.deserialize(frame, 0, frame.length);
+				router.handlePacket(etherPacket, inIface);
+				return etherPacket;
+			}
+		});
+		BasePacket.setLazyDecoding(false);
+
+		// The frame is forwarded in place, so restore it before every run
+		final byte[] command = new byte[COMMAND_HEADER_LENGTH + frame.length];
+		harness.run("router.handleFrame", new Harness.Operation() {
+			public Object run()
+			{
+				System.arraycopy(frame, 0, command, COMMAND_HEADER_LENGTH,
+						frame.length);
+				router.handleFrame(command, COMMAND_HEADER_LENGTH, frame.length,
+						inIface);
+				return command;
+			}
+		});
+	}
+
+	private static void benchmarkLoad(Harness harness) throws IOException
+	{
+		if (!harness.isSelected("router.load."))
+		{ return; }
+
+		final Router router = createRouter();
+		final File tableFile = File.createTempFile("rtable", ".txt");
+		tableFile.deleteOnExit();
+		Random random = new Random(LOADED_ROUTES);
+		FileWriter writer = new FileWriter(tableFile);
+		for (int i = 0; i < LOADED_ROUTES; i++)
+		{
+			int maskLength = 8 + random.nextInt(25);
+			int mask = (int)(0xffffffffL << (32 - maskLength));
+			writer.write(String.format("%s %s %s eth%d\n",
+					IPv4.fromIPv4Address((random.nextInt() | (1 << 24)) & mask),
+					IPv4.fromIPv4Address((10 << 24) | (2 << 8) | 2),
+					IPv4.fromIPv4Address(mask), i & 1));
+		}
+		writer.close();
+
+		final File snapshotFile = File.createTempFile("router", ".snap");
+		snapshotFile.deleteOnExit();
+		router.loadRouteTable(tableFile.getPath());
+		router.saveSnapshot(snapshotFile.getPath());
+
+		harness.run("router.load.text." + LOADED_ROUTES, new Harness.Operation() {
+			public Object run()
+			{
+				RouteTable routeTable = new RouteTable();
+				routeTable.load(tableFile.getPath(), router);
+				return routeTable;
+			}
+		});
+		harness.run("router.load.snapshot." + LOADED_ROUTES, new Harness.Operation() {
+			public Object run()
+			{
+				RouteTable routeTable = new RouteTable();
+				try
+				{
+					routeTable.insertAll(RouterSnapshot.read(
+							snapshotFile.getPath(), router).getRoutes());
+				}
+				catch (IOException e)
+				{ throw new IllegalStateException(e); }
+				return routeTable;
+			}
+		});
+	}
+
+	private static Router createRouter() throws IOException
+	{
+		Router router = new Router("r1", null);
+		new VNSComm(router, new NullTransport());
+
+		String[][] ifaces = {
+			{ "eth0", "10.0.1.1", "00:00:00:00:01:01" },
+			{ "eth1", "10.0.2.1", "00:00:00:00:02:01" } };
+		for (String[] config : ifaces)
+		{
+			Iface iface = router.addInterface(config[0]);
+			iface.setIpAddress(IPv4.toIPv4Address(config[1]));
+			iface.setSubnetMask(IPv4.toIPv4Address("255.255.255.0"));
+			iface.setMacAddress(MACAddress.valueOf(config[2]));
+			router.getRouteTable().insert(
+					iface.getIpAddress() & iface.getSubnetMask(), 0,
+					iface.getSubnetMask(), iface);
+		}
+
+		File arpFile = File.createTempFile("arp", ".txt");
+		arpFile.deleteOnExit();
+		FileWriter writer = new FileWriter(arpFile);
+		writer.write("10.0.1.100 00:00:00:00:01:64\n");
+		writer.write("10.0.2.100 00:00:00:00:02:64\n");
+		writer.close();
+		router.loadArpCache(arpFile.getPath());
+		return router;
+	}
+}
@@ -0,0 +1,113 @@
+package edu.wisc.cs.sdn.vnet.bench;
+
+import java.util.Random;
+
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.TimingWheel;
+import edu.wisc.cs.sdn.vnet.rt.ArpCache;
+import edu.wisc.cs.sdn.vnet.rt.LinearLpmEngine;
+import edu.wisc.cs.sdn.vnet.rt.RouteTable;
+import edu.wisc.cs.sdn.vnet.sw.MACTable;
+
+/**
+ * Benchmarks for the route table, ARP cache, and MAC learning table.
+ */
+public class TableBenchmarks
+{
+	/** Number of distinct keys each lookup benchmark cycles through; a power
+	 *  of two */
+	private static final int KEYS = 4096;
+
+	public static void run(Harness harness)
+	{
+		for (int size : new int[] { 10, 1000, 100000, 1000000 })
+		{
+			if (harness.isSelected("routeTable.lookup." + size))
+			{ routeTable(harness, "routeTable.lookup." + size, new RouteTable(), size); }
+		}
+		for (int size : new int[] { 10, 1000 })
+		{
+			if (harness.isSelected("routeTable.lookup.linear." + size))
+			{
+				routeTable(harness, "routeTable.lookup.linear." + size,
+						new RouteTable(new LinearLpmEngine()), size);
+			}
+		}
+		arpCache(harness);
+		macTable(harness);
+	}
+
+	private static void routeTable(Harness harness, String name,
+			final RouteTable routeTable, int size)
+	{
+		Random random = new Random(size);
+		Iface iface = new Iface("eth0");
+		routeTable.beginUpdate();
+		try
+		{
+			routeTable.insert(0, 1, 0, iface);
+			for (int i = 0; i < size; i++)
+			{
+				int maskLength = 8 + random.nextInt(25);
+				int mask = (int)(0xffffffffL << (32 - maskLength));
+				routeTable.insert(random.nextInt() & mask, 1, mask, iface);
+			}
+		}
+		finally
+		{ routeTable.endUpdate(); }
+
+		final int[] addresses = new int[KEYS];
+		for (int i = 0; i < KEYS; i++)
+		{ addresses[i] = random.nextInt(); }
+		harness.run(name, new Harness.Operation() {
+			int next = 0;
+			public Object run()
+			{ return routeTable.lookup(addresses[next++ & (KEYS - 1)]); }
+		});
+	}
+
+	private static void arpCache(Harness harness)
+	{
+		final ArpCache arpCache = new ArpCache();
+		final int[] addresses = new int[KEYS];
+		for (int i = 0; i < KEYS; i++)
+		{
+			addresses[i] = (10 << 24) | i;
+			arpCache.insert(MACAddress.valueOf(i), addresses[i]);
+		}
+		harness.run("arpCache.lookup", new Harness.Operation() {
+			int next = 0;
+			public Object run()
+			{ return arpCache.lookup(addresses[next++ & (KEYS - 1)]); }
+		});
+	}
+
+	private static void macTable(Harness harness)
+	{
+		if (!harness.isSelected("macTable"))
+		{ return; }
+
+		final MACTable macTable = new MACTable(new TimingWheel("bench-timer"));
+		final long[] macs = new long[KEYS];
+		for (int i = 0; i < KEYS; i++)
+		{
+			macs[i] = 0x020000000000L | i;
+			macTable.learn(macs[i], i & 3);
+		}
+		harness.run("macTable.learn", new Harness.Operation() {
+			int next = 0;
+			public Object run()
+			{
+				int i = next++ & (KEYS - 1);
+				return Boolean.valueOf(macTable.learn(macs[i], i & 3));
+			}
+		});
+		harness.run("macTable.lookup", new Harness.Operation() {
+			int next = 0;
+			public Object run()
+			{ return Integer.valueOf(macTable.lookupPort(macs[next++ & (KEYS - 1)])); }
+		});
+	}
+}
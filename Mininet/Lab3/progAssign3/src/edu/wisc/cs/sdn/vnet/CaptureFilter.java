@@ -0,0 +1,183 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.Arrays;
+
+/**
+ * Selects which frames are logged to a {@link DumpFile}. A filter is a
+ * comma-separated list of terms of the form <code>ether=TYPE</code>,
+ * <code>ip=PROTOCOL</code>, or <code>iface=NAME</code>, e.g.
+ * <code>ether=0x0806,ip=17,iface=eth0</code>. A frame matches if, for each
+ * kind of term that appears, it matches one of the terms of that kind. The
+ * filter only looks at the raw bytes of a frame, so frames that do not match
+ * cost very little.
+ */
+public class CaptureFilter
+{
+	private static final int ETHER_TYPE_OFFSET = 12;
+	private static final short TYPE_IPv4 = 0x0800;
+	private static final short TYPE_IPv6 = (short)0x86dd;
+	private static final short TYPE_VLAN = (short)0x8100;
+
+	/** Ethertypes that match; null if any does */
+	private short[] etherTypes;
+
+	/** IP protocols that match; null if any does */
+	private byte[] ipProtocols;
+
+	/** Names of interfaces that match; null if any does */
+	private String[] ifaceNames;
+
+	private CaptureFilter()
+	{
+		this.etherTypes = null;
+		this.ipProtocols = null;
+		this.ifaceNames = null;
+	}
+
+	/**
+	 * Parse a filter.
+	 * @param expr comma-separated list of terms
+	 * @return the filter; null if the expression is invalid
+	 */
+	public static CaptureFilter parse(String expr)
+	{
+		CaptureFilter filter = new CaptureFilter();
+		for (String term : expr.split(","))
+		{
+			String[] fields = term.trim().split("=", 2);
+			if (fields.length != 2)
+			{
+				System.err.println("Invalid capture filter term " + term);
+				return null;
+			}
+			String value = fields[1].trim();
+			try
+			{
+				if (fields[0].equals("ether"))
+				{
+					short type = Integer.decode(value).shortValue();
+					if (null == filter.etherTypes)
+					{ filter.etherTypes = new short[] { type }; }
+					else
+					{
+						filter.etherTypes = Arrays.copyOf(filter.etherTypes,
+								filter.etherTypes.length + 1);
+						filter.etherTypes[filter.etherTypes.length - 1] = type;
+					}
+				}
+				else if (fields[0].equals("ip"))
+				{
+					byte protocol = Integer.decode(value).byteValue();
+					if (null == filter.ipProtocols)
+					{ filter.ipProtocols = new byte[] { protocol }; }
+					else
+					{
+						filter.ipProtocols = Arrays.copyOf(filter.ipProtocols,
+								filter.ipProtocols.length + 1);
+						filter.ipProtocols[filter.ipProtocols.length - 1] =
+								protocol;
+					}
+				}
+				else if (fields[0].equals("iface"))
+				{
+					if (null == filter.ifaceNames)
+					{ filter.ifaceNames = new String[] { value }; }
+					else
+					{
+						filter.ifaceNames = Arrays.copyOf(filter.ifaceNames,
+								filter.ifaceNames.length + 1);
+						filter.ifaceNames[filter.ifaceNames.length - 1] = value;
+					}
+				}
+				else
+				{
+					System.err.println("Invalid capture filter term " + term);
+					return null;
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				System.err.println("Invalid capture filter term " + term);
+				return null;
+			}
+		}
+		return filter;
+	}
+
+	/**
+	 * Check whether a frame matches the filter.
+	 * @param buf buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param ifaceName name of the interface the frame was received or sent
+	 *        on; null if unknown
+	 * @return true if the frame matches
+	 */
+	public boolean matches(byte[] buf, int offset, int length,
+			String ifaceName)
+	{
+		if (this.ifaceNames != null)
+		{
+			boolean found = false;
+			for (String name : this.ifaceNames)
+			{
+				if (name.equals(ifaceName))
+				{ found = true; break; }
+			}
+			if (!found)
+			{ return false; }
+		}
+
+		if (null == this.etherTypes && null == this.ipProtocols)
+		{ return true; }
+
+		// Find the ethertype, skipping a VLAN tag
+		int pos = offset + ETHER_TYPE_OFFSET;
+		if (length < ETHER_TYPE_OFFSET + 2)
+		{ return false; }
+		short etherType = getShort(buf, pos);
+		if (TYPE_VLAN == etherType && length >= ETHER_TYPE_OFFSET + 6)
+		{
+			pos += 4;
+			etherType = getShort(buf, pos);
+		}
+		pos += 2;
+
+		if (this.etherTypes != null)
+		{
+			boolean found = false;
+			for (short type : this.etherTypes)
+			{
+				if (type == etherType)
+				{ found = true; break; }
+			}
+			if (!found)
+			{ return false; }
+		}
+
+		if (this.ipProtocols != null)
+		{
+			// Protocol of IPv4, or next header of IPv6
+			int protocolOffset;
+			if (TYPE_IPv4 == etherType)
+			{ protocolOffset = 9; }
+			else if (TYPE_IPv6 == etherType)
+			{ protocolOffset = 6; }
+			else
+			{ return false; }
+			if (pos + protocolOffset >= offset + length)
+			{ return false; }
+			byte protocol = buf[pos + protocolOffset];
+			for (byte p : this.ipProtocols)
+			{
+				if (p == protocol)
+				{ return true; }
+			}
+			return false;
+		}
+		return true;
+	}
+
+	private static short getShort(byte[] buf, int pos)
+	{ return (short)(((buf[pos] & 0xff) << 8) | (buf[pos + 1] & 0xff)); }
+}
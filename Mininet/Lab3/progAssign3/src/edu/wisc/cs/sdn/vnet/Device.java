@@ -5,6 +5,7 @@ import java.util.Map;
 
 import net.floodlightcontroller.packet.Ethernet;
 
+import edu.wisc.cs.sdn.vnet.vns.OutputBatcher;
 import edu.wisc.cs.sdn.vnet.vns.VNSComm;
 
 /**
@@ -25,6 +26,9 @@ public abstract class Device
 	/** Virtual Network Simulator communication manager for the device */
 	private VNSComm vnsComm;
 	
+	/** Timing wheel that runs the timeouts of the device's tables */
+	private TimingWheel timingWheel;
+	
 	/**
 	 * Creates a device.
 	 * @param host hostname for the device
@@ -36,6 +40,7 @@ public abstract class Device
 		this.logfile = logfile;
 		this.interfaces = new HashMap<String,Iface>();
 		this.vnsComm = null;
+		this.timingWheel = new TimingWheel("vnet-timer");
 	}
 	
 	/**
@@ -72,10 +77,19 @@ public abstract class Device
 	{ this.vnsComm = vnsComm; }
 	
 	/**
-	 * Close the PCAP dump file for the router, if logging is enabled.
+	 * @return timing wheel that runs the timeouts of the device's tables; its
+	 *         tasks share one thread, so they must not block
+	 */
+	public TimingWheel getTimingWheel()
+	{ return this.timingWheel; }
+	
+	/**
+	 * Stop running timeouts, and close the PCAP dump file for the router, if
+	 * logging is enabled.
 	 */
 	public void destroy()
 	{
+		this.timingWheel.stop();
 		if (logfile != null)
 		{ this.logfile.close(); }
 	}
@@ -86,7 +100,9 @@ public abstract class Device
 	 */
 	public Iface addInterface(String ifaceName)
 	{
-		Iface iface = new Iface(ifaceName);
+		Iface old = this.interfaces.get(ifaceName);
+		Iface iface = new Iface(ifaceName, 
+				(old != null) ? old.getIndex() : this.interfaces.size());
 		this.interfaces.put(ifaceName, iface);
 		return iface;
 	}
@@ -110,5 +126,72 @@ public abstract class Device
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
 	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
 	
+	/**
+	 * Send an already serialized Ethernet frame out a specific interface.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(byte[] frame, int offset, int length, Iface iface)
+	{ return this.vnsComm.sendFrame(frame, offset, length, iface.getName()); }
+	
+	/**
+	 * Run a task that sends packets, e.g. on a timer, sending its packets
+	 * together once it is done rather than one at a time. Packets sent while
+	 * handling a received packet are already sent together.
+	 * @param task task that sends packets
+	 */
+	public void sendBurst(Runnable task)
+	{
+		OutputBatcher batcher = (null == this.vnsComm) ? null
+				: this.vnsComm.getOutputBatcher();
+		if (null == batcher || batcher.isInBurst())
+		{
+			task.run();
+			return;
+		}
+		batcher.beginBurst();
+		try
+		{ task.run(); }
+		finally
+		{ batcher.endBurst(); }
+	}
+	
+	/**
+	 * Send a frame passed to {@link #handleFrame(byte[], int, int, Iface)}
+	 * back out a specific interface, without copying it if possible. The
+	 * buffer must not be used by the device afterwards.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean forwardFrame(byte[] frame, int offset, int length, 
+			Iface iface)
+	{ return this.vnsComm.forwardFrame(frame, offset, length, iface.getName()); }
+	
+	/**
+	 * Handle an Ethernet frame received on a specific interface, directly
+	 * from the buffer it was received in. The frame is deserialized and passed
+	 * to {@link #handlePacket(Ethernet, Iface)}; devices may override this to
+	 * handle common frames without deserializing them. The buffer is not
+	 * reused once passed to the device, so the device may modify it; it must
+	 * not be modified while packets lazily decoded from it are in use.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 */
+	public void handleFrame(byte[] frame, int offset, int length, 
+			Iface inIface)
+	{
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.deserialize(frame, offset, length);
+		this.handlePacket(etherPacket, inIface);
+	}
+	
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
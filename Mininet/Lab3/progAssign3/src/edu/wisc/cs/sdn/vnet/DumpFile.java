@@ -1,12 +1,38 @@
 package edu.wisc.cs.sdn.vnet;
 
-import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import net.floodlightcontroller.packet.Ethernet;
 
+/**
+ * PCAP file packets are logged to. Frames are copied into a bounded ring
+ * buffer and written to the file in large batches by a background thread, so
+ * logging does not block packet processing. Frames that do not fit in the
+ * ring buffer are dropped.
+ * <p>
+ * A dump file can instead be a series of files that are rotated once they
+ * reach a maximum size or age. Each file is allocated at its maximum size and
+ * memory mapped, so records are written without system calls; it is truncated
+ * to the size of its records when it is rotated or closed.
+ * <p>
+ * Files whose names end in .pcapng are written in the pcapng format, with
+ * nanosecond timestamps. Each interface frames are logged on gets an
+ * interface description block, and each frame records the interface and the
+ * direction it was received or sent in.
+ */
 public class DumpFile
 {
 	private static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
@@ -14,94 +40,691 @@ public class DumpFile
 	private static final short PCAP_VERSION_MINOR = 4;
 	private static final int THIS_ZONE = 0;
 	private static final int SIG_FIGS = 0;
-	private static final int SNAP_LEN = 65535;
 	private static final int LINKTYPE_ETHERNET = 1;
-	
-	private FileOutputStream fileStream;
-	DataOutputStream outStream;
-	
-	private DumpFile(FileOutputStream fileStream)
-	{
-		this.fileStream = fileStream;
-		outStream = new DataOutputStream(fileStream);
-	}
-	
-	private DumpFile()
+
+	private static final int PCAPNG_SECTION_HEADER_BLOCK = 0x0a0d0d0a;
+	private static final int PCAPNG_INTERFACE_DESCRIPTION_BLOCK = 1;
+	private static final int PCAPNG_ENHANCED_PACKET_BLOCK = 6;
+	private static final int PCAPNG_BYTE_ORDER_MAGIC = 0x1a2b3c4d;
+	private static final short PCAPNG_VERSION_MAJOR = 1;
+	private static final short PCAPNG_VERSION_MINOR = 0;
+	private static final short PCAPNG_OPT_ENDOFOPT = 0;
+	private static final short PCAPNG_IF_NAME = 2;
+	private static final short PCAPNG_IF_TSRESOL = 9;
+	private static final short PCAPNG_EPB_FLAGS = 2;
+
+	/** Direction of a frame, as encoded in pcapng packet flags */
+	public static final int DIRECTION_UNKNOWN = 0;
+	public static final int DIRECTION_INBOUND = 1;
+	public static final int DIRECTION_OUTBOUND = 2;
+
+	/** Default maximum number of bytes of a frame that are logged */
+	public static final int DEFAULT_SNAP_LEN = 65535;
+
+	/** Default size (in bytes) of the ring buffer frames wait in */
+	public static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	/** Default size (in bytes) of rotated files, if only their age is
+	 *  limited */
+	public static final long DEFAULT_FILE_SIZE = 64 * 1024 * 1024;
+
+	/** Size (in bytes) of the buffer PCAP records are written from */
+	private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+	/** Maximum time (in milliseconds) a frame waits to be written */
+	private static final long WRITE_INTERVAL = 100;
+
+	/** Length of the header of a frame in the ring buffer: a timestamp,
+	 *  the original length, the captured length, the interface ID, and the
+	 *  direction */
+	private static final int ENTRY_HEADER_LENGTH = 8 + 4 + 4 + 4 + 4;
+
+	/** Maximum length of the header of the file */
+	private static final int FILE_HEADER_LENGTH = 28;
+
+	/** Length of the header of a record in a PCAP file */
+	private static final int PCAP_RECORD_HEADER_LENGTH = 16;
+
+	/** Maximum length of a record in the file, excluding the frame */
+	private static final int RECORD_HEADER_LENGTH = 44;
+
+	/** Name of the interface frames whose interface is unknown are logged
+	 *  on in pcapng files */
+	private static final String UNKNOWN_IFACE_NAME = "unknown";
+
+	/** Maximum number of bytes of a frame that are logged */
+	private int snapLen;
+
+	/** Whether the file is written in the pcapng format */
+	private boolean pcapng;
+
+	/** IDs of the interfaces frames have been logged on, and their names
+	 *  indexed by ID; guarded by this */
+	private Map<String,Integer> ifaceIds;
+	private List<String> ifaceNames;
+
+	/** Names of interfaces known to the writer thread, indexed by ID, and
+	 *  the number whose description is in the current file */
+	private byte[][] writerIfaceNames;
+	private int ifaceBlockCount;
+
+	/** Frames that are logged; null to log all frames */
+	private volatile CaptureFilter filter;
+
+	/** Channel records are written to, if files are not rotated */
+	private WritableByteChannel channel;
+
+	/** Whether the channel is closed with the dump file; standard output is
+	 *  left open */
+	private boolean closeChannel;
+
+	/** Buffer records are put in before they are written to the channel, or
+	 *  the mapping of the current file if files are rotated */
+	private ByteBuffer out;
+
+	/** Whether writing to the file failed; records are discarded if so */
+	private boolean failed;
+
+	/** Name files are derived from, if files are rotated; null otherwise */
+	private String rotatedName;
+
+	/** Size (in bytes) each rotated file is allocated at */
+	private long maxFileSize;
+
+	/** Maximum age (in nanoseconds) of a rotated file; 0 if unlimited */
+	private long maxFileAgeNanos;
+
+	/** Current rotated file; null before the first record */
+	private RandomAccessFile rotatedFile;
+	private int fileIndex;
+	private long fileStartNanos;
+
+	/** Ring buffer of frames waiting to be written; its size is a power of
+	 *  two */
+	private byte[] ring;
+	private int ringMask;
+
+	/** Positions of the first and after the last byte waiting in the ring
+	 *  buffer; they only increase, and are guarded by this */
+	private long head;
+	private long tail;
+
+	/** Statistics; guarded by this */
+	private long frameCount;
+	private long droppedCount;
+
+	/** Difference between the wall clock and System.nanoTime(), in
+	 *  nanoseconds */
+	private long epochOffsetNanos;
+
+	/** Thread writing frames to the file */
+	private Thread writer;
+	private boolean closed;
+
+	private DumpFile(String filename, int snapLen)
 	{
-		this.fileStream = null;
-		outStream = new DataOutputStream(System.out);
+		this.snapLen = snapLen;
+		this.pcapng = filename.endsWith(".pcapng");
+		this.ifaceIds = new HashMap<String,Integer>();
+		this.ifaceNames = new ArrayList<String>();
+		this.writerIfaceNames = new byte[0][];
+		this.ifaceBlockCount = 0;
+		this.filter = null;
+		this.failed = false;
+		int size = Integer.highestOneBit(Math.max(DEFAULT_BUFFER_SIZE,
+				ENTRY_HEADER_LENGTH + snapLen) - 1) << 1;
+		this.ring = new byte[size];
+		this.ringMask = size - 1;
+		this.head = 0;
+		this.tail = 0;
+		this.closed = false;
+		this.epochOffsetNanos = System.currentTimeMillis() * 1000000L
+				- System.nanoTime();
 	}
-	
+
+	/**
+	 * Open a PCAP file to log packets to.
+	 * @param filename name of the file; "-" for standard output
+	 * @return the dump file; null if it could not be opened
+	 */
 	public static DumpFile open(String filename)
+	{ return open(filename, DEFAULT_SNAP_LEN); }
+
+	/**
+	 * Open a PCAP file to log packets to.
+	 * @param filename name of the file; "-" for standard output; written in
+	 *        the pcapng format if it ends in .pcapng
+	 * @param snapLen maximum number of bytes of a frame that are logged
+	 * @return the dump file; null if it could not be opened
+	 */
+	public static DumpFile open(String filename, int snapLen)
 	{
-		DumpFile dumpFile = null;
+		DumpFile dumpFile = new DumpFile(filename, snapLen);
+		dumpFile.out = ByteBuffer.allocateDirect(Math.max(WRITE_BUFFER_SIZE,
+				RECORD_HEADER_LENGTH + snapLen));
 		if (filename.equals("-"))
-		{ dumpFile = new DumpFile(); }
+		{
+			dumpFile.channel = Channels.newChannel(System.out);
+			dumpFile.closeChannel = false;
+		}
 		else
 		{
-			try 
-			{ dumpFile = new DumpFile(new FileOutputStream(filename)); } 
-			catch (FileNotFoundException e) 
+			try
+			{
+				dumpFile.channel = new FileOutputStream(filename).getChannel();
+				dumpFile.closeChannel = true;
+			}
+			catch (FileNotFoundException e)
 			{
 				System.err.println("Cannot open " + filename);
 				return null;
 			}
 		}
-		
-		if (!dumpFile.writeHeader())
+
+		dumpFile.putHeader(dumpFile.out);
+		if (!dumpFile.flush())
 		{ return null; }
+		dumpFile.startWriter();
 		return dumpFile;
 	}
-	
-	private boolean writeHeader()
-	{        
-		try 
-		{
-			this.outStream.writeInt(TCPDUMP_MAGIC);
-			this.outStream.writeShort(PCAP_VERSION_MAJOR);
-			this.outStream.writeShort(PCAP_VERSION_MINOR);
-			this.outStream.writeInt(THIS_ZONE);
-			this.outStream.writeInt(SIG_FIGS);
-			this.outStream.writeInt(SNAP_LEN);
-			this.outStream.writeInt(LINKTYPE_ETHERNET);
-	        this.outStream.flush();
-	        return true;
+
+	/**
+	 * Open a series of memory-mapped PCAP files to log packets to. The files
+	 * are named after the given file name, with a sequence number inserted
+	 * before the extension, e.g. log-0000.pcap, log-0001.pcap, ...
+	 * @param filename name the files are derived from; they are written in
+	 *        the pcapng format if it ends in .pcapng
+	 * @param snapLen maximum number of bytes of a frame that are logged
+	 * @param maxFileSize maximum size (in bytes) of a file; 0 for the default
+	 * @param maxFileAge maximum time (in seconds) a file is written to; 0 to
+	 *        only rotate files when they are full
+	 * @return the dump file; null if the first file could not be created
+	 */
+	public static DumpFile openRotating(String filename, int snapLen,
+			long maxFileSize, long maxFileAge)
+	{
+		DumpFile dumpFile = new DumpFile(filename, snapLen);
+		dumpFile.rotatedName = filename;
+		dumpFile.maxFileSize = Math.max(
+				(maxFileSize > 0) ? maxFileSize : DEFAULT_FILE_SIZE,
+				FILE_HEADER_LENGTH + RECORD_HEADER_LENGTH + snapLen);
+		dumpFile.maxFileAgeNanos = maxFileAge * 1000000000L;
+		dumpFile.fileIndex = 0;
+
+		// Create the first file now, so errors are reported to the caller
+		if (!dumpFile.rotate(System.nanoTime() + dumpFile.epochOffsetNanos))
+		{ return null; }
+		dumpFile.startWriter();
+		return dumpFile;
+	}
+
+	/**
+	 * @param filter frames that are logged from now on; null to log all
+	 *        frames
+	 */
+	public void setFilter(CaptureFilter filter)
+	{ this.filter = filter; }
+
+	private void putHeader(ByteBuffer buf)
+	{
+		this.ifaceBlockCount = 0;
+		if (this.pcapng)
+		{
+			// Section header block, with an unspecified section length
+			buf.putInt(PCAPNG_SECTION_HEADER_BLOCK);
+			buf.putInt(28);
+			buf.putInt(PCAPNG_BYTE_ORDER_MAGIC);
+			buf.putShort(PCAPNG_VERSION_MAJOR);
+			buf.putShort(PCAPNG_VERSION_MINOR);
+			buf.putLong(-1);
+			buf.putInt(28);
+			return;
+		}
+
+		buf.putInt(TCPDUMP_MAGIC);
+		buf.putShort(PCAP_VERSION_MAJOR);
+		buf.putShort(PCAP_VERSION_MINOR);
+		buf.putInt(THIS_ZONE);
+		buf.putInt(SIG_FIGS);
+		buf.putInt(this.snapLen);
+		buf.putInt(LINKTYPE_ETHERNET);
+	}
+
+	private void startWriter()
+	{
+		this.writer = new Thread(new Runnable() {
+			public void run()
+			{ writeFrames(); }
+		}, "vnet-dump");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	public void dump(Ethernet etherPacket)
+	{
+		byte[] buf = etherPacket.serialize();
+		this.dump(buf, 0, buf.length, null, DIRECTION_UNKNOWN);
+	}
+
+	/**
+	 * Log an already serialized Ethernet frame.
+	 * @param buf buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 */
+	public void dump(byte[] buf, int offset, int length)
+	{ this.dump(buf, offset, length, null, DIRECTION_UNKNOWN); }
+
+	/**
+	 * Log an already serialized Ethernet frame, if it matches the filter. The
+	 * frame is copied, so the buffer may be reused as soon as this returns.
+	 * If there is no room for the frame in the ring buffer, it is dropped.
+	 * @param buf buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param ifaceName name of the interface the frame was received or sent
+	 *        on; null if unknown
+	 * @param direction whether the frame was received or sent; one of the
+	 *        DIRECTION_ constants
+	 */
+	public void dump(byte[] buf, int offset, int length, String ifaceName,
+			int direction)
+	{
+		CaptureFilter filter = this.filter;
+		if (filter != null && !filter.matches(buf, offset, length, ifaceName))
+		{ return; }
+
+		long timestamp = System.nanoTime();
+		int captured = Math.min(length, this.snapLen);
+		int entryLength = ENTRY_HEADER_LENGTH + captured;
+		synchronized(this)
+		{
+			if (this.closed || this.ring.length - (this.tail - this.head)
+					< entryLength)
+			{
+				this.droppedCount++;
+				return;
+			}
+
+			Integer ifaceId = this.ifaceIds.get(ifaceName);
+			if (null == ifaceId)
+			{
+				ifaceId = this.ifaceNames.size();
+				this.ifaceIds.put(ifaceName, ifaceId);
+				this.ifaceNames.add(ifaceName);
+			}
+
+			long pos = this.tail;
+			this.putLong(pos, timestamp + this.epochOffsetNanos);
+			this.putInt(pos + 8, length);
+			this.putInt(pos + 12, captured);
+			this.putInt(pos + 16, ifaceId);
+			this.putInt(pos + 20, direction);
+			this.copyIn(pos + ENTRY_HEADER_LENGTH, buf, offset, captured);
+			this.tail = pos + entryLength;
+			this.frameCount++;
+
+			// Wake the writer early once half of the ring buffer is used
+			long used = this.tail - this.head;
+			if (used >= this.ring.length / 2
+					&& used - entryLength < this.ring.length / 2)
+			{ this.notify(); }
+		}
+	}
+
+	/**
+	 * Write frames from the ring buffer to the file until the file is closed
+	 * and the ring buffer is empty.
+	 */
+	private void writeFrames()
+	{
+		byte[] frame = new byte[this.snapLen];
+		while (true)
+		{
+			long start, end;
+			synchronized(this)
+			{
+				// Wait for more frames, unless the ring buffer is filling up
+				if (!this.closed && this.tail - this.head < this.ring.length / 2)
+				{
+					try { this.wait(WRITE_INTERVAL); }
+					catch (InterruptedException e) { }
+				}
+				if (this.head == this.tail && this.closed)
+				{ break; }
+				start = this.head;
+				end = this.tail;
+
+				// Interfaces of the frames about to be written are known
+				if (this.writerIfaceNames.length < this.ifaceNames.size())
+				{
+					byte[][] names = new byte[this.ifaceNames.size()][];
+					for (int i = 0; i < names.length; i++)
+					{
+						String name = this.ifaceNames.get(i);
+						names[i] = ((null == name) ? UNKNOWN_IFACE_NAME : name)
+								.getBytes(StandardCharsets.UTF_8);
+					}
+					this.writerIfaceNames = names;
+				}
+			}
+
+			// Entries between start and end are not modified until head is
+			// advanced, so they can be read without holding the lock
+			for (long pos = start; pos < end; )
+			{
+				long timestamp = this.getLong(pos);
+				int length = this.getInt(pos + 8);
+				int captured = this.getInt(pos + 12);
+				int ifaceId = this.getInt(pos + 16);
+				int direction = this.getInt(pos + 20);
+				this.copyOut(pos + ENTRY_HEADER_LENGTH, frame, captured);
+				pos += ENTRY_HEADER_LENGTH + captured;
+
+				if (!this.pcapng)
+				{
+					if (!this.reserve(PCAP_RECORD_HEADER_LENGTH + captured,
+							timestamp))
+					{ continue; }
+					this.out.putInt((int)(timestamp / 1000000000L));
+					this.out.putInt((int)(timestamp % 1000000000L / 1000));
+					this.out.putInt(captured);
+					this.out.putInt(length);
+					this.out.put(frame, 0, captured);
+					continue;
+				}
+
+				// Describe the interface first, if it is new to the file;
+				// rotating the file may add more descriptions
+				int blockLength = packetBlockLength(captured, direction);
+				if (!this.reserve(this.interfaceBlocksLength(ifaceId)
+						+ blockLength, timestamp)
+						|| this.out.remaining() < this.interfaceBlocksLength(
+								ifaceId) + blockLength)
+				{ continue; }
+				this.putInterfaceBlocks(ifaceId);
+
+				// Enhanced packet block
+				this.out.putInt(PCAPNG_ENHANCED_PACKET_BLOCK);
+				this.out.putInt(blockLength);
+				this.out.putInt(ifaceId);
+				this.out.putLong(timestamp);
+				this.out.putInt(captured);
+				this.out.putInt(length);
+				this.out.put(frame, 0, captured);
+				this.putPadding(captured);
+				if (direction != DIRECTION_UNKNOWN)
+				{
+					this.out.putShort(PCAPNG_EPB_FLAGS);
+					this.out.putShort((short)4);
+					this.out.putInt(direction);
+					this.out.putShort(PCAPNG_OPT_ENDOFOPT);
+					this.out.putShort((short)0);
+				}
+				this.out.putInt(blockLength);
+			}
+			if (null == this.rotatedName)
+			{ this.flush(); }
+
+			synchronized(this)
+			{ this.head = end; }
+		}
+
+		if (this.rotatedName != null)
+		{ this.finishRotatedFile(); }
+		else if (this.closeChannel)
+		{
+			try { this.channel.close(); }
+			catch (IOException e) { }
+		}
+	}
+
+	/**
+	 * Make room for a record in the output buffer, writing the buffer or
+	 * rotating files as needed.
+	 * @param length length of the record
+	 * @param timestamp time the record was logged, in nanoseconds since the
+	 *        epoch
+	 * @return true if there is room for the record, otherwise false
+	 */
+	private boolean reserve(int length, long timestamp)
+	{
+		if (null == this.rotatedName)
+		{
+			if (this.out.remaining() < length)
+			{ this.flush(); }
+			return !this.failed;
+		}
+
+		if (this.failed)
+		{ return false; }
+		if (this.out.remaining() < length
+				|| (this.maxFileAgeNanos > 0
+					&& timestamp - this.fileStartNanos >= this.maxFileAgeNanos))
+		{ return this.rotate(timestamp); }
+		return true;
+	}
+
+	/**
+	 * @param captured number of bytes of the frame that are logged
+	 * @param direction direction of the frame
+	 * @return length of the pcapng enhanced packet block for a frame
+	 */
+	private static int packetBlockLength(int captured, int direction)
+	{
+		return 32 + ((captured + 3) & ~3)
+				+ ((direction != DIRECTION_UNKNOWN) ? 12 : 0);
+	}
+
+	/**
+	 * @param ifaceId ID of an interface
+	 * @return length of the pcapng interface description blocks that must
+	 *         be added to the current file before a frame on the interface
+	 */
+	private int interfaceBlocksLength(int ifaceId)
+	{
+		int length = 0;
+		for (int i = this.ifaceBlockCount; i <= ifaceId; i++)
+		{ length += 36 + ((this.writerIfaceNames[i].length + 3) & ~3); }
+		return length;
+	}
+
+	/**
+	 * Add pcapng interface description blocks to the current file for all
+	 * interfaces up to the given one, with nanosecond timestamps.
+	 * @param ifaceId ID of an interface
+	 */
+	private void putInterfaceBlocks(int ifaceId)
+	{
+		for ( ; this.ifaceBlockCount <= ifaceId; this.ifaceBlockCount++)
+		{
+			byte[] name = this.writerIfaceNames[this.ifaceBlockCount];
+			int blockLength = 36 + ((name.length + 3) & ~3);
+			this.out.putInt(PCAPNG_INTERFACE_DESCRIPTION_BLOCK);
+			this.out.putInt(blockLength);
+			this.out.putShort((short)LINKTYPE_ETHERNET);
+			this.out.putShort((short)0);
+			this.out.putInt(this.snapLen);
+			this.out.putShort(PCAPNG_IF_NAME);
+			this.out.putShort((short)name.length);
+			this.out.put(name);
+			this.putPadding(name.length);
+			this.out.putShort(PCAPNG_IF_TSRESOL);
+			this.out.putShort((short)1);
+			this.out.putInt(9 << 24);
+			this.out.putShort(PCAPNG_OPT_ENDOFOPT);
+			this.out.putShort((short)0);
+			this.out.putInt(blockLength);
+		}
+	}
+
+	/**
+	 * Pad a field of the given length to 32 bits.
+	 */
+	private void putPadding(int length)
+	{
+		for (int i = length; (i & 3) != 0; i++)
+		{ this.out.put((byte)0); }
+	}
+
+	/**
+	 * Write and clear the output buffer. If a previous write failed, the
+	 * records are discarded.
+	 * @return true if the records were written, otherwise false
+	 */
+	private boolean flush()
+	{
+		this.out.flip();
+		try
+		{
+			while (!this.failed && this.out.hasRemaining())
+			{ this.channel.write(this.out); }
 		}
 		catch (IOException e)
 		{
 			e.printStackTrace();
-			return false;
+			this.failed = true;
 		}
+		this.out.clear();
+		return !this.failed;
+	}
+
+	/**
+	 * Finish the current rotated file, if any, and start the next one.
+	 * @param timestamp time the next file starts, in nanoseconds since the
+	 *        epoch
+	 * @return true if the next file was created, otherwise false
+	 */
+	private boolean rotate(long timestamp)
+	{
+		this.finishRotatedFile();
 
+		String name = this.rotatedName;
+		int dot = name.lastIndexOf('.');
+		if (dot <= name.lastIndexOf('/'))
+		{ dot = name.length(); }
+		name = String.format("%s-%04d%s", name.substring(0, dot),
+				this.fileIndex++, name.substring(dot));
+		try
+		{
+			this.rotatedFile = new RandomAccessFile(name, "rw");
+			this.rotatedFile.setLength(this.maxFileSize);
+			this.out = this.rotatedFile.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, this.maxFileSize);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Cannot create " + name + ": " + e.getMessage());
+			this.rotatedFile = null;
+			this.failed = true;
+			return false;
+		}
+		this.putHeader(this.out);
+		this.fileStartNanos = timestamp;
+		this.failed = false;
+		return true;
 	}
-	
-	public void dump(Ethernet etherPacket)
+
+	/**
+	 * Truncate the current rotated file to the records written to it, and
+	 * close it.
+	 */
+	private void finishRotatedFile()
 	{
-		byte[] buf = etherPacket.serialize();
-		
-		int sec = (int)(System.currentTimeMillis()/1000);
-		int usec = (int)((System.currentTimeMillis() % 1000)*1000);
+		if (null == this.rotatedFile)
+		{ return; }
 		try
 		{
-			this.outStream.writeInt(sec);
-			this.outStream.writeInt(usec);
-			this.outStream.writeInt(buf.length);
-			this.outStream.writeInt(buf.length);
-			this.outStream.write(buf);
-			this.outStream.flush();
+			((MappedByteBuffer)this.out).force();
+			this.rotatedFile.setLength(this.out.position());
+			this.rotatedFile.close();
 		}
 		catch (IOException e)
 		{ e.printStackTrace(); }
+		this.rotatedFile = null;
+	}
+
+	private void putInt(long pos, int value)
+	{
+		for (int i = 3; i >= 0; i--)
+		{
+			this.ring[(int)(pos + i) & this.ringMask] = (byte)value;
+			value >>>= 8;
+		}
+	}
+
+	private void putLong(long pos, long value)
+	{
+		this.putInt(pos, (int)(value >>> 32));
+		this.putInt(pos + 4, (int)value);
+	}
+
+	private int getInt(long pos)
+	{
+		int value = 0;
+		for (int i = 0; i < 4; i++)
+		{ value = (value << 8) | (this.ring[(int)(pos + i) & this.ringMask] & 0xff); }
+		return value;
+	}
+
+	private long getLong(long pos)
+	{
+		return ((long)this.getInt(pos) << 32)
+				| (this.getInt(pos + 4) & 0xffffffffL);
+	}
+
+	private void copyIn(long pos, byte[] buf, int offset, int length)
+	{
+		int index = (int)pos & this.ringMask;
+		int first = Math.min(length, this.ring.length - index);
+		System.arraycopy(buf, offset, this.ring, index, first);
+		System.arraycopy(buf, offset + first, this.ring, 0, length - first);
+	}
+
+	private void copyOut(long pos, byte[] buf, int length)
+	{
+		int index = (int)pos & this.ringMask;
+		int first = Math.min(length, this.ring.length - index);
+		System.arraycopy(this.ring, index, buf, 0, first);
+		System.arraycopy(this.ring, 0, buf, first, length - first);
 	}
-	
+
+	/**
+	 * @return number of frames dropped because the ring buffer was full
+	 */
+	public synchronized long getDroppedCount()
+	{ return this.droppedCount; }
+
+	/**
+	 * Write all frames logged so far, and close the file.
+	 */
 	public void close()
 	{
+		synchronized(this)
+		{
+			if (this.closed)
+			{ return; }
+			this.closed = true;
+			this.notify();
+		}
 		try
+		{ this.writer.join(); }
+		catch (InterruptedException e) { }
+
+		synchronized(this)
 		{
-			this.outStream.flush();
-			if (this.fileStream != null)
-			{ this.outStream.close(); }
+			if (this.droppedCount > 0)
+			{
+				System.err.println(String.format(
+						"Dropped %d of %d frames logged", this.droppedCount,
+						this.droppedCount + this.frameCount));
+			}
 		}
-		catch(IOException e) { }
+	}
+
+	public synchronized String toString()
+	{
+		return String.format("%d frames logged, %d dropped", this.frameCount,
+				this.droppedCount);
 	}
 }
@@ -10,13 +10,22 @@ import net.floodlightcontroller.packet.MACAddress;
 public class Iface 
 {
 	private String name;
+	private int index;
 	private MACAddress macAddress;
 	private int ipAddress;
     private int subnetMask;
 	
 	public Iface(String name)
+	{ this(name, -1); }
+	
+	/**
+	 * @param name name of the interface
+	 * @param index small number identifying the interface on its device
+	 */
+	public Iface(String name, int index)
 	{
 		this.name = name;
+		this.index = index;
 		this.macAddress = null;
 		this.ipAddress = 0;
 	}
@@ -24,6 +33,13 @@ public class Iface
 	public String getName()
 	{ return this.name; }
 	
+	/**
+	 * @return small number identifying the interface on its device, counting
+	 *         from 0 in the order interfaces were added; -1 if unknown
+	 */
+	public int getIndex()
+	{ return this.index; }
+	
 	public void setMacAddress(MACAddress mac)
 	{ this.macAddress = mac; }
 	
@@ -0,0 +1,59 @@
+package edu.wisc.cs.sdn.vnet;
+
+/**
+ * Level of detail of the messages a device prints. Messages printed for every
+ * packet are only worth their cost while debugging, so they are checked
+ * against the level before they are built.
+ */
+public class Log
+{
+	/** Only errors */
+	public static final int ERROR = 0;
+
+	/** Errors and unusual events */
+	public static final int WARN = 1;
+
+	/** Changes of state, e.g. route table updates; the default */
+	public static final int INFO = 2;
+
+	/** A message for every packet */
+	public static final int DEBUG = 3;
+
+	private static final String[] NAMES = { "error", "warn", "info", "debug" };
+
+	private static volatile int level = INFO;
+
+	/**
+	 * @param newLevel most detailed level of messages to print
+	 */
+	public static void setLevel(int newLevel)
+	{ level = newLevel; }
+
+	/**
+	 * @return most detailed level of messages to print
+	 */
+	public static int getLevel()
+	{ return level; }
+
+	/**
+	 * @param messageLevel level of a message
+	 * @return true if messages of the level are printed
+	 */
+	public static boolean isEnabled(int messageLevel)
+	{ return messageLevel <= level; }
+
+	/**
+	 * Parse the name of a level.
+	 * @param name error, warn, info or debug
+	 * @return the level; -1 if the name is invalid
+	 */
+	public static int parseLevel(String name)
+	{
+		for (int i = 0; i < NAMES.length; i++)
+		{
+			if (NAMES[i].equalsIgnoreCase(name))
+			{ return i; }
+		}
+		return -1;
+	}
+}
@@ -1,9 +1,20 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.io.File;
+
+import net.floodlightcontroller.packet.BasePacket;
+
+import edu.wisc.cs.sdn.vnet.rt.ArpCache;
+import edu.wisc.cs.sdn.vnet.rt.ArpResolver;
 import edu.wisc.cs.sdn.vnet.rt.Router;
+import edu.wisc.cs.sdn.vnet.sw.StormControl;
 import edu.wisc.cs.sdn.vnet.sw.Switch;
+import edu.wisc.cs.sdn.vnet.vns.BlockingTransport;
 import edu.wisc.cs.sdn.vnet.vns.Command;
+import edu.wisc.cs.sdn.vnet.vns.NioTransport;
+import edu.wisc.cs.sdn.vnet.vns.OutputBatcher;
 import edu.wisc.cs.sdn.vnet.vns.VNSComm;
+import edu.wisc.cs.sdn.vnet.vns.VNSTransport;
 
 public class Main
 {
@@ -16,8 +27,29 @@ public class Main
 		String server = DEFAULT_SERVER;
 		String routeTableFile = null;
 		String arpCacheFile = null;
+		String snapshotFile = null;
+		long checkpointInterval = Router.DEFAULT_CHECKPOINT_INTERVAL / 1000;
 		String logfile = null;
+		int snapLen = DumpFile.DEFAULT_SNAP_LEN;
+		String captureFilter = null;
+		long maxLogFileSize = 0;
+		long maxLogFileAge = 0;
 		short port = DEFAULT_PORT;
+		int workers = 0;
+		int maxBatchBytes = OutputBatcher.DEFAULT_MAX_BATCH_BYTES;
+		long maxBatchDelay = 0;
+		String transportName = "blocking";
+		long arpTimeout = ArpCache.DEFAULT_TIMEOUT / 1000;
+		int arpMaxEntries = ArpCache.DEFAULT_MAX_ENTRIES;
+		int arpAttempts = ArpResolver.DEFAULT_ATTEMPTS;
+		long arpRetryInterval = ArpResolver.DEFAULT_RETRY_INTERVAL;
+		double arpBackoff = ArpResolver.DEFAULT_BACKOFF;
+		int arpQueueCapacity = ArpResolver.DEFAULT_QUEUE_CAPACITY;
+		long arpMaxQueuedBytes = ArpResolver.DEFAULT_MAX_QUEUED_BYTES;
+		boolean arpDropOldest = true;
+		int stormPortRate = StormControl.DEFAULT_PORT_RATE;
+		int stormSourceRate = StormControl.DEFAULT_SOURCE_RATE;
+		int stormBurst = StormControl.DEFAULT_BURST;
 		VNSComm vnsComm = null;
 		Device dev = null;
 
@@ -38,10 +70,71 @@ public class Main
 			{ server = args[++i]; }
 			else if (arg.equals("-l"))
 			{ logfile = args[++i]; }
+			else if (arg.equals("-n"))
+			{ snapLen = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-f"))
+			{ captureFilter = args[++i]; }
+			else if (arg.equals("-C"))
+			{ maxLogFileSize = Long.parseLong(args[++i]) * 1024 * 1024; }
+			else if (arg.equals("-G"))
+			{ maxLogFileAge = Long.parseLong(args[++i]); }
 			else if (arg.equals("-r"))
 			{ routeTableFile = args[++i]; }
 			else if (arg.equals("-a"))
 			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-c"))
+			{ snapshotFile = args[++i]; }
+			else if (arg.equals("-K"))
+			{ checkpointInterval = Long.parseLong(args[++i]); }
+			else if (arg.equals("-w"))
+			{ workers = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-A"))
+			{ arpTimeout = Long.parseLong(args[++i]); }
+			else if (arg.equals("-E"))
+			{ arpMaxEntries = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-R"))
+			{
+				String[] fields = args[++i].split(",");
+				arpAttempts = Integer.parseInt(fields[0]);
+				if (fields.length > 1)
+				{ arpRetryInterval = Long.parseLong(fields[1]); }
+				if (fields.length > 2)
+				{ arpBackoff = Double.parseDouble(fields[2]); }
+			}
+			else if (arg.equals("-Q"))
+			{
+				String[] fields = args[++i].split(",");
+				arpQueueCapacity = Integer.parseInt(fields[0]);
+				if (fields.length > 1)
+				{ arpMaxQueuedBytes = Long.parseLong(fields[1]) * 1024; }
+				if (fields.length > 2)
+				{ arpDropOldest = !fields[2].equals("newest"); }
+			}
+			else if (arg.equals("-S"))
+			{
+				String[] fields = args[++i].split(",");
+				stormPortRate = Integer.parseInt(fields[0]);
+				if (fields.length > 1)
+				{ stormSourceRate = Integer.parseInt(fields[1]); }
+				if (fields.length > 2)
+				{ stormBurst = Integer.parseInt(fields[2]); }
+			}
+			else if (arg.equals("-L"))
+			{
+				int level = Log.parseLevel(args[++i]);
+				if (level < 0)
+				{
+					System.err.println("Log level must be 'error', 'warn', 'info' or 'debug'");
+					return;
+				}
+				Log.setLevel(level);
+			}
+			else if (arg.equals("-t"))
+			{ transportName = args[++i]; }
+			else if (arg.equals("-b"))
+			{ maxBatchBytes = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-d"))
+			{ maxBatchDelay = Long.parseLong(args[++i]); }
 		}
 
 		if (null == host)
@@ -50,24 +143,57 @@ public class Main
 			return;
 		}
 
+		VNSTransport transport = null;
+		if (transportName.equals("blocking"))
+		{ transport = new BlockingTransport(); }
+		else if (transportName.equals("nio"))
+		{ transport = new NioTransport(); }
+		else
+		{
+			System.err.println("Transport must be 'blocking' or 'nio'");
+			return;
+		}
+
 		// Open PCAP dump file for logging packets sent/received by the router
 		DumpFile dump = null;
 		if (logfile != null)
 		{
-			dump = DumpFile.open(logfile);
+			if (maxLogFileSize > 0 || maxLogFileAge > 0)
+			{
+				dump = DumpFile.openRotating(logfile, snapLen, maxLogFileSize,
+						maxLogFileAge);
+			}
+			else
+			{ dump = DumpFile.open(logfile, snapLen); }
 			if (null == dump)
 			{
 				System.err.println("Error opening up dump file "+logfile);
 				return;
 			}
+			if (captureFilter != null)
+			{
+				CaptureFilter filter = CaptureFilter.parse(captureFilter);
+				if (null == filter)
+				{ return; }
+				dump.setFilter(filter);
+			}
 		}
 
 		if (host.startsWith("s"))
-		{ dev = new Switch(host, dump); }
+		{
+			dev = new Switch(host, dump);
+			((Switch)dev).configureStormControl(stormPortRate, stormSourceRate,
+					stormBurst);
+		}
 		else if (host.startsWith("r"))
 		{
 			// Create router instance
 			dev = new Router(host, dump);
+			((Router)dev).configureArpCache(arpTimeout * 1000, arpMaxEntries);
+			((Router)dev).configureArpResolver(arpAttempts, arpRetryInterval,
+					arpBackoff);
+			((Router)dev).getArpResolver().configureQueues(arpQueueCapacity,
+					arpMaxQueuedBytes, arpDropOldest);
 		}
 		else
 		{
@@ -75,41 +201,107 @@ public class Main
 			return;
 		}
 
+		// Only decode the parts of packets the device looks at
+		BasePacket.setLazyDecoding(true);
+
 		// Connect to Virtual Network Simulator server and negotiate session
 		System.out.println(String.format("Connecting to server %s:%d",
 				server, port));
-		vnsComm = new VNSComm(dev);
+		vnsComm = new VNSComm(dev, transport);
+		vnsComm.configureBatching(maxBatchBytes, maxBatchDelay);
 		if (!vnsComm.connectToServer(port, server))
 		{ System.exit(1); }
 		vnsComm.readFromServerExpect(Command.VNS_HW_INFO);
 
 		if (dev instanceof Router)
 		{
+			// Restore a snapshot instead of reading the files, unless they
+			// changed since it was saved
+			boolean restored = false;
+			if (snapshotFile != null && isNewer(snapshotFile, routeTableFile)
+					&& isNewer(snapshotFile, arpCacheFile))
+			{ restored = ((Router)dev).loadSnapshot(snapshotFile); }
+
 			// Read static route table
 			if (routeTableFile != null)
-			{ ((Router)dev).loadRouteTable(routeTableFile); }
+			{
+				if (!restored)
+				{ ((Router)dev).loadRouteTable(routeTableFile); }
+			}
 			else
 			{ ((Router)dev).startRip(); }
 
 			// Read static ACP cache
-			if (arpCacheFile != null)
+			if (arpCacheFile != null && !restored)
 			{ ((Router)dev).loadArpCache(arpCacheFile); }
+
+			if (snapshotFile != null)
+			{
+				((Router)dev).startCheckpoints(snapshotFile,
+						checkpointInterval * 1000);
+			}
 		}
 
+		// Process packets on worker threads, if requested
+		if (workers > 0)
+		{ vnsComm.startPipeline(workers); }
+
 		// Read messages from the server until the server closes the connection
 		System.out.println("<-- Ready to process packets -->");
 		while (vnsComm.readFromServer());
+		vnsComm.stopPipeline();
+		System.out.println("Sent " + vnsComm.getOutputBatcher());
 
 		// Shutdown the router
 		dev.destroy();
 	}
 
+	/**
+	 * @return true if a file exists and was modified after another file, or
+	 *         the other file is null
+	 */
+	static boolean isNewer(String filename, String otherFilename)
+	{
+		File file = new File(filename);
+		if (!file.exists())
+		{ return false; }
+		return null == otherFilename 
+				|| file.lastModified() >= new File(otherFilename).lastModified();
+	}
+
 	static void usage()
 	{
 		System.out.println("Virtual Network Client");
 		System.out.println("VNet -v host [-s server] [-p port] [-h]");
 		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
-		System.out.println(String.format("  defaults server=%s port=%d",
+		System.out.println("     [-c snapshot_file] [-K checkpoint_secs]");
+		System.out.println("     [-n snap_len] [-f capture_filter] [-C max_log_file_mb]");
+		System.out.println("     [-G max_log_file_secs] [-A arp_timeout_secs] [-E arp_max_entries]");
+		System.out.println("     [-R arp_attempts[,arp_retry_ms[,arp_backoff]]]");
+		System.out.println("     [-Q arp_queue_packets[,arp_queue_total_kb[,oldest|newest]]]");
+		System.out.println("     [-S storm_port_pps[,storm_source_pps[,storm_burst]]]");
+		System.out.println("     [-L error|warn|info|debug]");
+		System.out.println("     [-w worker_threads] [-t blocking|nio]");
+		System.out.println("     [-b max_batch_bytes] [-d max_batch_delay_us]");
+		System.out.println(String.format("  defaults server=%s port=%d workers=0 (process packets on the reading thread) transport=blocking",
 				DEFAULT_SERVER, DEFAULT_PORT));
+		System.out.println(String.format("           max_batch_bytes=%d max_batch_delay_us=0 (send once each received packet is processed)",
+				OutputBatcher.DEFAULT_MAX_BATCH_BYTES));
+		System.out.println(String.format("           arp_timeout_secs=%d arp_max_entries=%d (static entries never expire)",
+				ArpCache.DEFAULT_TIMEOUT / 1000, ArpCache.DEFAULT_MAX_ENTRIES));
+		System.out.println(String.format("           arp_attempts=%d arp_retry_ms=%d arp_backoff=%.1f (wait grows by this factor per request)",
+				ArpResolver.DEFAULT_ATTEMPTS, ArpResolver.DEFAULT_RETRY_INTERVAL, ArpResolver.DEFAULT_BACKOFF));
+		System.out.println(String.format("           arp_queue_packets=%d (per next hop) arp_queue_total_kb=%d oldest (packets dropped when full)",
+				ArpResolver.DEFAULT_QUEUE_CAPACITY, ArpResolver.DEFAULT_MAX_QUEUED_BYTES / 1024));
+		System.out.println(String.format("           storm_port_pps=%d (per interface and broadcast, multicast or unknown unicast) storm_source_pps=%d storm_burst=%d",
+				StormControl.DEFAULT_PORT_RATE, StormControl.DEFAULT_SOURCE_RATE, StormControl.DEFAULT_BURST));
+		System.out.println(String.format("           checkpoint_secs=%d (0 saves the snapshot only on exit)",
+				Router.DEFAULT_CHECKPOINT_INTERVAL / 1000));
+		System.out.println("           log level=info (debug prints every packet a switch receives)");
+		System.out.println(String.format("           snap_len=%d; capture_filter is a list of ether=TYPE, ip=PROTOCOL, iface=NAME",
+				DumpFile.DEFAULT_SNAP_LEN));
+		System.out.println("  -C or -G log to memory-mapped files rotated by size or age, e.g. log-0000.pcap");
+		System.out.println("  -c restores a router from snapshot_file, unless routing_table or arp_cache is newer, and saves it there");
+		System.out.println("  a log_file ending in .pcapng is written as pcapng, with interfaces, directions, and ns timestamps");
 	}
 }
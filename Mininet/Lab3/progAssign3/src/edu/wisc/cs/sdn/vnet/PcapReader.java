@@ -0,0 +1,433 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads Ethernet frames from a classic PCAP or a pcapng file, such as those
+ * written by {@link DumpFile}. Files in either byte order, with any timestamp
+ * resolution, are supported. Of a pcapng file, enhanced and simple packet
+ * blocks on Ethernet interfaces are read, along with the name of their
+ * interface and their direction; other blocks are skipped.
+ */
+public class PcapReader
+{
+	private static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
+	private static final int TCPDUMP_MAGIC_NANOS = 0xa1b23c4d;
+	private static final int LINKTYPE_ETHERNET = 1;
+
+	private static final int PCAPNG_SECTION_HEADER_BLOCK = 0x0a0d0d0a;
+	private static final int PCAPNG_INTERFACE_DESCRIPTION_BLOCK = 1;
+	private static final int PCAPNG_SIMPLE_PACKET_BLOCK = 3;
+	private static final int PCAPNG_ENHANCED_PACKET_BLOCK = 6;
+	private static final int PCAPNG_BYTE_ORDER_MAGIC = 0x1a2b3c4d;
+	private static final short PCAPNG_OPT_ENDOFOPT = 0;
+	private static final short PCAPNG_IF_NAME = 2;
+	private static final short PCAPNG_IF_TSRESOL = 9;
+	private static final short PCAPNG_EPB_FLAGS = 2;
+
+	/** Largest record read from a PCAP file, or block from a pcapng file */
+	private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+	/** A frame read from the file */
+	public static class Record
+	{
+		private long timestampNanos;
+		private byte[] frame;
+		private String ifaceName;
+		private int direction;
+
+		private Record(long timestampNanos, byte[] frame, String ifaceName,
+				int direction)
+		{
+			this.timestampNanos = timestampNanos;
+			this.frame = frame;
+			this.ifaceName = ifaceName;
+			this.direction = direction;
+		}
+
+		/**
+		 * @return time at which the frame was captured, in nanoseconds since
+		 *         the epoch
+		 */
+		public long getTimestampNanos()
+		{ return this.timestampNanos; }
+
+		/**
+		 * @return the captured bytes of the frame
+		 */
+		public byte[] getFrame()
+		{ return this.frame; }
+
+		/**
+		 * @return name of the interface the frame was captured on; null if
+		 *         the file does not record it
+		 */
+		public String getInterfaceName()
+		{ return this.ifaceName; }
+
+		/**
+		 * @return DumpFile.DIRECTION_INBOUND or DIRECTION_OUTBOUND;
+		 *         DIRECTION_UNKNOWN if the file does not record it
+		 */
+		public int getDirection()
+		{ return this.direction; }
+	}
+
+	/** An interface of a pcapng section */
+	private static class Interface
+	{
+		int linkType;
+		String name;
+
+		/** Timestamp resolution: a negative power of 10, or of 2 if the
+		 *  highest bit is set */
+		int tsresol;
+
+		Interface(int linkType)
+		{
+			this.linkType = linkType;
+			this.name = null;
+			this.tsresol = 6;
+		}
+	}
+
+	private DataInputStream inStream;
+
+	/** Whether the file was written in the opposite byte order */
+	private boolean swapped;
+
+	/** Number of nanoseconds per unit of the sub-second timestamp field */
+	private int nanosPerTick;
+
+	/** Largest frame a PCAP record may hold */
+	private int snapLen;
+
+	/** Whether the file is a pcapng file */
+	private boolean pcapng;
+
+	/** Interfaces of the current pcapng section, by ID */
+	private List<Interface> interfaces;
+
+	private PcapReader(DataInputStream inStream)
+	{ this.inStream = inStream; }
+
+	/**
+	 * Open a PCAP file and read its header.
+	 * @param filename name of the file
+	 * @return a reader positioned at the first frame; null if the file could
+	 *         not be opened or is not a PCAP file of Ethernet frames or a
+	 *         pcapng file
+	 */
+	public static PcapReader open(String filename)
+	{
+		PcapReader reader;
+		try
+		{
+			reader = new PcapReader(new DataInputStream(
+					new BufferedInputStream(new FileInputStream(filename))));
+		}
+		catch (FileNotFoundException e)
+		{
+			System.err.println("Cannot open " + filename);
+			return null;
+		}
+
+		if (!reader.readHeader())
+		{
+			reader.close();
+			return null;
+		}
+		return reader;
+	}
+
+	private boolean readHeader()
+	{
+		try
+		{
+			int magic = this.inStream.readInt();
+			if (PCAPNG_SECTION_HEADER_BLOCK == magic)
+			{
+				this.pcapng = true;
+				this.interfaces = new ArrayList<Interface>();
+				return this.readSectionHeader();
+			}
+			if (TCPDUMP_MAGIC == magic || TCPDUMP_MAGIC_NANOS == magic)
+			{ this.swapped = false; }
+			else if (TCPDUMP_MAGIC == Integer.reverseBytes(magic)
+					|| TCPDUMP_MAGIC_NANOS == Integer.reverseBytes(magic))
+			{
+				this.swapped = true;
+				magic = Integer.reverseBytes(magic);
+			}
+			else
+			{
+				System.err.println("Not a PCAP file");
+				return false;
+			}
+			this.nanosPerTick = (TCPDUMP_MAGIC_NANOS == magic) ? 1 : 1000;
+
+			// Skip version, time zone, and significant figures
+			this.inStream.readFully(new byte[12]);
+			this.snapLen = this.readInt();
+			if (this.snapLen <= 0 || this.snapLen > MAX_RECORD_LENGTH)
+			{ this.snapLen = MAX_RECORD_LENGTH; }
+			int linkType = this.readInt();
+			if (linkType != LINKTYPE_ETHERNET)
+			{
+				System.err.println(String.format(
+						"Unsupported PCAP link type %d", linkType));
+				return false;
+			}
+			return true;
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Read the next frame from the file.
+	 * @return the next frame; null at the end of the file or if the frame
+	 *         could not be read
+	 */
+	public Record read()
+	{
+		if (this.pcapng)
+		{ return this.readBlocks(); }
+		try
+		{
+			long sec = this.readInt() & 0xffffffffL;
+			long subsec = this.readInt() & 0xffffffffL;
+			int capturedLength = this.readInt();
+			this.readInt(); // Original length
+			if (capturedLength < 0 || capturedLength > this.snapLen)
+			{
+				System.err.println(String.format(
+						"Invalid PCAP record length %d", capturedLength));
+				return null;
+			}
+
+			byte[] frame = new byte[capturedLength];
+			this.inStream.readFully(frame);
+			return new Record(sec * 1000000000L + subsec * this.nanosPerTick,
+					frame, null, DumpFile.DIRECTION_UNKNOWN);
+		}
+		catch (EOFException e)
+		{ return null; }
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Read the rest of a section header block, whose type has been read, and
+	 * start a new section.
+	 */
+	private boolean readSectionHeader() throws IOException
+	{
+		int length = this.inStream.readInt();
+		int byteOrderMagic = this.inStream.readInt();
+		if (PCAPNG_BYTE_ORDER_MAGIC == byteOrderMagic)
+		{ this.swapped = false; }
+		else if (PCAPNG_BYTE_ORDER_MAGIC == Integer.reverseBytes(byteOrderMagic))
+		{
+			this.swapped = true;
+			length = Integer.reverseBytes(length);
+		}
+		else
+		{
+			System.err.println("Invalid pcapng byte-order magic");
+			return false;
+		}
+		if (length < 28 || length > MAX_RECORD_LENGTH || length % 4 != 0)
+		{
+			System.err.println("Invalid pcapng section header length " + length);
+			return false;
+		}
+
+		// Skip version, section length, options, and trailing length
+		this.inStream.readFully(new byte[length - 12]);
+		this.interfaces.clear();
+		return true;
+	}
+
+	/**
+	 * Read pcapng blocks until a packet block of an Ethernet interface.
+	 */
+	private Record readBlocks()
+	{
+		try
+		{
+			while (true)
+			{
+				int type;
+				try
+				{ type = this.inStream.readInt(); }
+				catch (EOFException e)
+				{ return null; }
+
+				if (PCAPNG_SECTION_HEADER_BLOCK == type)
+				{
+					if (!this.readSectionHeader())
+					{ return null; }
+					continue;
+				}
+				if (this.swapped)
+				{ type = Integer.reverseBytes(type); }
+
+				int length = this.readInt();
+				if (length < 12 || length > MAX_RECORD_LENGTH
+						|| length % 4 != 0)
+				{
+					System.err.println("Invalid pcapng block length " + length);
+					return null;
+				}
+				byte[] body = new byte[length - 12];
+				this.inStream.readFully(body);
+				this.readInt(); // Trailing length
+				ByteBuffer buf = ByteBuffer.wrap(body).order(this.swapped
+						? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+				if (PCAPNG_INTERFACE_DESCRIPTION_BLOCK == type)
+				{ this.interfaces.add(readInterface(buf)); }
+				else if (PCAPNG_ENHANCED_PACKET_BLOCK == type)
+				{
+					Record record = this.readEnhancedPacket(buf);
+					if (record != null)
+					{ return record; }
+				}
+				else if (PCAPNG_SIMPLE_PACKET_BLOCK == type
+						&& !this.interfaces.isEmpty()
+						&& LINKTYPE_ETHERNET == this.interfaces.get(0).linkType)
+				{
+					int length0 = buf.getInt();
+					byte[] frame = new byte[Math.min(length0, buf.remaining())];
+					buf.get(frame);
+					return new Record(0, frame, this.interfaces.get(0).name,
+							DumpFile.DIRECTION_UNKNOWN);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+		catch (RuntimeException e)
+		{
+			System.err.println("Invalid pcapng block: " + e);
+			return null;
+		}
+	}
+
+	private static Interface readInterface(ByteBuffer buf)
+	{
+		Interface iface = new Interface(buf.getShort() & 0xffff);
+		buf.position(8); // Reserved and snap length
+		while (buf.remaining() >= 4)
+		{
+			short code = buf.getShort();
+			int length = buf.getShort() & 0xffff;
+			if (PCAPNG_OPT_ENDOFOPT == code)
+			{ break; }
+			int end = buf.position() + ((length + 3) & ~3);
+			if (PCAPNG_IF_NAME == code)
+			{
+				iface.name = new String(buf.array(), buf.position(), length,
+						StandardCharsets.UTF_8).trim();
+			}
+			else if (PCAPNG_IF_TSRESOL == code && length >= 1)
+			{ iface.tsresol = buf.get(buf.position()) & 0xff; }
+			buf.position(end);
+		}
+		return iface;
+	}
+
+	/**
+	 * @return the frame of an enhanced packet block; null if it is not on an
+	 *         Ethernet interface
+	 */
+	private Record readEnhancedPacket(ByteBuffer buf)
+	{
+		int ifaceId = buf.getInt();
+		long timestamp = ((buf.getInt() & 0xffffffffL) << 32)
+				| (buf.getInt() & 0xffffffffL);
+		int capturedLength = buf.getInt();
+		buf.getInt(); // Original length
+		if (ifaceId < 0 || ifaceId >= this.interfaces.size())
+		{
+			System.err.println("Unknown pcapng interface " + ifaceId);
+			return null;
+		}
+		Interface iface = this.interfaces.get(ifaceId);
+		if (iface.linkType != LINKTYPE_ETHERNET)
+		{ return null; }
+
+		byte[] frame = new byte[capturedLength];
+		buf.get(frame);
+		buf.position(buf.position() + ((-capturedLength) & 3));
+
+		int direction = DumpFile.DIRECTION_UNKNOWN;
+		while (buf.remaining() >= 4)
+		{
+			short code = buf.getShort();
+			int length = buf.getShort() & 0xffff;
+			if (PCAPNG_OPT_ENDOFOPT == code)
+			{ break; }
+			int end = buf.position() + ((length + 3) & ~3);
+			if (PCAPNG_EPB_FLAGS == code && length >= 4)
+			{ direction = buf.getInt(buf.position()) & 0x3; }
+			buf.position(end);
+		}
+		return new Record(toNanos(timestamp, iface.tsresol), frame,
+				iface.name, direction);
+	}
+
+	/**
+	 * @return a pcapng timestamp in nanoseconds since the epoch
+	 */
+	private static long toNanos(long timestamp, int tsresol)
+	{
+		if ((tsresol & 0x80) != 0)
+		{
+			int shift = tsresol & 0x7f;
+			if (shift >= 63)
+			{ return 0; }
+			long seconds = timestamp >>> shift;
+			long fraction = timestamp & ((1L << shift) - 1);
+			return seconds * 1000000000L
+					+ (long)(fraction * 1e9 / (double)(1L << shift));
+		}
+		long nanos = timestamp;
+		for (int i = tsresol; i < 9; i++)
+		{ nanos *= 10; }
+		for (int i = 9; i < tsresol; i++)
+		{ nanos /= 10; }
+		return nanos;
+	}
+
+	private int readInt() throws IOException
+	{
+		int value = this.inStream.readInt();
+		return this.swapped ? Integer.reverseBytes(value) : value;
+	}
+
+	public void close()
+	{
+		try { this.inStream.close(); } catch (IOException e) { }
+	}
+}
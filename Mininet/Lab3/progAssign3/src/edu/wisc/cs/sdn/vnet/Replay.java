@@ -0,0 +1,265 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.packet.BasePacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.rt.Router;
+import edu.wisc.cs.sdn.vnet.sw.Switch;
+import edu.wisc.cs.sdn.vnet.vns.LoopbackTransport;
+import edu.wisc.cs.sdn.vnet.vns.VNSComm;
+
+/**
+ * Replays the frames of a PCAP or pcapng file through a router or switch
+ * without a server, and reports how fast they were processed. Each frame is
+ * passed to the device as if it had been received on the interface it was
+ * captured on, if the file records one the device has, else on the interface
+ * whose MAC address it is sent to, or on a default interface. Frames the file
+ * records as sent are not replayed.
+ */
+public class Replay
+{
+	public static void main(String[] args)
+	{
+		String host = null;
+		String routeTableFile = null;
+		String arpCacheFile = null;
+		String inputFile = null;
+		String outputFile = null;
+		String defaultIfaceName = null;
+		List<String> ifaceSpecs = new ArrayList<String>();
+		int loops = 1;
+		boolean timed = false;
+
+		// Parse arguments
+		for(int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-h"))
+			{
+				usage();
+				return;
+			}
+			else if (arg.equals("-v"))
+			{ host = args[++i]; }
+			else if (arg.equals("-r"))
+			{ routeTableFile = args[++i]; }
+			else if (arg.equals("-a"))
+			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-f"))
+			{ inputFile = args[++i]; }
+			else if (arg.equals("-o"))
+			{ outputFile = args[++i]; }
+			else if (arg.equals("-i"))
+			{ ifaceSpecs.add(args[++i]); }
+			else if (arg.equals("-d"))
+			{ defaultIfaceName = args[++i]; }
+			else if (arg.equals("-n"))
+			{ loops = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-x"))
+			{ timed = true; }
+		}
+
+		if (null == host || null == inputFile || ifaceSpecs.isEmpty())
+		{
+			usage();
+			return;
+		}
+
+		// Read all frames up front, so reading does not count towards
+		// processing time
+		PcapReader reader = PcapReader.open(inputFile);
+		if (null == reader)
+		{
+			System.err.println("Error opening up capture file "+inputFile);
+			return;
+		}
+		List<PcapReader.Record> records = new ArrayList<PcapReader.Record>();
+		for (PcapReader.Record record = reader.read(); record != null;
+				record = reader.read())
+		{ records.add(record); }
+		reader.close();
+
+		// Open PCAP dump file for logging packets sent by the device
+		DumpFile dump = null;
+		if (outputFile != null)
+		{
+			dump = DumpFile.open(outputFile);
+			if (null == dump)
+			{
+				System.err.println("Error opening up dump file "+outputFile);
+				return;
+			}
+		}
+
+		Device dev;
+		if (host.startsWith("s"))
+		{ dev = new Switch(host, null); }
+		else if (host.startsWith("r"))
+		{ dev = new Router(host, null); }
+		else
+		{
+			System.err.println("Device name must start with 's' or 'r'");
+			return;
+		}
+
+		BasePacket.setLazyDecoding(true);
+		LoopbackTransport transport = new LoopbackTransport(dump);
+		VNSComm vnsComm = new VNSComm(dev, transport);
+
+		// Configure interfaces, as the server would
+		Map<Long,String> ifaceNamesByMac = new HashMap<Long,String>();
+		for (String spec : ifaceSpecs)
+		{
+			String[] fields = spec.split(",");
+			if (fields.length != 4)
+			{
+				System.err.println("Invalid interface "+spec);
+				return;
+			}
+			Iface iface = dev.addInterface(fields[0]);
+			iface.setIpAddress(IPv4.toIPv4Address(fields[1]));
+			iface.setSubnetMask(IPv4.toIPv4Address(fields[2]));
+			iface.setMacAddress(MACAddress.valueOf(fields[3]));
+			ifaceNamesByMac.put(iface.getMacAddress().toLong(), fields[0]);
+		}
+		if (defaultIfaceName != null && null == dev.getInterface(defaultIfaceName))
+		{
+			System.err.println("Unknown default interface "+defaultIfaceName);
+			return;
+		}
+
+		if (dev instanceof Router)
+		{
+			// Read static route table
+			if (routeTableFile != null)
+			{ ((Router)dev).loadRouteTable(routeTableFile); }
+			else
+			{ ((Router)dev).startRip(); }
+
+			// Read static ACP cache
+			if (arpCacheFile != null)
+			{ ((Router)dev).loadArpCache(arpCacheFile); }
+		}
+
+		// Choose the interface each frame is received on
+		String[] inIfaceNames = new String[records.size()];
+		int skipped = 0;
+		for (int i = 0; i < records.size(); i++)
+		{
+			PcapReader.Record record = records.get(i);
+			if (DumpFile.DIRECTION_OUTBOUND == record.getDirection())
+			{
+				skipped++;
+				continue;
+			}
+			byte[] frame = record.getFrame();
+			String name = null;
+			if (record.getInterfaceName() != null
+					&& dev.getInterface(record.getInterfaceName()) != null)
+			{ name = record.getInterfaceName(); }
+			else if (frame.length >= 6)
+			{ name = ifaceNamesByMac.get(MACAddress.valueOf(
+					Arrays.copyOf(frame, 6)).toLong()); }
+			inIfaceNames[i] = (name != null) ? name : defaultIfaceName;
+			if (null == inIfaceNames[i])
+			{ skipped++; }
+		}
+
+		System.out.println(String.format("<-- Replaying %d frames -->",
+				records.size() - skipped));
+		// Queue the commands of every loop up front, so building them does not
+		// count towards the allocation per packet
+		int[] due = new int[(records.size() - skipped) * loops];
+		int queued = 0;
+		for (int loop = 0; loop < loops; loop++)
+		{
+			for (int i = 0; i < records.size(); i++)
+			{
+				if (null == inIfaceNames[i])
+				{ continue; }
+				transport.inject(inIfaceNames[i], records.get(i).getFrame());
+				due[queued++] = i;
+			}
+		}
+
+		long[] latencies = new long[queued];
+		int count = 0;
+		com.sun.management.ThreadMXBean threadBean =
+				(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long startBytes = threadBean.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		long loopStart = start;
+		for (int n = 0; n < queued; n++)
+		{
+			// Wait until the frame is due, if replaying at original timing
+			if (timed)
+			{
+				if (n > 0 && due[n] <= due[n - 1])
+				{ loopStart = System.nanoTime(); }
+				long dueTime = loopStart + records.get(due[n]).getTimestampNanos()
+						- records.get(0).getTimestampNanos();
+				long wait = dueTime - System.nanoTime();
+				if (wait > 0)
+				{
+					try
+					{ Thread.sleep(wait / 1000000, (int)(wait % 1000000)); }
+					catch (InterruptedException e)
+					{ break; }
+				}
+			}
+
+			long received = System.nanoTime();
+			vnsComm.readFromServer();
+			latencies[count++] = System.nanoTime() - received;
+		}
+		long elapsed = System.nanoTime() - start;
+		long bytes = threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+
+		vnsComm.stopPipeline();
+		dev.destroy();
+		if (dump != null)
+		{ dump.close(); }
+
+		// Report results
+		Arrays.sort(latencies, 0, count);
+		System.out.println(String.format(
+				"Replayed %d frames (%d skipped, sent or no interface) in %.1f ms: %.0f packets/s",
+				count, skipped * loops, elapsed / 1e6,
+				(elapsed > 0) ? count * 1e9 / elapsed : 0.0));
+		if (count > 0)
+		{
+			System.out.println(String.format(
+					"Latency: p50 %.2f us, p99 %.2f us, max %.2f us",
+					latencies[(int)(count * 0.50)] / 1e3,
+					latencies[Math.min(count - 1, (int)(count * 0.99))] / 1e3,
+					latencies[count - 1] / 1e3));
+			System.out.println(String.format(
+					"Allocated: %.1f bytes/packet", (double)bytes / count));
+		}
+		System.out.println(String.format("Sent %d frames",
+				transport.getFramesWritten()));
+
+		// Make sure no thread left by the device keeps the JVM running
+		System.exit(0);
+	}
+
+	static void usage()
+	{
+		System.out.println("VNet offline replay");
+		System.out.println("Replay -v host -f pcap_or_pcapng_file -i name,ip,mask,mac [-i ...]");
+		System.out.println("     [-d default_iface] [-r routing_table] [-a arp_cache]");
+		System.out.println("     [-o output_pcap] [-n loops] [-x] [-h]");
+		System.out.println("  frames are received on the interface they were captured on, the");
+		System.out.println("  interface whose MAC address they are sent to, or default_iface;");
+		System.out.println("  frames captured as sent are skipped; -x replays at the captured timing");
+	}
+}
@@ -0,0 +1,244 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timing wheel that runs the timeouts of all tables of a device on a
+ * single thread. Time advances in ticks; a timeout is kept in the bucket of
+ * the tick it expires at, modulo the number of buckets, so each tick only
+ * looks at the timeouts in one bucket rather than at every entry of every
+ * table.
+ * <p>
+ * Tables whose entries are refreshed often should not cancel and reschedule
+ * a timeout on every refresh. Instead, the task of the timeout checks whether
+ * the entry has really expired, and if not schedules a new timeout for the
+ * time remaining.
+ */
+public class TimingWheel
+{
+	/** Default length (in milliseconds) of a tick */
+	public static final long DEFAULT_TICK = 100;
+
+	/** Default number of buckets */
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+	/** A scheduled task */
+	public static class Timeout
+	{
+		private Runnable task;
+
+		/** Tick at which the task runs next */
+		private long deadline;
+
+		/** Number of ticks between runs of the task; 0 if it runs once */
+		private long period;
+
+		private volatile boolean cancelled;
+
+		private Timeout(Runnable task, long deadline, long period)
+		{
+			this.task = task;
+			this.deadline = deadline;
+			this.period = period;
+			this.cancelled = false;
+		}
+
+		/**
+		 * Prevent the task from running again.
+		 */
+		public void cancel()
+		{ this.cancelled = true; }
+
+		/**
+		 * @return true if the task was cancelled
+		 */
+		public boolean isCancelled()
+		{ return this.cancelled; }
+	}
+
+	/** Length (in nanoseconds) of a tick */
+	private long tickNanos;
+
+	/** Timeouts by the tick they expire at, modulo the number of buckets;
+	 *  guarded by this */
+	private List<List<Timeout>> buckets;
+	private int mask;
+
+	/** Last tick whose timeouts were run; guarded by this */
+	private long currentTick;
+
+	/** Timeouts that expired in the current tick; only used by the timer
+	 *  thread */
+	private List<Timeout> expired;
+
+	private Thread timerThread;
+	private boolean closed;
+
+	/**
+	 * Create a timing wheel with the default tick and number of buckets, and
+	 * start its thread.
+	 * @param name name of the thread
+	 */
+	public TimingWheel(String name)
+	{ this(name, DEFAULT_TICK, DEFAULT_WHEEL_SIZE); }
+
+	/**
+	 * Create a timing wheel and start its thread.
+	 * @param name name of the thread
+	 * @param tick length (in milliseconds) of a tick
+	 * @param wheelSize number of buckets; rounded up to a power of two
+	 */
+	public TimingWheel(String name, long tick, int wheelSize)
+	{
+		this.tickNanos = tick * 1000000L;
+		int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+		this.buckets = new ArrayList<List<Timeout>>(size);
+		for (int i = 0; i < size; i++)
+		{ this.buckets.add(new ArrayList<Timeout>()); }
+		this.mask = size - 1;
+		this.currentTick = 0;
+		this.expired = new ArrayList<Timeout>();
+		this.closed = false;
+
+		this.timerThread = new Thread(new Runnable() {
+			public void run()
+			{ runTicks(); }
+		}, name);
+		this.timerThread.setDaemon(true);
+		this.timerThread.start();
+	}
+
+	/**
+	 * Run a task once after a delay.
+	 * @param task task to run, on the timer thread
+	 * @param delay time (in milliseconds) after which the task runs; rounded
+	 *        up to a whole number of ticks
+	 * @return the timeout, which can be cancelled
+	 */
+	public Timeout schedule(Runnable task, long delay)
+	{ return this.schedule(task, delay, 0); }
+
+	/**
+	 * Run a task after a delay, and then periodically.
+	 * @param task task to run, on the timer thread
+	 * @param delay time (in milliseconds) after which the task runs first
+	 * @param period time (in milliseconds) between runs of the task; 0 to
+	 *        run it once
+	 * @return the timeout, which can be cancelled
+	 */
+	public synchronized Timeout schedule(Runnable task, long delay,
+			long period)
+	{
+		Timeout timeout = new Timeout(task,
+				this.currentTick + this.toTicks(delay),
+				(period > 0) ? this.toTicks(period) : 0);
+		this.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * @return number of ticks in a time, rounded up and at least one
+	 */
+	private long toTicks(long millis)
+	{
+		return Math.max(1, (millis * 1000000L + this.tickNanos - 1)
+				/ this.tickNanos);
+	}
+
+	/**
+	 * Add a timeout to the bucket of its deadline; must be called with the
+	 * lock held.
+	 */
+	private void add(Timeout timeout)
+	{ this.buckets.get((int)(timeout.deadline & this.mask)).add(timeout); }
+
+	/**
+	 * Advance a tick at a time, running the timeouts that expire, until the
+	 * wheel is stopped.
+	 */
+	private void runTicks()
+	{
+		long start = System.nanoTime();
+		long tick = 0;
+		while (true)
+		{
+			synchronized(this)
+			{
+				// Wait for the next tick
+				long wait;
+				while (!this.closed && (wait = start + (tick + 1)
+						* this.tickNanos - System.nanoTime()) > 0)
+				{
+					try
+					{ this.wait(wait / 1000000, (int)(wait % 1000000)); }
+					catch (InterruptedException e)
+					{ this.closed = true; }
+				}
+				if (this.closed)
+				{ break; }
+				tick++;
+				this.currentTick = tick;
+
+				// Take the timeouts that expire, keeping those due in later
+				// rotations of the wheel
+				List<Timeout> bucket = this.buckets.get((int)(tick & this.mask));
+				int kept = 0;
+				for (int i = 0; i < bucket.size(); i++)
+				{
+					Timeout timeout = bucket.get(i);
+					if (timeout.cancelled)
+					{ continue; }
+					if (timeout.deadline <= tick)
+					{ this.expired.add(timeout); }
+					else
+					{ bucket.set(kept++, timeout); }
+				}
+				bucket.subList(kept, bucket.size()).clear();
+			}
+
+			// Run tasks without the lock, so they may schedule timeouts
+			for (Timeout timeout : this.expired)
+			{
+				try
+				{ timeout.task.run(); }
+				catch (RuntimeException e)
+				{ e.printStackTrace(); }
+
+				if (timeout.period > 0 && !timeout.cancelled)
+				{
+					synchronized(this)
+					{
+						timeout.deadline = tick + timeout.period;
+						this.add(timeout);
+					}
+				}
+			}
+			this.expired.clear();
+		}
+	}
+
+	/**
+	 * @return number of timeouts that are scheduled or cancelled but not yet
+	 *         removed
+	 */
+	public synchronized int size()
+	{
+		int size = 0;
+		for (List<Timeout> bucket : this.buckets)
+		{ size += bucket.size(); }
+		return size;
+	}
+
+	/**
+	 * Stop the timer thread; scheduled tasks no longer run.
+	 */
+	public void stop()
+	{
+		synchronized(this)
+		{
+			this.closed = true;
+			this.notifyAll();
+		}
+	}
+}
@@ -4,29 +4,154 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import edu.wisc.cs.sdn.vnet.TimingWheel;
+
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
 /**
  * A cache of MAC address to IP address mappings.
+ * <p>
+ * Entries learned from ARP replies expire after a timeout; entries loaded
+ * from a file are static and never expire. The cache holds a bounded number
+ * of entries; when it is full, the least recently used learned entry is
+ * evicted, as approximated by the CLOCK algorithm. Shortly before a learned
+ * entry that is in use expires, a refresh listener is asked to re-request it,
+ * so busy next hops do not miss the cache. If the cache is given a timing
+ * wheel, expired entries are removed when they expire rather than when they
+ * are evicted.
+ * <p>
+ * Entries are stored in primitive arrays with open addressing, so lookups
+ * allocate nothing. Lookups are optimistic reads that only take a lock if
+ * they race with an update.
  * @author Aaron Gember-Jacobson
  */
 public class ArpCache
-{		
-	/** Entries in the cache; maps an IP address to an entry */
-	private Map<Integer,ArpEntry> entries;
-	
+{
+	/** Default time (in milliseconds) learned entries are valid for */
+	public static final long DEFAULT_TIMEOUT = 60 * 1000;
+
+	/** Default maximum number of entries */
+	public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+	/** Value returned by lookupMac if an IP address is not in the cache */
+	public static final long NO_MAC = -1;
+
+	/** Fraction of the timeout after which an entry in use is refreshed */
+	private static final double REFRESH_AGE = 0.75;
+
+	/** Line of an ARP cache file: an IP address and a MAC address */
+	private static final Pattern ENTRY_PATTERN = Pattern.compile(
+			"(\\d+\\.\\d+\\.\\d+\\.\\d+)\\s+"
+			+ "([a-fA-F0-9]{2}(?::[a-fA-F0-9]{2}){5})");
+
+	/** Flags of a slot */
+	private static final byte USED = 1;
+	private static final byte STATIC = 2;
+	private static final byte REFRESHING = 4;
+
+	/** Listener asked to refresh entries that are about to expire */
+	public interface RefreshListener
+	{
+		/**
+		 * Re-request the MAC address of an IP address whose entry is about to
+		 * expire. Called at most once per entry and timeout, on the thread
+		 * that looked the entry up.
+		 * @param ip IP address to re-request
+		 */
+		public void refresh(int ip);
+	}
+
+	/** Time (in nanoseconds) learned entries are valid for */
+	private long timeoutNanos;
+
+	/** Maximum number of entries */
+	private int maxEntries;
+
+	/** Slots of the open addressing table, by field; the number of slots is a
+	 *  power of two */
+	private int[] ips;
+	private long[] macs;
+	private long[] expires;
+	private long[] timesAdded;
+	private byte[] flags;
+	private long[] timerIds;
+	private int mask;
+
+	/** Whether each slot was used since the clock hand last passed it; set
+	 *  without holding the lock */
+	private boolean[] referenced;
+
+	/** Position of the clock hand */
+	private int hand;
+
+	/** Number of entries */
+	private int size;
+
+	/** Guards the slots */
+	private StampedLock lock;
+
+	private volatile RefreshListener refreshListener;
+
+	/** Timing wheel on which learned entries are removed; null if they are
+	 *  only evicted */
+	private volatile TimingWheel timingWheel;
+
+	/** Identifier of the last timeout scheduled; guarded by the lock */
+	private long lastTimerId;
+
 	/**
 	 * Initializes an empty ARP cache for a router.
 	 */
 	public ArpCache()
-	{ this.entries = new ConcurrentHashMap<Integer,ArpEntry>(); }
-	
+	{ this(DEFAULT_TIMEOUT, DEFAULT_MAX_ENTRIES); }
+
+	/**
+	 * Initializes an empty ARP cache for a router.
+	 * @param timeout time (in milliseconds) learned entries are valid for
+	 * @param maxEntries maximum number of entries
+	 */
+	public ArpCache(long timeout, int maxEntries)
+	{
+		this.timeoutNanos = timeout * 1000000L;
+		this.maxEntries = maxEntries;
+		int slots = Integer.highestOneBit(Math.max(2 * maxEntries, 2) - 1) << 1;
+		this.ips = new int[slots];
+		this.macs = new long[slots];
+		this.expires = new long[slots];
+		this.timesAdded = new long[slots];
+		this.flags = new byte[slots];
+		this.timerIds = new long[slots];
+		this.referenced = new boolean[slots];
+		this.mask = slots - 1;
+		this.hand = 0;
+		this.size = 0;
+		this.lock = new StampedLock();
+		this.refreshListener = null;
+		this.timingWheel = null;
+		this.lastTimerId = 0;
+	}
+
+	/**
+	 * @param listener listener asked to refresh entries that are about to
+	 *        expire; null to let entries expire
+	 */
+	public void setRefreshListener(RefreshListener listener)
+	{ this.refreshListener = listener; }
+
+	/**
+	 * @param timingWheel timing wheel on which learned entries are removed
+	 *        once they expire; null to only evict them when the cache is full
+	 */
+	public void setTimingWheel(TimingWheel timingWheel)
+	{ this.timingWheel = timingWheel; }
+
 	/**
 	 * Insert an entry in the ARP cache for a specific IP address, MAC address
 	 * pair.
@@ -34,15 +159,357 @@ public class ArpCache
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public void insert(MACAddress mac, int ip)
-	{ this.entries.put(ip, new ArpEntry(mac, ip)); }
-	
+	{ this.insert(mac.toLong(), ip, false); }
+
+	/**
+	 * Insert an entry in the ARP cache for a specific IP address, MAC address
+	 * pair, e.g. from an ARP reply.
+	 * @param mac MAC address corresponding to IP address, as 6 bytes
+	 * @param ip IP address corresponding to MAC address
+	 */
+	public void insert(byte[] mac, int ip)
+	{
+		long value = 0;
+		for (int i = 0; i < MACAddress.MAC_ADDRESS_LENGTH; i++)
+		{ value = (value << 8) | (mac[i] & 0xff); }
+		this.insert(value, ip, false);
+	}
+
+	/**
+	 * Insert or refresh an entry. A learned entry does not replace a static
+	 * one.
+	 * @param mac MAC address corresponding to IP address
+	 * @param ip IP address corresponding to MAC address
+	 * @param isStatic whether the entry never expires
+	 * @return true if the entry was inserted, false if the cache is full of
+	 *         static entries
+	 */
+	private boolean insert(long mac, int ip, boolean isStatic)
+	{
+		long now = System.nanoTime();
+		TimingWheel wheel = this.timingWheel;
+		long timerId = 0;
+		long stamp = this.lock.writeLock();
+		try
+		{
+			int slot = this.find(ip);
+			if (slot < 0)
+			{
+				if (this.size >= this.maxEntries && !this.evict(now))
+				{ return false; }
+				slot = this.find(ip);
+				slot = ~slot;
+				this.ips[slot] = ip;
+				this.timerIds[slot] = 0;
+				this.size++;
+			}
+			else if ((this.flags[slot] & STATIC) != 0 && !isStatic)
+			{ return true; }
+
+			// A refreshed entry keeps its timeout, which finds it has not
+			// expired and reschedules itself
+			if (isStatic)
+			{ this.timerIds[slot] = 0; }
+			else if (wheel != null && 0 == this.timerIds[slot])
+			{
+				timerId = ++this.lastTimerId;
+				this.timerIds[slot] = timerId;
+			}
+
+			this.macs[slot] = mac;
+			this.expires[slot] = isStatic ? Long.MAX_VALUE
+					: now + this.timeoutNanos;
+			this.timesAdded[slot] = System.currentTimeMillis();
+			this.flags[slot] = (byte)(USED | (isStatic ? STATIC : 0));
+			this.referenced[slot] = true;
+		}
+		finally
+		{ this.lock.unlockWrite(stamp); }
+
+		if (timerId != 0)
+		{ this.scheduleTimeout(wheel, ip, timerId, this.timeoutNanos); }
+		return true;
+	}
+
+	/**
+	 * Remove a learned entry once it expires.
+	 * @param wheel timing wheel to schedule the timeout on
+	 * @param ip IP address of the entry
+	 * @param timerId identifier of the timeout, which is ignored if the entry
+	 *        has since been removed or replaced
+	 * @param delay time (in nanoseconds) until the entry expires
+	 */
+	private void scheduleTimeout(final TimingWheel wheel, final int ip,
+			final long timerId, long delay)
+	{
+		wheel.schedule(new Runnable() {
+			public void run()
+			{ expire(wheel, ip, timerId); }
+		}, (delay + 999999) / 1000000);
+	}
+
+	/**
+	 * Remove an entry if it has expired, or otherwise check it again once it
+	 * may have.
+	 */
+	private void expire(TimingWheel wheel, int ip, long timerId)
+	{
+		long now = System.nanoTime();
+		long remaining;
+		long stamp = this.lock.writeLock();
+		try
+		{
+			int slot = this.find(ip);
+			if (slot < 0 || this.timerIds[slot] != timerId)
+			{ return; }
+			if (this.isExpired(slot, now))
+			{
+				this.removeSlot(slot);
+				return;
+			}
+			remaining = this.expires[slot] - now;
+		}
+		finally
+		{ this.lock.unlockWrite(stamp); }
+		this.scheduleTimeout(wheel, ip, timerId, remaining);
+	}
+
+	/**
+	 * Find the slot of an IP address; must be called with the lock held or
+	 * within an optimistic read.
+	 * @return the slot holding the IP address; if there is none, the
+	 *         complement of the empty slot where it would be inserted
+	 */
+	private int find(int ip)
+	{
+		int slot = this.home(ip);
+		for (int i = 0; i <= this.mask; i++)
+		{
+			if (0 == (this.flags[slot] & USED))
+			{ return ~slot; }
+			if (this.ips[slot] == ip)
+			{ return slot; }
+			slot = (slot + 1) & this.mask;
+		}
+		return ~slot;
+	}
+
+	/**
+	 * @return slot an IP address is inserted at if there are no collisions
+	 */
+	private int home(int ip)
+	{
+		int hash = ip * 0x9e3779b9;
+		return (hash ^ (hash >>> 16)) & this.mask;
+	}
+
+	/**
+	 * @return true if the entry in a slot is learned and has expired
+	 */
+	private boolean isExpired(int slot, long now)
+	{
+		return 0 == (this.flags[slot] & STATIC)
+				&& now - this.expires[slot] >= 0;
+	}
+
+	/**
+	 * Evict an expired entry or, failing that, the learned entry the clock
+	 * hand finds unused since it last passed. Must be called with the write
+	 * lock held.
+	 * @return true if an entry was evicted
+	 */
+	private boolean evict(long now)
+	{
+		// Two sweeps clear every reference bit, so a victim is found unless
+		// all entries are static
+		for (int i = 0; i < 2 * (this.mask + 1); i++)
+		{
+			int slot = this.hand;
+			this.hand = (this.hand + 1) & this.mask;
+			byte f = this.flags[slot];
+			if (0 == (f & USED) || (f & STATIC) != 0)
+			{ continue; }
+			if (this.referenced[slot] && !this.isExpired(slot, now))
+			{
+				this.referenced[slot] = false;
+				continue;
+			}
+			this.removeSlot(slot);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Remove the entry in a slot, shifting back entries that follow it so
+	 * they remain reachable. Must be called with the write lock held.
+	 */
+	private void removeSlot(int slot)
+	{
+		this.size--;
+		int hole = slot;
+		for (int next = (hole + 1) & this.mask;
+				(this.flags[next] & USED) != 0; next = (next + 1) & this.mask)
+		{
+			// Move the entry into the hole if its home slot does not lie
+			// (cyclically) between the hole and the entry
+			int home = this.home(this.ips[next]);
+			if (((next - home) & this.mask) >= ((next - hole) & this.mask))
+			{
+				this.ips[hole] = this.ips[next];
+				this.macs[hole] = this.macs[next];
+				this.expires[hole] = this.expires[next];
+				this.timesAdded[hole] = this.timesAdded[next];
+				this.flags[hole] = this.flags[next];
+				this.timerIds[hole] = this.timerIds[next];
+				this.referenced[hole] = this.referenced[next];
+				hole = next;
+			}
+		}
+		this.flags[hole] = 0;
+		this.timerIds[hole] = 0;
+		this.referenced[hole] = false;
+	}
+
+	/**
+	 * Look up the MAC address of an IP address without allocating.
+	 * @param ip IP address whose MAC address is desired
+	 * @return the MAC address; NO_MAC if the cache has no valid entry for the
+	 *         IP address
+	 */
+	public long lookupMac(int ip)
+	{
+		long stamp = this.lock.tryOptimisticRead();
+		int slot = this.find(ip);
+		long mac = (slot >= 0) ? this.macs[slot] : NO_MAC;
+		long expires = (slot >= 0) ? this.expires[slot] : 0;
+		byte f = (slot >= 0) ? this.flags[slot] : 0;
+		if (!this.lock.validate(stamp))
+		{
+			stamp = this.lock.readLock();
+			try
+			{
+				slot = this.find(ip);
+				mac = (slot >= 0) ? this.macs[slot] : NO_MAC;
+				expires = (slot >= 0) ? this.expires[slot] : 0;
+				f = (slot >= 0) ? this.flags[slot] : 0;
+			}
+			finally
+			{ this.lock.unlockRead(stamp); }
+		}
+		if (slot < 0)
+		{ return NO_MAC; }
+
+		this.referenced[slot] = true;
+		if ((f & STATIC) != 0)
+		{ return mac; }
+		long now = System.nanoTime();
+		if (now - expires >= 0)
+		{ return NO_MAC; }
+
+		// Refresh the entry once, if it is about to expire
+		if ((f & REFRESHING) == 0 && expires - now
+				<= (long)(this.timeoutNanos * (1 - REFRESH_AGE)))
+		{ this.refresh(ip); }
+		return mac;
+	}
+
+	/**
+	 * Mark an entry as being refreshed and ask the listener to refresh it, if
+	 * no other thread has done so.
+	 */
+	private void refresh(int ip)
+	{
+		RefreshListener listener = this.refreshListener;
+		if (null == listener)
+		{ return; }
+
+		long stamp = this.lock.writeLock();
+		try
+		{
+			int slot = this.find(ip);
+			if (slot < 0 || (this.flags[slot] & REFRESHING) != 0)
+			{ return; }
+			this.flags[slot] |= REFRESHING;
+		}
+		finally
+		{ this.lock.unlockWrite(stamp); }
+		listener.refresh(ip);
+	}
+
 	/**
 	 * Checks if an IP->MAC mapping is the in the cache.
 	 * @param ip IP address whose MAC address is desired
 	 * @return the IP->MAC mapping from the cache; null if none exists 
 	 */
 	public ArpEntry lookup(int ip)
-	{ return this.entries.get(ip); }
+	{
+		long mac = this.lookupMac(ip);
+		if (NO_MAC == mac)
+		{ return null; }
+		long stamp = this.lock.readLock();
+		try
+		{
+			int slot = this.find(ip);
+			return new ArpEntry(MACAddress.valueOf(mac), ip,
+					(slot >= 0) ? this.timesAdded[slot] : 0);
+		}
+		finally
+		{ this.lock.unlockRead(stamp); }
+	}
+
+	/**
+	 * @return the entries that have not expired
+	 */
+	public List<ArpEntry> getEntries()
+	{
+		List<ArpEntry> entries = new ArrayList<ArpEntry>();
+		long now = System.nanoTime();
+		long stamp = this.lock.readLock();
+		try
+		{
+			for (int slot = 0; slot <= this.mask; slot++)
+			{
+				if (0 == (this.flags[slot] & USED)
+						|| this.isExpired(slot, now))
+				{ continue; }
+				entries.add(new ArpEntry(MACAddress.valueOf(this.macs[slot]),
+						this.ips[slot], this.timesAdded[slot],
+						(this.flags[slot] & STATIC) != 0));
+			}
+		}
+		finally
+		{ this.lock.unlockRead(stamp); }
+		return entries;
+	}
+
+	/**
+	 * Put back an entry saved in a snapshot. A learned entry that has not
+	 * expired since it was added is valid for a whole timeout again; one that
+	 * has is dropped.
+	 * @param entry the saved entry
+	 * @return false if the entry was dropped or the cache is full
+	 */
+	boolean restore(ArpEntry entry)
+	{
+		if (!entry.isStatic() && (System.currentTimeMillis()
+				- entry.getTimeAdded()) * 1000000 >= this.timeoutNanos)
+		{ return false; }
+		return this.insert(entry.getMac().toLong(), entry.getIp(),
+				entry.isStatic());
+	}
+
+	/**
+	 * @return number of entries, including expired ones not yet evicted
+	 */
+	public int size()
+	{
+		long stamp = this.lock.readLock();
+		try
+		{ return this.size; }
+		finally
+		{ this.lock.unlockRead(stamp); }
+	}
 	
 	/**
 	 * Populate the ARP cache from a file.
@@ -83,13 +550,7 @@ public class ArpCache
 			{ break; }
 			
 			// Parse fields for ARP entry
-			String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
-			String macByte = "[a-fA-F0-9]{2}";
-			String macPattern = "("+macByte+":"+macByte+":"+macByte
-					+":"+macByte+":"+macByte+":"+macByte+")";
-			Pattern pattern = Pattern.compile(String.format(
-                        "%s\\s+%s", ipPattern, macPattern));
-			Matcher matcher = pattern.matcher(line);
+			Matcher matcher = ENTRY_PATTERN.matcher(line);
 			if (!matcher.matches() || matcher.groupCount() != 2)
 			{
 				System.err.println("Invalid entry in ARP cache file");
@@ -117,8 +578,13 @@ public class ArpCache
 				return false;
 			}
 			
-			// Add an entry to the ACP cache
-			this.insert(mac, ip);
+			// Add a static entry to the ACP cache
+			if (!this.insert(mac.toLong(), ip, true))
+			{
+				System.err.println("Error loading ARP cache, too many entries");
+				try { reader.close(); } catch (IOException f) {};
+				return false;
+			}
 		}
 	
 		// Close the file
@@ -128,9 +594,23 @@ public class ArpCache
 	
 	public String toString()
 	{
-        String result = "IP\t\tMAC\n";
-        for (ArpEntry entry : this.entries.values())
-        { result += entry.toString()+"\n"; }
-	    return result;
+		StringBuilder result = new StringBuilder("IP\t\tMAC\n");
+		long now = System.nanoTime();
+		long stamp = this.lock.readLock();
+		try
+		{
+			for (int slot = 0; slot <= this.mask; slot++)
+			{
+				if (0 == (this.flags[slot] & USED)
+						|| this.isExpired(slot, now))
+				{ continue; }
+				result.append(new ArpEntry(MACAddress.valueOf(this.macs[slot]),
+						this.ips[slot], this.timesAdded[slot]).toString());
+				result.append("\n");
+			}
+		}
+		finally
+		{ this.lock.unlockRead(stamp); }
+		return result.toString();
 	}
 }
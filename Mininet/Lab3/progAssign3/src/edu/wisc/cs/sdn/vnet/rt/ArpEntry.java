@@ -18,6 +18,9 @@ public class ArpEntry
 	/** Time (in milliseconds since the epoch) the mapping was created */
 	private long timeAdded;
 	
+	/** Whether the mapping was loaded from a file and never expires */
+	private boolean isStatic;
+	
 	/**
 	 * Create an ARP table entry that maps an IP address to a MAC address.
 	 * @param mac MAC address corresponding to IP address
@@ -28,6 +31,33 @@ public class ArpEntry
 		this.mac = mac;
 		this.ip = ip;
 		this.timeAdded = System.currentTimeMillis();
+		this.isStatic = false;
+	}
+	
+	/**
+	 * Create an ARP table entry that maps an IP address to a MAC address.
+	 * @param mac MAC address corresponding to IP address
+	 * @param ip IP address corresponding to MAC address
+	 * @param timeAdded time (in milliseconds since the epoch) the mapping
+	 *        was created
+	 */
+	ArpEntry(MACAddress mac, int ip, long timeAdded)
+	{ this(mac, ip, timeAdded, false); }
+	
+	/**
+	 * Create an ARP table entry that maps an IP address to a MAC address.
+	 * @param mac MAC address corresponding to IP address
+	 * @param ip IP address corresponding to MAC address
+	 * @param timeAdded time (in milliseconds since the epoch) the mapping
+	 *        was created
+	 * @param isStatic whether the mapping never expires
+	 */
+	ArpEntry(MACAddress mac, int ip, long timeAdded, boolean isStatic)
+	{
+		this.mac = mac;
+		this.ip = ip;
+		this.timeAdded = timeAdded;
+		this.isStatic = isStatic;
 	}
 	
 	/**
@@ -48,6 +78,12 @@ public class ArpEntry
 	public long getTimeAdded()
 	{ return this.timeAdded; }
 	
+	/**
+	 * @return true if the mapping was loaded from a file and never expires
+	 */
+	public boolean isStatic()
+	{ return this.isStatic; }
+	
 	public String toString()
 	{
 		return String.format("%s \t%s", IPv4.fromIPv4Address(this.ip),
@@ -0,0 +1,428 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Resolves the MAC addresses of next hops that are not in the ARP cache.
+ * Packets to a next hop wait in a single pending resolution per next hop,
+ * which sends ARP requests until the next hop replies or a number of attempts
+ * have gone unanswered, waiting longer after each attempt. A single thread
+ * runs the retries of all pending resolutions.
+ * <p>
+ * The packets waiting for each next hop are bounded in number, and the
+ * packets waiting for all next hops are bounded in size; once a bound is
+ * reached, either the oldest waiting packets or new packets are dropped.
+ */
+public class ArpResolver
+{
+	/** Default number of ARP requests sent before giving up */
+	public static final int DEFAULT_ATTEMPTS = 3;
+
+	/** Default time (in milliseconds) to wait for a reply to the first
+	 *  request */
+	public static final long DEFAULT_RETRY_INTERVAL = 1000;
+
+	/** Default factor the wait grows by after each request */
+	public static final double DEFAULT_BACKOFF = 1.0;
+
+	/** Default maximum number of packets waiting for a next hop */
+	public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+	/** Default maximum number of bytes of packets waiting for all next
+	 *  hops */
+	public static final long DEFAULT_MAX_QUEUED_BYTES = 1024 * 1024;
+
+	/** Size assumed for packets whose length is not known */
+	private static final int DEFAULT_PACKET_SIZE = 1514;
+
+	/** Actions taken by the resolver */
+	public interface Handler
+	{
+		/**
+		 * Send an ARP request for a next hop.
+		 * @param nextHop IP address to resolve
+		 * @param outIface interface the next hop is reached through
+		 */
+		public void sendRequest(int nextHop, Iface outIface);
+
+		/**
+		 * Send the packets that waited for a next hop that was resolved.
+		 * @param nextHop IP address that was resolved
+		 * @param mac MAC address of the next hop, as 6 bytes
+		 * @param outIface interface the next hop is reached through
+		 * @param packets packets waiting for the next hop, in the order they
+		 *        arrived
+		 */
+		public void resolved(int nextHop, byte[] mac, Iface outIface,
+				List<WaitingPacket> packets);
+
+		/**
+		 * Report the packets that waited for a next hop that could not be
+		 * resolved as undeliverable.
+		 * @param nextHop IP address that could not be resolved
+		 * @param packets packets waiting for the next hop, in the order they
+		 *        arrived
+		 */
+		public void failed(int nextHop, List<WaitingPacket> packets);
+	}
+
+	/** A packet waiting for its next hop to be resolved */
+	public static class WaitingPacket
+	{
+		private Ethernet etherPacket;
+		private Iface inIface;
+		private int size;
+
+		WaitingPacket(Ethernet etherPacket, Iface inIface)
+		{
+			this.etherPacket = etherPacket;
+			this.inIface = inIface;
+
+			// Use the IP length, rather than serialize the packet
+			if (etherPacket.getPayload() instanceof IPv4)
+			{
+				this.size = 14 + (((IPv4)etherPacket.getPayload())
+						.getTotalLength() & 0xffff);
+			}
+			else
+			{ this.size = DEFAULT_PACKET_SIZE; }
+		}
+
+		/**
+		 * @return the packet, with its source MAC address already set
+		 */
+		public Ethernet getPacket()
+		{ return this.etherPacket; }
+
+		/**
+		 * @return interface the packet was received on
+		 */
+		public Iface getInIface()
+		{ return this.inIface; }
+	}
+
+	/** Resolution of a next hop that is in progress */
+	private class PendingResolution implements Runnable
+	{
+		int nextHop;
+		Iface outIface;
+		int attempts;
+		long retryInterval;
+		Deque<WaitingPacket> packets;
+		ScheduledFuture<?> retry;
+
+		PendingResolution(int nextHop, Iface outIface)
+		{
+			this.nextHop = nextHop;
+			this.outIface = outIface;
+			this.attempts = 0;
+			this.retryInterval = initialRetryInterval;
+			this.packets = new ArrayDeque<WaitingPacket>();
+			this.retry = null;
+		}
+
+		/** Retry, or give up once all attempts went unanswered */
+		public void run()
+		{ attempt(this); }
+	}
+
+	private Handler handler;
+
+	/** Number of ARP requests sent before giving up */
+	private int maxAttempts;
+
+	/** Time (in milliseconds) to wait for a reply to the first request */
+	private long initialRetryInterval;
+
+	/** Factor the wait grows by after each request */
+	private double backoff;
+
+	/** Maximum number of packets waiting for a next hop */
+	private int queueCapacity;
+
+	/** Maximum number of bytes of packets waiting for all next hops */
+	private long maxQueuedBytes;
+
+	/** Whether the oldest waiting packet is dropped to make room for a new
+	 *  one, rather than the new one */
+	private boolean dropOldest;
+
+	/** Resolutions in progress; maps a next hop IP address to its
+	 *  resolution; guarded by this */
+	private Map<Integer,PendingResolution> pending;
+
+	/** Number of bytes of packets waiting for all next hops; guarded by
+	 *  this */
+	private long queuedBytes;
+
+	/** Statistics; guarded by this */
+	private long enqueuedCount;
+	private long drainedCount;
+	private long droppedCount;
+	private long timedOutCount;
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Create a resolver with the default number of attempts and intervals.
+	 * @param handler actions taken by the resolver
+	 */
+	public ArpResolver(Handler handler)
+	{ this(handler, DEFAULT_ATTEMPTS, DEFAULT_RETRY_INTERVAL, DEFAULT_BACKOFF); }
+
+	/**
+	 * @param handler actions taken by the resolver
+	 * @param maxAttempts number of ARP requests sent before giving up
+	 * @param retryInterval time (in milliseconds) to wait for a reply to the
+	 *        first request
+	 * @param backoff factor the wait grows by after each request
+	 */
+	public ArpResolver(Handler handler, int maxAttempts, long retryInterval,
+			double backoff)
+	{
+		this.handler = handler;
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.initialRetryInterval = retryInterval;
+		this.backoff = backoff;
+		this.queueCapacity = DEFAULT_QUEUE_CAPACITY;
+		this.maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+		this.dropOldest = true;
+		this.pending = new HashMap<Integer,PendingResolution>();
+		this.queuedBytes = 0;
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+				1, new ThreadFactory() {
+					public Thread newThread(Runnable r)
+					{
+						Thread thread = new Thread(r, "vnet-arp");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.setRemoveOnCancelPolicy(true);
+		this.scheduler = executor;
+	}
+
+	/**
+	 * Configure the bounds on waiting packets.
+	 * @param queueCapacity maximum number of packets waiting for a next hop
+	 * @param maxQueuedBytes maximum number of bytes of packets waiting for
+	 *        all next hops
+	 * @param dropOldest whether the oldest packet waiting for a next hop is
+	 *        dropped to make room for a new one, rather than the new one
+	 */
+	public synchronized void configureQueues(int queueCapacity,
+			long maxQueuedBytes, boolean dropOldest)
+	{
+		this.queueCapacity = Math.max(1, queueCapacity);
+		this.maxQueuedBytes = maxQueuedBytes;
+		this.dropOldest = dropOldest;
+	}
+
+	/**
+	 * Queue a packet until its next hop is resolved, starting a resolution
+	 * if none is in progress for the next hop. The packet is dropped if
+	 * there is no room for it.
+	 * @param nextHop IP address to resolve
+	 * @param outIface interface the next hop is reached through
+	 * @param etherPacket packet to send to the next hop
+	 * @param inIface interface the packet was received on
+	 */
+	public void resolve(int nextHop, Iface outIface, Ethernet etherPacket,
+			Iface inIface)
+	{
+		WaitingPacket packet = new WaitingPacket(etherPacket, inIface);
+		PendingResolution resolution;
+		synchronized(this)
+		{
+			resolution = this.pending.get(nextHop);
+			if (resolution != null)
+			{
+				this.enqueue(resolution, packet);
+				return;
+			}
+			resolution = new PendingResolution(nextHop, outIface);
+			if (!this.enqueue(resolution, packet))
+			{ return; }
+			this.pending.put(nextHop, resolution);
+		}
+
+		// Send the first request right away
+		this.attempt(resolution);
+	}
+
+	/**
+	 * Add a packet to the packets waiting for a next hop, dropping the oldest
+	 * waiting packets or the new packet if there is no room for it. Must be
+	 * called with the lock held.
+	 * @return true if the packet was added
+	 */
+	private boolean enqueue(PendingResolution resolution, WaitingPacket packet)
+	{
+		if (this.dropOldest)
+		{
+			while (!resolution.packets.isEmpty()
+					&& (resolution.packets.size() >= this.queueCapacity
+						|| this.queuedBytes + packet.size > this.maxQueuedBytes))
+			{
+				this.queuedBytes -= resolution.packets.removeFirst().size;
+				this.droppedCount++;
+			}
+		}
+		if (resolution.packets.size() >= this.queueCapacity
+				|| this.queuedBytes + packet.size > this.maxQueuedBytes)
+		{
+			this.droppedCount++;
+			return false;
+		}
+		resolution.packets.addLast(packet);
+		this.queuedBytes += packet.size;
+		this.enqueuedCount++;
+		return true;
+	}
+
+	/**
+	 * Remove a resolution and account for its packets leaving the queues.
+	 * Must be called with the lock held.
+	 * @param drained whether the packets are sent, rather than timed out
+	 * @return the packets that waited, in the order they arrived
+	 */
+	private List<WaitingPacket> dequeueAll(PendingResolution resolution,
+			boolean drained)
+	{
+		this.pending.remove(resolution.nextHop);
+		for (WaitingPacket packet : resolution.packets)
+		{ this.queuedBytes -= packet.size; }
+		if (drained)
+		{ this.drainedCount += resolution.packets.size(); }
+		else
+		{ this.timedOutCount += resolution.packets.size(); }
+		return new ArrayList<WaitingPacket>(resolution.packets);
+	}
+
+	/**
+	 * Send the next ARP request for a resolution and schedule a retry, or
+	 * give up if all attempts went unanswered.
+	 */
+	private void attempt(PendingResolution resolution)
+	{
+		List<WaitingPacket> packets = null;
+		synchronized(this)
+		{
+			// Ignore a retry that raced with a reply
+			if (this.pending.get(resolution.nextHop) != resolution)
+			{ return; }
+
+			if (resolution.attempts >= this.maxAttempts)
+			{ packets = this.dequeueAll(resolution, false); }
+			else
+			{
+				resolution.attempts++;
+				resolution.retry = this.scheduler.schedule(resolution,
+						resolution.retryInterval, TimeUnit.MILLISECONDS);
+				resolution.retryInterval =
+						(long)(resolution.retryInterval * this.backoff);
+			}
+		}
+
+		if (packets != null)
+		{ this.handler.failed(resolution.nextHop, packets); }
+		else
+		{ this.handler.sendRequest(resolution.nextHop, resolution.outIface); }
+	}
+
+	/**
+	 * Complete the resolution of a next hop, if one is in progress, sending
+	 * the packets waiting for it.
+	 * @param ip IP address from an ARP reply
+	 * @param mac MAC address from the ARP reply, as 6 bytes
+	 * @return true if packets were waiting for the IP address
+	 */
+	public boolean resolved(int ip, byte[] mac)
+	{
+		PendingResolution resolution;
+		List<WaitingPacket> packets;
+		synchronized(this)
+		{
+			resolution = this.pending.get(ip);
+			if (null == resolution)
+			{ return false; }
+			if (resolution.retry != null)
+			{ resolution.retry.cancel(false); }
+			packets = this.dequeueAll(resolution, true);
+		}
+		this.handler.resolved(ip, mac, resolution.outIface, packets);
+		return true;
+	}
+
+	/**
+	 * @return number of next hops being resolved
+	 */
+	public synchronized int getPendingCount()
+	{ return this.pending.size(); }
+
+	/**
+	 * @return number of packets that waited for a next hop
+	 */
+	public synchronized long getEnqueuedCount()
+	{ return this.enqueuedCount; }
+
+	/**
+	 * @return number of packets sent once their next hop was resolved
+	 */
+	public synchronized long getDrainedCount()
+	{ return this.drainedCount; }
+
+	/**
+	 * @return number of packets dropped because there was no room for them
+	 */
+	public synchronized long getDroppedCount()
+	{ return this.droppedCount; }
+
+	/**
+	 * @return number of packets whose next hop could not be resolved
+	 */
+	public synchronized long getTimedOutCount()
+	{ return this.timedOutCount; }
+
+	/**
+	 * @return number of bytes of packets waiting for all next hops
+	 */
+	public synchronized long getQueuedBytes()
+	{ return this.queuedBytes; }
+
+	/**
+	 * Stop retrying; packets still waiting are discarded.
+	 */
+	public void shutdown()
+	{
+		this.scheduler.shutdownNow();
+		synchronized(this)
+		{
+			this.pending.clear();
+			this.queuedBytes = 0;
+		}
+	}
+
+	public synchronized String toString()
+	{
+		return String.format(
+				"%d packets enqueued, %d drained, %d dropped, %d timed out; %d next hops (%d bytes) pending",
+				this.enqueuedCount, this.drainedCount, this.droppedCount,
+				this.timedOutCount, this.pending.size(), this.queuedBytes);
+	}
+}
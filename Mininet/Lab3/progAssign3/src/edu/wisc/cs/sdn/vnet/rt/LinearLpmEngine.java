@@ -0,0 +1,88 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reference longest prefix match engine that scans every entry on lookup.
+ * It is kept simple on purpose so that faster engines can be checked against
+ * it.
+ */
+public class LinearLpmEngine implements LpmEngine
+{
+	/** Entries in the order they were added */
+	private List<RouteEntry> entries;
+
+	/**
+	 * Initialize an empty engine.
+	 */
+	public LinearLpmEngine()
+	{ this.entries = new ArrayList<RouteEntry>(); }
+
+	public RouteEntry lookup(int ip)
+	{
+		RouteEntry bestMatch = null;
+		for (RouteEntry entry : this.entries)
+		{
+			int mask = entry.getMaskAddress();
+			if ((ip & mask) == (entry.getDestinationAddress() & mask))
+			{
+				// Masks must be compared as unsigned values
+				if ((null == bestMatch) || (Integer.compareUnsigned(mask,
+						bestMatch.getMaskAddress()) > 0))
+				{ bestMatch = entry; }
+			}
+		}
+		return bestMatch;
+	}
+
+	public RouteEntry find(int dstIp, int maskIp)
+	{
+		int index = this.indexOf(dstIp, maskIp);
+		return (index < 0) ? null : this.entries.get(index);
+	}
+
+	public RouteEntry insert(RouteEntry entry)
+	{
+		int index = this.indexOf(entry.getDestinationAddress(),
+				entry.getMaskAddress());
+		if (index < 0)
+		{
+			this.entries.add(entry);
+			return null;
+		}
+		return this.entries.set(index, entry);
+	}
+
+	public RouteEntry remove(int dstIp, int maskIp)
+	{
+		int index = this.indexOf(dstIp, maskIp);
+		return (index < 0) ? null : this.entries.remove(index);
+	}
+
+	public List<RouteEntry> getEntries()
+	{ return new ArrayList<RouteEntry>(this.entries); }
+
+	public int size()
+	{ return this.entries.size(); }
+
+	public LpmEngine copy()
+	{
+		LinearLpmEngine copy = new LinearLpmEngine();
+		copy.entries.addAll(this.entries);
+		return copy;
+	}
+
+	private int indexOf(int dstIp, int maskIp)
+	{
+		for (int i = 0; i < this.entries.size(); i++)
+		{
+			RouteEntry entry = this.entries.get(i);
+			if ((entry.getMaskAddress() == maskIp)
+					&& ((entry.getDestinationAddress() & maskIp)
+						== (dstIp & maskIp)))
+			{ return i; }
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,61 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.List;
+
+/**
+ * A longest prefix match engine that stores the entries of a route table.
+ * Entries are keyed by their masked destination and their prefix length
+ * (the number of leading ones in the mask); at most one entry exists per key.
+ * Engines are not thread-safe. The route table only modifies private copies
+ * of an engine and never modifies an engine once it has been published to
+ * readers.
+ */
+public interface LpmEngine
+{
+	/**
+	 * Lookup the entry with the longest prefix matching a given IP address.
+	 * @param ip IP address
+	 * @return the matching route entry, null if none exists
+	 */
+	public RouteEntry lookup(int ip);
+
+	/**
+	 * Find the entry for an exact prefix.
+	 * @param dstIp destination IP of the entry to find
+	 * @param maskIp subnet mask of the entry to find
+	 * @return a matching entry if one was found, otherwise null
+	 */
+	public RouteEntry find(int dstIp, int maskIp);
+
+	/**
+	 * Add an entry, replacing any entry with the same prefix.
+	 * @param entry the entry to add
+	 * @return the entry that was replaced, null if there was none
+	 */
+	public RouteEntry insert(RouteEntry entry);
+
+	/**
+	 * Remove the entry for an exact prefix.
+	 * @param dstIp destination IP of the entry to remove
+	 * @param maskIp subnet mask of the entry to remove
+	 * @return the entry that was removed, null if none matched
+	 */
+	public RouteEntry remove(int dstIp, int maskIp);
+
+	/**
+	 * @return all entries in the engine
+	 */
+	public List<RouteEntry> getEntries();
+
+	/**
+	 * @return the number of entries in the engine
+	 */
+	public int size();
+
+	/**
+	 * Create a copy of the engine. Modifying either engine afterwards must not
+	 * affect the entries seen by the other one.
+	 * @return the copy
+	 */
+	public LpmEngine copy();
+}
@@ -0,0 +1,62 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import net.floodlightcontroller.packet.IPv4;
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * One of the ways to reach the destination of a route: a gateway and the
+ * router interface out which packets are sent to it. Never modified.
+ */
+public class NextHop
+{
+	/** Gateway IP address; 0 if the destination is directly connected */
+	private int gatewayAddress;
+
+	/** Router interface out which packets should be sent to reach the
+	 *  destination or gateway */
+	private Iface iface;
+
+	/**
+	 * Create a next hop.
+	 * @param gatewayAddress gateway IP address; 0 if the destination is
+	 *        directly connected
+	 * @param iface the router interface out which packets should be sent to
+	 *        reach the destination or gateway
+	 */
+	public NextHop(int gatewayAddress, Iface iface)
+	{
+		this.gatewayAddress = gatewayAddress;
+		this.iface = iface;
+	}
+
+	/**
+	 * @return gateway IP address; 0 if the destination is directly connected
+	 */
+	public int getGatewayAddress()
+	{ return this.gatewayAddress; }
+
+	/**
+	 * @return the router interface out which packets should be sent to
+	 *         reach the destination or gateway
+	 */
+	public Iface getInterface()
+	{ return this.iface; }
+
+	public boolean equals(Object obj)
+	{
+		if (!(obj instanceof NextHop))
+		{ return false; }
+		NextHop other = (NextHop)obj;
+		return this.gatewayAddress == other.gatewayAddress
+				&& this.iface == other.iface;
+	}
+
+	public int hashCode()
+	{ return this.gatewayAddress * 31 + this.iface.hashCode(); }
+
+	public String toString()
+	{
+		return IPv4.fromIPv4Address(this.gatewayAddress) + " on "
+				+ this.iface.getName();
+	}
+}
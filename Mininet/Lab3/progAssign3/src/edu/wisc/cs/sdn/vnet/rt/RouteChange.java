@@ -0,0 +1,89 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * A change to a route table: a route that was added, replaced, or removed.
+ */
+public class RouteChange
+{
+	/** Kinds of changes */
+	public static final int ADDED = 0;
+	public static final int UPDATED = 1;
+	public static final int REMOVED = 2;
+
+	private static final String[] KIND_NAMES = { "add", "update", "remove" };
+
+	/** Kind of change */
+	private int kind;
+
+	/** Number of the change; changes to a table are numbered from 1 in the
+	 *  order they were published */
+	private long sequence;
+
+	/** Time (in milliseconds since the epoch) the change was made */
+	private long time;
+
+	/** Route after the change; the route removed for a removal */
+	private RouteEntry entry;
+
+	/**
+	 * Create a change; it is numbered when it is published.
+	 * @param kind ADDED, UPDATED or REMOVED
+	 * @param entry route after the change, or the route removed
+	 */
+	RouteChange(int kind, RouteEntry entry)
+	{
+		this.kind = kind;
+		this.sequence = 0;
+		this.time = System.currentTimeMillis();
+		this.entry = entry;
+	}
+
+	void setSequence(long sequence)
+	{ this.sequence = sequence; }
+
+	/**
+	 * @return ADDED, UPDATED or REMOVED
+	 */
+	public int getKind()
+	{ return this.kind; }
+
+	/**
+	 * @return number of the change, counting from 1 per route table
+	 */
+	public long getSequence()
+	{ return this.sequence; }
+
+	/**
+	 * @return time (in milliseconds since the epoch) the change was made
+	 */
+	public long getTime()
+	{ return this.time; }
+
+	/**
+	 * @return route after the change; the route removed for a removal
+	 */
+	public RouteEntry getEntry()
+	{ return this.entry; }
+
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder();
+		result.append('#').append(this.sequence).append(' ')
+				.append(KIND_NAMES[this.kind]).append(' ')
+				.append(IPv4.fromIPv4Address(this.entry.getDestinationAddress()))
+				.append('/')
+				.append(Integer.bitCount(this.entry.getMaskAddress()));
+		if (this.kind != REMOVED)
+		{
+			String separator = " via ";
+			for (NextHop nextHop : this.entry.getNextHops())
+			{
+				result.append(separator).append(nextHop);
+				separator = ", ";
+			}
+		}
+		return result.toString();
+	}
+}
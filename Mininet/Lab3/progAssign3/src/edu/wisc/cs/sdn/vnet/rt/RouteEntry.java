@@ -1,10 +1,17 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import net.floodlightcontroller.packet.IPv4;
 import edu.wisc.cs.sdn.vnet.Iface;
 
 /**
- * An entry in a route table.
+ * An entry in a route table. An entry may have several next hops of equal
+ * cost; packets are spread over them by a hash of their flow, so the packets
+ * of a flow all take the same path. Never modified, so entries can be read
+ * without locking once published.
  * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
  */
 public class RouteEntry 
@@ -12,15 +19,13 @@ public class RouteEntry
 	/** Destination IP address */
 	private int destinationAddress;
 	
-	/** Gateway IP address */
-	private int gatewayAddress;
-	
 	/** Subnet mask */
 	private int maskAddress;
 	
-	/** Router interface out which packets should be sent to reach
-	 * the destination or gateway */
-	private Iface iface;
+	/** Gateways and router interfaces out which packets should be sent to 
+	 * reach the destination; the first is used for packets that are not 
+	 * part of a flow */
+	private NextHop[] nextHops;
 	
 	/**
 	 * Create a new route table entry.
@@ -32,11 +37,24 @@ public class RouteEntry
 	 */
 	public RouteEntry(int destinationAddress, int gatewayAddress, 
 			int maskAddress, Iface iface)
+	{
+		this(destinationAddress, maskAddress, 
+				new NextHop[] { new NextHop(gatewayAddress, iface) });
+	}
+	
+	/**
+	 * Create a new route table entry with several next hops.
+	 * @param destinationAddress destination IP address
+	 * @param maskAddress subnet mask
+	 * @param nextHops next hops of equal cost, at least one; the array is 
+	 *        copied
+	 */
+	public RouteEntry(int destinationAddress, int maskAddress, 
+			NextHop[] nextHops)
 	{
 		this.destinationAddress = destinationAddress;
-		this.gatewayAddress = gatewayAddress;
 		this.maskAddress = maskAddress;
-		this.iface = iface;
+		this.nextHops = nextHops.clone();
 	}
 	
 	/**
@@ -46,13 +64,10 @@ public class RouteEntry
 	{ return this.destinationAddress; }
 	
 	/**
-	 * @return gateway IP address
+	 * @return gateway IP address of the first next hop
 	 */
 	public int getGatewayAddress()
-	{ return this.gatewayAddress; }
-
-    public void setGatewayAddress(int gatewayAddress)
-    { this.gatewayAddress = gatewayAddress; }
+	{ return this.nextHops[0].getGatewayAddress(); }
 	
 	/**
 	 * @return subnet mask 
@@ -62,20 +77,76 @@ public class RouteEntry
 	
 	/**
 	 * @return the router interface out which packets should be sent to 
-	 *         reach the destination or gateway
+	 *         reach the destination or gateway of the first next hop
 	 */
 	public Iface getInterface()
-	{ return this.iface; }
-
-    public void setInterface(Iface iface)
-    { this.iface = iface; }
+	{ return this.nextHops[0].getInterface(); }
+	
+	/**
+	 * @return next hops of equal cost, the first one first
+	 */
+	public List<NextHop> getNextHops()
+	{ return Collections.unmodifiableList(Arrays.asList(this.nextHops)); }
+	
+	/**
+	 * @return number of next hops
+	 */
+	public int getNextHopCount()
+	{ return this.nextHops.length; }
+	
+	/**
+	 * Choose the next hop of a packet.
+	 * @param flowHash hash of the packet's flow, from {@link #hashFlow}
+	 * @return the next hop for the flow
+	 */
+	public NextHop selectNextHop(int flowHash)
+	{
+		if (1 == this.nextHops.length)
+		{ return this.nextHops[0]; }
+		// Scale the hash onto the next hops rather than taking it modulo
+		// their number, which favors some when the number is not a power
+		// of two
+		int i = (int)(((flowHash & 0xffffffffL) * this.nextHops.length) >>> 32);
+		return this.nextHops[i];
+	}
+	
+	/**
+	 * Hash the fields that identify the flow of a packet. The hash depends
+	 * only on the packet's headers, so no state is kept per flow.
+	 * @param srcAddr source IP address
+	 * @param dstAddr destination IP address
+	 * @param protocol IP protocol
+	 * @param ports source port on the higher and destination port on the 
+	 *        lower order bytes; 0 for packets that carry no ports, and for
+	 *        all fragments, since only the first fragment carries them
+	 * @return the hash
+	 */
+	public static int hashFlow(int srcAddr, int dstAddr, byte protocol, 
+			int ports)
+	{
+		long h = ((long)srcAddr << 32) | (dstAddr & 0xffffffffL);
+		h ^= (((long)ports << 8) | (protocol & 0xff)) * 0x9e3779b97f4a7c15L;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int)h;
+	}
 	
 	public String toString()
 	{
-		return String.format("%s \t%s \t%s \t%s",
-				IPv4.fromIPv4Address(this.destinationAddress),
-				IPv4.fromIPv4Address(this.gatewayAddress),
-				IPv4.fromIPv4Address(this.maskAddress),
-				this.iface.getName());
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < this.nextHops.length; i++)
+		{
+			if (i > 0)
+			{ result.append('\n'); }
+			result.append(String.format("%s \t%s \t%s \t%s",
+					IPv4.fromIPv4Address(this.destinationAddress),
+					IPv4.fromIPv4Address(this.nextHops[i].getGatewayAddress()),
+					IPv4.fromIPv4Address(this.maskAddress),
+					this.nextHops[i].getInterface().getName()));
+		}
+		return result.toString();
 	}
 }
@@ -4,8 +4,10 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -15,18 +17,210 @@ import edu.wisc.cs.sdn.vnet.Iface;
 
 /**
  * Route table for a router.
+ * <p>
+ * Readers never block: lookups go to an immutable snapshot of the table that
+ * is published through a volatile reference. Writers modify a private copy of
+ * the snapshot and publish it when they are done. Several modifications can
+ * be grouped between {@link #beginUpdate()} and {@link #endUpdate()} so that
+ * they are published together.
+ * <p>
+ * Each modification is recorded as a {@link RouteChange}. When an update is
+ * published, its changes are numbered, added to a bounded log of recent
+ * changes, and passed to the change listeners, so nobody needs to compare
+ * dumps of the whole table to find out what changed.
  * @author Aaron Gember-Jacobson
  */
 public class RouteTable 
 {
-	/** Entries in the route table */
-	private List<RouteEntry> entries; 
+	/** Snapshot of the entries seen by readers; never modified once published */
+	private volatile LpmEngine snapshot;
+	
+	/** Copy of the snapshot modified by the current update; null outside an
+	 *  update */
+	private LpmEngine working;
+	
+	/** Lock held by the writer for the duration of an update */
+	private ReentrantLock writeLock;
+	
+	/** Line of a route table file: destination, gateway, mask, interface */
+	private static final Pattern ENTRY_PATTERN = Pattern.compile(
+			"(\\d+\\.\\d+\\.\\d+\\.\\d+)\\s+(\\d+\\.\\d+\\.\\d+\\.\\d+)\\s+"
+			+ "(\\d+\\.\\d+\\.\\d+\\.\\d+)\\s+([a-zA-Z0-9]+)");
+	
+	/** Most next hops of equal cost an entry may have */
+	public static final int MAX_NEXT_HOPS = 8;
+
+	/** Default number of changes kept in the change log */
+	public static final int DEFAULT_CHANGE_LOG_SIZE = 256;
+	
+	/** Listener told about the changes of each published update */
+	public interface ChangeListener
+	{
+		/**
+		 * Called once an update that changed the table is published, on the
+		 * thread that made the update and without holding the table's lock.
+		 * Listeners of concurrent updates may be called in any order; the
+		 * sequence numbers of the changes give their real order.
+		 * @param changes changes made by the update, in order
+		 */
+		public void routesChanged(List<RouteChange> changes);
+	}
+	
+	/** Changes made by the current update; null if none; guarded by 
+	 *  writeLock */
+	private List<RouteChange> pending;
+	
+	/** Most recent changes, in a ring indexed by sequence number; guarded by
+	 *  itself */
+	private RouteChange[] changeLog;
+	
+	/** Sequence number of the last change published; guarded by changeLog */
+	private long lastSequence;
+	
+	private List<ChangeListener> listeners;
 	
 	/**
-	 * Initialize an empty route table.
+	 * Initialize an empty route table backed by a multibit trie.
 	 */
 	public RouteTable()
-	{ this.entries = new LinkedList<RouteEntry>(); }
+	{ this(new TrieLpmEngine()); }
+	
+	/**
+	 * Initialize an empty route table.
+	 * @param engine empty longest prefix match engine to store entries in
+	 */
+	public RouteTable(LpmEngine engine)
+	{
+		this.snapshot = engine;
+		this.working = null;
+		this.writeLock = new ReentrantLock();
+		this.pending = null;
+		this.changeLog = new RouteChange[DEFAULT_CHANGE_LOG_SIZE];
+		this.lastSequence = 0;
+		this.listeners = new CopyOnWriteArrayList<ChangeListener>();
+	}
+	
+	/**
+	 * @param listener listener to tell about the changes of each published
+	 *        update
+	 */
+	public void addChangeListener(ChangeListener listener)
+	{ this.listeners.add(listener); }
+	
+	/**
+	 * @param listener listener to stop telling about changes
+	 */
+	public void removeChangeListener(ChangeListener listener)
+	{ this.listeners.remove(listener); }
+	
+	/**
+	 * Start an update of the route table. Modifications made by this thread
+	 * are visible to other threads only once the matching call to
+	 * {@link #endUpdate()} returns. Updates may be nested; other writers block
+	 * until the outermost update ends.
+	 */
+	public void beginUpdate()
+	{
+		this.writeLock.lock();
+		if (1 == this.writeLock.getHoldCount())
+		{ this.working = this.snapshot.copy(); }
+	}
+	
+	/**
+	 * End an update of the route table, publishing its modifications if it is
+	 * the outermost update.
+	 */
+	public void endUpdate()
+	{
+		List<RouteChange> changes = null;
+		try
+		{
+			if (1 == this.writeLock.getHoldCount())
+			{
+				this.snapshot = this.working;
+				this.working = null;
+				changes = this.pending;
+				this.pending = null;
+				if (changes != null)
+				{ this.logChanges(changes); }
+			}
+		}
+		finally
+		{ this.writeLock.unlock(); }
+		
+		if (changes != null)
+		{
+			for (ChangeListener listener : this.listeners)
+			{ listener.routesChanged(changes); }
+		}
+	}
+	
+	/**
+	 * Record a modification made by the current update.
+	 */
+	private void record(int kind, RouteEntry entry)
+	{
+		if (null == this.pending)
+		{ this.pending = new ArrayList<RouteChange>(); }
+		this.pending.add(new RouteChange(kind, entry));
+	}
+	
+	/**
+	 * Number published changes and add them to the change log.
+	 */
+	private void logChanges(List<RouteChange> changes)
+	{
+		synchronized(this.changeLog)
+		{
+			for (RouteChange change : changes)
+			{
+				change.setSequence(++this.lastSequence);
+				this.changeLog[(int)(this.lastSequence 
+						% this.changeLog.length)] = change;
+			}
+		}
+	}
+	
+	/**
+	 * @return sequence number of the last change published; 0 if none
+	 */
+	public long getLastSequence()
+	{
+		synchronized(this.changeLog)
+		{ return this.lastSequence; }
+	}
+	
+	/**
+	 * Get the changes published after a given change that are still in the
+	 * change log. If the first change returned does not directly follow the
+	 * given one, changes in between were dropped from the log.
+	 * @param afterSequence sequence number of the last change already seen;
+	 *        0 for the whole log
+	 * @return the changes, oldest first
+	 */
+	public List<RouteChange> getChanges(long afterSequence)
+	{
+		List<RouteChange> result = new ArrayList<RouteChange>();
+		synchronized(this.changeLog)
+		{
+			long first = Math.max(afterSequence + 1,
+					this.lastSequence - this.changeLog.length + 1);
+			for (long seq = Math.max(first, 1); seq <= this.lastSequence; seq++)
+			{ result.add(this.changeLog[(int)(seq % this.changeLog.length)]); }
+		}
+		return result;
+	}
+	
+	/**
+	 * @return the entries visible to the calling thread; a writer sees its own
+	 *         unpublished modifications
+	 */
+	private LpmEngine current()
+	{
+		if (this.writeLock.isHeldByCurrentThread())
+		{ return this.working; }
+		return this.snapshot;
+	}
 	
 	/**
 	 * Lookup the route entry that matches a given IP address.
@@ -34,39 +228,48 @@ public class RouteTable
 	 * @return the matching route entry, null if none exists
 	 */
 	public RouteEntry lookup(int ip)
+	{ return this.current().lookup(ip); }
+	
+	/**
+	 * @return the entries visible to the calling thread
+	 */
+	public List<RouteEntry> getEntries()
+	{ return this.current().getEntries(); }
+	
+	/**
+	 * Add entries, e.g. from a snapshot, replacing any entries for the same
+	 * prefixes. All the entries are published together.
+	 * @param entries the entries to add
+	 */
+	public void insertAll(List<RouteEntry> entries)
 	{
-		synchronized(this.entries)
-        {
-			/*****************************************************************/
-			/* TODO: Find the route entry with the longest prefix match      */
-			
-	        RouteEntry bestMatch = null;
-	        for (RouteEntry entry : this.entries)
-	        {
-	           int maskedDst = ip & entry.getMaskAddress();
-	           int entrySubnet = entry.getDestinationAddress() 
-	               & entry.getMaskAddress();
-	           if (maskedDst == entrySubnet)
-	           {
-	        	   if ((null == bestMatch) 
-	        		   || (entry.getMaskAddress() > bestMatch.getMaskAddress()))
-	        	   { bestMatch = entry; }
-	           }
-	        }
-			
-			return bestMatch;
-			
-			/*****************************************************************/
-        }
+		this.beginUpdate();
+		try
+		{
+			for (RouteEntry entry : entries)
+			{ this.insert(entry); }
+		}
+		finally
+		{ this.endUpdate(); }
 	}
 	
 	/**
-	 * Populate the route table from a file.
+	 * Populate the route table from a file. All entries in the file are
+	 * published together.
 	 * @param filename name of the file containing the static route table
 	 * @param router the route table is associated with
 	 * @return true if route table was successfully loaded, otherwise false
 	 */
 	public boolean load(String filename, Router router)
+	{
+		this.beginUpdate();
+		try
+		{ return this.loadEntries(filename, router); }
+		finally
+		{ this.endUpdate(); }
+	}
+	
+	private boolean loadEntries(String filename, Router router)
 	{
 		// Open the file
 		BufferedReader reader;
@@ -99,12 +302,7 @@ public class RouteTable
 			{ break; }
 			
 			// Parse fields for route entry
-			String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
-			String ifacePattern = "([a-zA-Z0-9]+)";
-			Pattern pattern = Pattern.compile(String.format(
-                        "%s\\s+%s\\s+%s\\s+%s", 
-                        ipPattern, ipPattern, ipPattern, ifacePattern));
-			Matcher matcher = pattern.matcher(line);
+			Matcher matcher = ENTRY_PATTERN.matcher(line);
 			if (!matcher.matches() || matcher.groupCount() != 4)
 			{
 				System.err.println("Invalid entry in routing table file");
@@ -142,8 +340,9 @@ public class RouteTable
 				return false;
 			}
 			
-			// Add an entry to the route table
-			this.insert(dstIp, gwIp, maskIp, iface);
+			// Add an entry to the route table; further lines for the same
+			// prefix add next hops of equal cost
+			this.addNextHop(dstIp, maskIp, gwIp, iface);
 		}
 	
 		// Close the file
@@ -152,7 +351,8 @@ public class RouteTable
 	}
 	
 	/**
-	 * Add an entry to the route table.
+	 * Add an entry to the route table, replacing any entry for the same 
+	 * prefix along with all its next hops.
 	 * @param dstIp destination IP
 	 * @param gwIp gateway IP
 	 * @param maskIp subnet mask
@@ -160,12 +360,19 @@ public class RouteTable
 	 *        destination or gateway
 	 */
 	public void insert(int dstIp, int gwIp, int maskIp, Iface iface)
+	{ this.insert(new RouteEntry(dstIp, gwIp, maskIp, iface)); }
+	
+	private void insert(RouteEntry entry)
 	{
-		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface);
-        synchronized(this.entries)
-        { 
-            this.entries.add(entry);
+        this.beginUpdate();
+        try
+        {
+            RouteEntry old = this.working.insert(entry);
+            this.record((null == old) ? RouteChange.ADDED 
+                    : RouteChange.UPDATED, entry);
         }
+        finally
+        { this.endUpdate(); }
 	}
 	
 	/**
@@ -176,18 +383,95 @@ public class RouteTable
 	 */
 	public boolean remove(int dstIp, int maskIp)
 	{ 
-        synchronized(this.entries)
+        this.beginUpdate();
+        try
         {
-            RouteEntry entry = this.find(dstIp, maskIp);
-            if (null == entry)
+            RouteEntry removed = this.working.remove(dstIp, maskIp);
+            if (null == removed)
             { return false; }
-            this.entries.remove(entry);
+            this.record(RouteChange.REMOVED, removed);
+            return true;
         }
-        return true;
+        finally
+        { this.endUpdate(); }
     }
 	
 	/**
-	 * Update an entry in the route table.
+	 * Add a next hop of equal cost to an entry, adding the entry if there is
+	 * none for the prefix.
+	 * @param dstIp destination IP of the entry
+	 * @param maskIp subnet mask of the entry
+	 * @param gwIp gateway IP of the next hop
+	 * @param iface router interface of the next hop
+	 * @return true if the next hop was added; false if the entry already has
+	 *         it or has MAX_NEXT_HOPS next hops
+	 */
+	public boolean addNextHop(int dstIp, int maskIp, int gwIp, Iface iface)
+	{
+		NextHop nextHop = new NextHop(gwIp, iface);
+		this.beginUpdate();
+		try
+		{
+			RouteEntry entry = this.working.find(dstIp, maskIp);
+			if (null == entry)
+			{
+				this.insert(dstIp, gwIp, maskIp, iface);
+				return true;
+			}
+			List<NextHop> nextHops = new ArrayList<NextHop>(
+					entry.getNextHops());
+			if (nextHops.contains(nextHop)
+					|| nextHops.size() >= MAX_NEXT_HOPS)
+			{ return false; }
+			nextHops.add(nextHop);
+			RouteEntry updated = new RouteEntry(entry.getDestinationAddress(),
+					entry.getMaskAddress(),
+					nextHops.toArray(new NextHop[nextHops.size()]));
+			this.working.insert(updated);
+			this.record(RouteChange.UPDATED, updated);
+			return true;
+		}
+		finally
+		{ this.endUpdate(); }
+	}
+
+	/**
+	 * Remove a next hop from an entry, removing the entry if it was its only
+	 * next hop.
+	 * @param dstIp destination IP of the entry
+	 * @param maskIp subnet mask of the entry
+	 * @param gwIp gateway IP of the next hop
+	 * @param iface router interface of the next hop
+	 * @return true if the entry had the next hop, otherwise false
+	 */
+	public boolean removeNextHop(int dstIp, int maskIp, int gwIp, Iface iface)
+	{
+		this.beginUpdate();
+		try
+		{
+			RouteEntry entry = this.working.find(dstIp, maskIp);
+			if (null == entry)
+			{ return false; }
+			List<NextHop> nextHops = new ArrayList<NextHop>(
+					entry.getNextHops());
+			if (!nextHops.remove(new NextHop(gwIp, iface)))
+			{ return false; }
+			if (nextHops.isEmpty())
+			{ return this.remove(dstIp, maskIp); }
+			RouteEntry updated = new RouteEntry(entry.getDestinationAddress(),
+					entry.getMaskAddress(),
+					nextHops.toArray(new NextHop[nextHops.size()]));
+			this.working.insert(updated);
+			this.record(RouteChange.UPDATED, updated);
+			return true;
+		}
+		finally
+		{ this.endUpdate(); }
+	}
+
+	/**
+	 * Update an entry in the route table; it is left with only the new next
+	 * hop.
 	 * @param dstIP destination IP of the entry to update
      * @param maskIp subnet mask of the entry to update
 	 * @param gatewayAddress new gateway IP address for matching entry
@@ -197,48 +481,33 @@ public class RouteTable
 	public boolean update(int dstIp, int maskIp, int gwIp, 
             Iface iface)
 	{
-        synchronized(this.entries)
+        this.beginUpdate();
+        try
         {
-            RouteEntry entry = this.find(dstIp, maskIp);
+            RouteEntry entry = this.working.find(dstIp, maskIp);
             if (null == entry)
             { return false; }
-            entry.setGatewayAddress(gwIp);
-            entry.setInterface(iface);
+            // Published entries are never modified; replace the entry instead
+            RouteEntry updated = new RouteEntry(entry.getDestinationAddress(),
+                    gwIp, entry.getMaskAddress(), iface);
+            this.working.insert(updated);
+            this.record(RouteChange.UPDATED, updated);
         }
+        finally
+        { this.endUpdate(); }
         return true;
 	}
 
-    /**
-	 * Find an entry in the route table.
-	 * @param dstIP destination IP of the entry to find
-     * @param maskIp subnet mask of the entry to find
-     * @return a matching entry if one was found, otherwise null
-	 */
-    private RouteEntry find(int dstIp, int maskIp)
-    {
-        synchronized(this.entries)
-        {
-            for (RouteEntry entry : this.entries)
-            {
-                if ((entry.getDestinationAddress() == dstIp)
-                    && (entry.getMaskAddress() == maskIp)) 
-                { return entry; }
-            }
-        }
-        return null;
-    }
-	
 	public String toString()
 	{
-        synchronized(this.entries)
-        { 
-            if (0 == this.entries.size())
-            { return " WARNING: route table empty"; }
-            
-            String result = "Destination\tGateway\t\tMask\t\tIface\n";
-            for (RouteEntry entry : entries)
-            { result += entry.toString()+"\n"; }
-		    return result;
-        }
+        LpmEngine engine = this.current();
+        if (0 == engine.size())
+        { return " WARNING: route table empty"; }
+        
+        StringBuilder result = new StringBuilder(
+                "Destination\tGateway\t\tMask\t\tIface\n");
+        for (RouteEntry entry : engine.getEntries())
+        { result.append(entry.toString()).append('\n'); }
+        return result.toString();
 	}
 }
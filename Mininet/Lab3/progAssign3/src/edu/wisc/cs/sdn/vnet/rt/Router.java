@@ -1,28 +1,42 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
-import java.util.Map;
 import java.util.ArrayList;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 import java.lang.Math;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
+import edu.wisc.cs.sdn.vnet.TimingWheel;
 
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.EthernetView;
 import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.IPv4View;
 import net.floodlightcontroller.packet.MACAddress;
 import net.floodlightcontroller.packet.ICMP;
 import net.floodlightcontroller.packet.Data;
 import net.floodlightcontroller.packet.ARP;
 import net.floodlightcontroller.packet.RIPv2;
 import net.floodlightcontroller.packet.RIPv2Entry;
+import net.floodlightcontroller.packet.TCP;
 import net.floodlightcontroller.packet.UDP;
 
 
@@ -37,31 +51,141 @@ public class Router extends Device {
 	/** ARP cache for the router */
 	private ArpCache arpCache;
 
-	/** ARP wait list for every IP for which we are waiting for the corresponding MAC address */
-	private Map<Integer, ArrayList<Ethernet>> arpWaitLists;
+	/** Resolver of next hops that are not in the ARP cache; packets wait in it */
+	private ArpResolver arpResolver;
 
 	class RIPPair {
 		RIPv2Entry entry;
 		Long timestamp;
 
+		/** Neighbor and interface the route was learned from; 0 and null for
+		 *  directly connected subnets */
+		int gateway;
+		Iface iface;
+
+		/** Whether the route changed since the last update was sent */
+		boolean changed;
+
+		/** Other neighbors advertising the route at the same metric; the route
+		 *  table has a next hop for each of them besides the gateway's */
+		List<RIPAlternate> alternates;
+
 		RIPPair(RIPv2Entry entry, Long timestamp) {
+			this(entry, timestamp, 0, null);
+		}
+
+		RIPPair(RIPv2Entry entry, Long timestamp, int gateway, Iface iface) {
 			this.entry = entry;
 			this.timestamp = timestamp;
+			this.gateway = gateway;
+			this.iface = iface;
+			this.changed = false;
+			this.alternates = new ArrayList<RIPAlternate>();
+		}
+
+		RIPAlternate findAlternate(int gateway) {
+			for (RIPAlternate alternate: alternates) {
+				if (alternate.gateway == gateway) {
+					return alternate;
+				}
+			}
+			return null;
+		}
+
+		/** Whether the route is learned from a neighbor on an interface */
+		boolean learnedOn(Iface outIface) {
+			if (iface == outIface) {
+				return true;
+			}
+			for (RIPAlternate alternate: alternates) {
+				if (alternate.iface == outIface) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/** A neighbor a route is learned from at the same metric as from its gateway */
+	class RIPAlternate {
+		int gateway;
+		Iface iface;
+		long timestamp;
+
+		RIPAlternate(int gateway, Iface iface, long timestamp) {
+			this.gateway = gateway;
+			this.iface = iface;
+			this.timestamp = timestamp;
 		}
 	}
 
+	/** Default time (in milliseconds) between snapshots */
+	public static final long DEFAULT_CHECKPOINT_INTERVAL = 30 * 1000;
+
+	/** File snapshots are saved to; null if none */
+	private volatile String snapshotFile;
+
+	/** Writes snapshots, so tasks on the timing wheel do not wait on the disk;
+	 *  null if snapshots are not saved */
+	private volatile ExecutorService snapshotWriter;
+
 	/** RIP entries (distance vector) */
 	private Map<Integer, RIPPair> ripEntries;
 
 	private boolean runRipFlag = false;
 
+	/** Whether a triggered update is scheduled, and the earliest time the next
+	 *  one may be sent; guarded by ripEntries */
+	private boolean ripTriggerPending = false;
+	private long ripNextTriggerTime = 0;
+
 	private final String BROADCAST_MAC_ADDR = "FF:FF:FF:FF:FF:FF";
 	private final String RIP_MULTICAST_IP = "224.0.0.9";
+	private final int RIP_MULTICAST_ADDR = IPv4.toIPv4Address(RIP_MULTICAST_IP);
 
 	private final Long RIP_TIMEOUT = (long)30000;
+	// time an unreachable route is advertised before it is deleted (RFC2453 garbage-collection timer)
+	private final long RIP_GARBAGE_TIMEOUT = 20000;
+	// triggered updates are sent at most once per random 1-5 s (RFC2453 3.10.1)
+	private final long RIP_TRIGGER_MIN_DELAY = 1000;
+	private final long RIP_TRIGGER_MAX_DELAY = 5000;
+	// regular updates are sent every 10 s, moved by a random offset so routers drift apart
+	private final long RIP_UPDATE_INTERVAL = 10000;
+	private final long RIP_UPDATE_JITTER = 1500;
+	// the messages of a regular update are spread over this time
+	private final long RIP_PACING_TIME = 5000;
+
+	/** Length of a RIP frame with the most entries: Ethernet, IP, UDP and RIP */
+	private static final int RIP_FRAME_HEADER_LENGTH = 14 + 20 + 8 + RIPv2.HEADER_LENGTH;
+	private static final int RIP_MAX_FRAME_LENGTH = RIP_FRAME_HEADER_LENGTH
+			+ RIPv2.MAX_ENTRIES * RIPv2.ENTRY_LENGTH;
 	private final Long RIP_PERSISTENT_TIMESTAMP = (long)-1;
 	private final int RIP_METRIC_INF = 16; // RFC2453
 
+	// route changes published together are printed one per line up to this many
+	private final int ROUTE_CHANGES_PRINTED = 20;
+
+	/** Views used by each thread to forward frames without deserializing them */
+	private static class FrameViews {
+		final EthernetView ether = new EthernetView();
+		final IPv4View ip = new IPv4View();
+	}
+
+	/** Buffer each thread builds RIP messages in */
+	private final ThreadLocal<byte[]> ripFrames = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[RIP_MAX_FRAME_LENGTH];
+		}
+	};
+
+	private final ThreadLocal<FrameViews> frameViews = new ThreadLocal<FrameViews>() {
+		@Override
+		protected FrameViews initialValue() {
+			return new FrameViews();
+		}
+	};
+
 	/**
 	 * Creates a router for a specific host.
 	 * @param host hostname for the router
@@ -69,8 +193,15 @@ public class Router extends Device {
 	public Router(String host, DumpFile logfile) {
 		super(host,logfile);
 		this.routeTable = new RouteTable();
-		this.arpCache = new ArpCache();
-		this.arpWaitLists = new ConcurrentHashMap<>();
+		this.routeTable.addChangeListener(new RouteTable.ChangeListener() {
+			@Override
+			public void routesChanged(List<RouteChange> changes) {
+				printRouteChanges(changes);
+			}
+		});
+		this.configureArpCache(ArpCache.DEFAULT_TIMEOUT, ArpCache.DEFAULT_MAX_ENTRIES);
+		this.configureArpResolver(ArpResolver.DEFAULT_ATTEMPTS, ArpResolver.DEFAULT_RETRY_INTERVAL,
+				ArpResolver.DEFAULT_BACKOFF);
 		this.ripEntries = new ConcurrentHashMap<>();
 	}
 
@@ -99,6 +230,261 @@ public class Router extends Device {
 		System.out.println("-------------------------------------------------");
 	}
 
+	/**
+	 * Replace the ARP cache with an empty one; must be called before the ARP
+	 * cache is loaded or any packet is handled.
+	 * @param timeout time (in milliseconds) learned entries are valid for
+	 * @param maxEntries maximum number of entries in the ARP cache
+	 */
+	public void configureArpCache(long timeout, int maxEntries) {
+		this.arpCache = new ArpCache(timeout, maxEntries);
+		this.arpCache.setTimingWheel(this.getTimingWheel());
+		this.arpCache.setRefreshListener(new ArpCache.RefreshListener() {
+			@Override
+			public void refresh(int ip) {
+				refreshArpEntry(ip);
+			}
+		});
+	}
+
+	/**
+	 * Replace the ARP resolver; must be called before any packet is handled.
+	 * @param attempts number of ARP requests sent for a next hop before giving up
+	 * @param retryInterval time (in milliseconds) to wait for a reply to the first request
+	 * @param backoff factor the wait grows by after each request
+	 */
+	public void configureArpResolver(int attempts, long retryInterval, double backoff) {
+		if (this.arpResolver != null) {
+			this.arpResolver.shutdown();
+		}
+		this.arpResolver = new ArpResolver(new ArpResolver.Handler() {
+			@Override
+			public void sendRequest(int nextHop, Iface outIface) {
+				sendArpRequest(nextHop, outIface, outIface);
+			}
+
+			@Override
+			public void resolved(int nextHop, final byte[] mac, final Iface outIface,
+					final List<ArpResolver.WaitingPacket> packets) {
+				sendBurst(new Runnable() {
+					@Override
+					public void run() {
+						for (ArpResolver.WaitingPacket waiting: packets) {
+							Ethernet ether = waiting.getPacket();
+							ether.setDestinationMACAddress(mac);
+							sendPacket(ether, outIface);
+						}
+					}
+				});
+			}
+
+			@Override
+			public void failed(int nextHop, final List<ArpResolver.WaitingPacket> packets) {
+				// destination host unreachable, for every packet that waited
+				sendBurst(new Runnable() {
+					@Override
+					public void run() {
+						for (ArpResolver.WaitingPacket waiting: packets) {
+							IPv4 ipPacket = (IPv4)waiting.getPacket().getPayload();
+							sendIcmpPacket((byte)3, (byte)1, ipPacket, waiting.getInIface());
+						}
+					}
+				});
+			}
+		}, attempts, retryInterval, backoff);
+	}
+
+	/**
+	 * @return resolver of next hops that are not in the ARP cache
+	 */
+	public ArpResolver getArpResolver() {
+		return this.arpResolver;
+	}
+
+	/**
+	 * Save a last snapshot, if snapshots are saved, stop resolving next hops,
+	 * and close the PCAP dump file.
+	 */
+	@Override
+	public void destroy() {
+		if (snapshotWriter != null) {
+			// write the last snapshot after any periodic one still queued, so
+			// it is the one left in the file
+			final String snapshotFile = this.snapshotFile;
+			final RouterSnapshot snapshot = takeSnapshot();
+			Future<Boolean> saved = snapshotWriter.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return writeSnapshot(snapshot, snapshotFile);
+				}
+			});
+			snapshotWriter.shutdown();
+			try {
+				if (saved.get()) {
+					System.out.println("Saved snapshot " + snapshotFile);
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			catch (ExecutionException e) {
+				System.err.println("Error saving snapshot " + snapshotFile + ": " + e.getCause());
+			}
+		}
+		System.out.println("ARP wait queues: " + this.arpResolver);
+		this.arpResolver.shutdown();
+		super.destroy();
+	}
+
+	/**
+	 * Save the route table, the ARP cache, and the routes learned through RIP
+	 * to a snapshot file.
+	 * @param snapshotFile the name of the file, which is replaced atomically
+	 * @return true if the snapshot was saved, otherwise false
+	 */
+	public boolean saveSnapshot(String snapshotFile) {
+		return writeSnapshot(takeSnapshot(), snapshotFile);
+	}
+
+	/**
+	 * Copy the route table, the ARP cache, and the routes learned through RIP
+	 * into a snapshot, without writing it anywhere.
+	 */
+	private RouterSnapshot takeSnapshot() {
+		List<RouteEntry> routes;
+		List<RouterSnapshot.RipRoute> ripRoutes = new ArrayList<RouterSnapshot.RipRoute>();
+		// take the route table and the distance vector as of the same update
+		routeTable.beginUpdate();
+		try {
+			synchronized(ripEntries) {
+				routes = routeTable.getEntries();
+				for (RIPPair pair: ripEntries.values()) {
+					if (RIP_PERSISTENT_TIMESTAMP.equals(pair.timestamp) || pair.entry.getMetric() >= RIP_METRIC_INF) {
+						continue;
+					}
+					NextHop[] nextHops = new NextHop[1 + pair.alternates.size()];
+					nextHops[0] = new NextHop(pair.gateway, pair.iface);
+					for (int i = 0; i < pair.alternates.size(); i++) {
+						RIPAlternate alternate = pair.alternates.get(i);
+						nextHops[i + 1] = new NextHop(alternate.gateway, alternate.iface);
+					}
+					ripRoutes.add(new RouterSnapshot.RipRoute(pair.entry.getAddress(),
+							pair.entry.getSubnetMask(), pair.entry.getMetric(), nextHops));
+				}
+			}
+		}
+		finally {
+			routeTable.endUpdate();
+		}
+		return new RouterSnapshot(routes, arpCache.getEntries(), ripRoutes);
+	}
+
+	private boolean writeSnapshot(RouterSnapshot snapshot, String snapshotFile) {
+		try {
+			snapshot.write(snapshotFile);
+		}
+		catch (IOException e) {
+			System.err.println("Error saving snapshot " + snapshotFile + ": " + e.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Restore the route table, the ARP cache, and the routes learned through
+	 * RIP from a snapshot file. Restored RIP routes time out unless they are
+	 * advertised again, as if they had just been learned.
+	 * @param snapshotFile the name of the file
+	 * @return true if the snapshot was restored, otherwise false
+	 */
+	public boolean loadSnapshot(String snapshotFile) {
+		RouterSnapshot snapshot;
+		try {
+			snapshot = RouterSnapshot.read(snapshotFile, this);
+		}
+		catch (IOException e) {
+			System.err.println("Error reading snapshot " + snapshotFile + ": " + e.getMessage());
+			return false;
+		}
+
+		long curTime = System.currentTimeMillis();
+		routeTable.beginUpdate();
+		try {
+			routeTable.insertAll(snapshot.getRoutes());
+			synchronized(ripEntries) {
+				for (RouterSnapshot.RipRoute route: snapshot.getRipRoutes()) {
+					int subnetIp = route.address & route.mask;
+					RIPPair pair = new RIPPair(new RIPv2Entry(route.address, route.mask, route.metric), curTime,
+							route.nextHops[0].getGatewayAddress(), route.nextHops[0].getInterface());
+					for (int i = 1; i < route.nextHops.length; i++) {
+						pair.alternates.add(new RIPAlternate(route.nextHops[i].getGatewayAddress(),
+								route.nextHops[i].getInterface(), curTime));
+					}
+					ripEntries.put(subnetIp, pair);
+					scheduleRipTimeout(subnetIp, pair, RIP_TIMEOUT);
+				}
+			}
+		}
+		finally {
+			routeTable.endUpdate();
+		}
+
+		int arpEntries = 0;
+		for (ArpEntry entry: snapshot.getArpEntries()) {
+			if (arpCache.restore(entry)) {
+				arpEntries++;
+			}
+		}
+
+		System.out.println(String.format("Restored %d routes (%d learned through RIP) and %d ARP entries"
+				+ " from a snapshot taken %d s ago", snapshot.getRoutes().size(), snapshot.getRipRoutes().size(),
+				arpEntries, (curTime - snapshot.getTime()) / 1000));
+		if (snapshot.getSkipped() > 0) {
+			System.out.println("Skipped " + snapshot.getSkipped() + " entries for interfaces the router does not have");
+		}
+		return true;
+	}
+
+	/**
+	 * Save a snapshot periodically, and when the router is destroyed. Each
+	 * snapshot is taken on the timing wheel, but written to the file by a
+	 * thread of its own.
+	 * @param snapshotFile the name of the file
+	 * @param interval time (in milliseconds) between snapshots; 0 to only save
+	 *        one when the router is destroyed
+	 */
+	public void startCheckpoints(final String snapshotFile, long interval) {
+		final ExecutorService snapshotWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "vnet-snapshot");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.snapshotFile = snapshotFile;
+		this.snapshotWriter = snapshotWriter;
+		if (interval > 0) {
+			this.getTimingWheel().schedule(new Runnable() {
+				@Override
+				public void run() {
+					final RouterSnapshot snapshot = takeSnapshot();
+					try {
+						snapshotWriter.execute(new Runnable() {
+							@Override
+							public void run() {
+								writeSnapshot(snapshot, snapshotFile);
+							}
+						});
+					}
+					catch (RejectedExecutionException e) {
+						// the router is being destroyed, and saves a last snapshot
+					}
+				}
+			}, interval, interval);
+		}
+	}
+
 	/**
 	 * Load a new ARP cache from a file.
 	 * @param arpCacheFile the name of the file containing the ARP cache
@@ -123,16 +509,24 @@ public class Router extends Device {
 	 * via the router’s interfaces.
 	 */
 	public void startRip() {
-		for (Iface iface : this.interfaces.values()) {
-			int subnetMask = iface.getSubnetMask();
-			int subnetIp = iface.getIpAddress() & subnetMask;
-			if (routeTable.lookup(subnetIp) == null) {
-				routeTable.insert(subnetIp, 0, subnetMask, iface);
-				ripEntries.put(subnetIp,
-					new RIPPair(new RIPv2Entry(subnetIp, subnetMask, 0), RIP_PERSISTENT_TIMESTAMP)
-				);
+		routeTable.beginUpdate();
+		try {
+			for (Iface iface : this.interfaces.values()) {
+				int subnetMask = iface.getSubnetMask();
+				int subnetIp = iface.getIpAddress() & subnetMask;
+				// the interface wins over a route restored from a snapshot
+				RIPPair pair = ripEntries.get(subnetIp);
+				if (null == pair || !RIP_PERSISTENT_TIMESTAMP.equals(pair.timestamp)) {
+					routeTable.insert(subnetIp, 0, subnetMask, iface);
+					ripEntries.put(subnetIp,
+						new RIPPair(new RIPv2Entry(subnetIp, subnetMask, 0), RIP_PERSISTENT_TIMESTAMP)
+					);
+				}
 			}
 		}
+		finally {
+			routeTable.endUpdate();
+		}
 		this.runRipFlag = true;
 
 		System.out.println("No static route table. Initialize route table by directly reachable subnets.");
@@ -141,64 +535,329 @@ public class Router extends Device {
 		System.out.println("-------------------------------------------------");
 
 		for (Iface iface : this.interfaces.values()) {
-			sendRipPacket(RIPv2.COMMAND_REQUEST, null, iface, false);
+			sendRipPacket(RIPv2.COMMAND_REQUEST, null, iface, false, advertisedRipEntries(iface, false));
 		}
 
-		Timer timer = new Timer(true);
+		TimingWheel timingWheel = this.getTimingWheel();
 
 		// unsolicited RIP response
-		timer.schedule(new TimerTask() {
+		scheduleRipUpdate();
+
+		// show distance vector, when debugging
+		timingWheel.schedule(new Runnable() {
 			@Override
 			public void run() {
-				for (Iface iface : interfaces.values()) {
-					sendRipPacket(RIPv2.COMMAND_RESPONSE, null, iface, true);
+				if (Log.isEnabled(Log.DEBUG)) {
+					System.out.print(dumpRipEntries());
 				}
 			}
-		}, 10000, 10000);
+		}, 13000, 13000);
 
-		// time out route table entries
-		timer.schedule(new TimerTask() {
+		System.out.println("RIP started. Two tasks are created.");
+	}
+
+	/**
+	 * Time out a learned RIP entry once it has not been refreshed for RIP_TIMEOUT,
+	 * and delete it once it has been unreachable for RIP_GARBAGE_TIMEOUT. Refreshing
+	 * the entry does not reschedule the timeout; when it fires, it is rescheduled
+	 * for the time remaining since the refresh.
+	 */
+	private void scheduleRipTimeout(final int subnetIp, final RIPPair pair, long delay) {
+		this.getTimingWheel().schedule(new Runnable() {
 			@Override
 			public void run() {
-				synchronized(ripEntries) {
-					Long curTime = System.currentTimeMillis();
-					for (RIPPair pair: ripEntries.values()) {
-						if (pair.timestamp != RIP_PERSISTENT_TIMESTAMP && curTime - pair.timestamp >= RIP_TIMEOUT) {
-							ripEntries.remove(pair.entry.getAddress() & pair.entry.getSubnetMask());
-							routeTable.remove(pair.entry.getAddress(), pair.entry.getSubnetMask());
-							System.out.println("[RIP] timeout: " + IPv4.fromIPv4Address(pair.entry.getAddress()));
-							showUpdatedRouteTable();
+				expireRipEntry(subnetIp, pair);
+			}
+		}, delay);
+	}
+
+	private void expireRipEntry(int subnetIp, RIPPair pair) {
+		long remaining;
+		boolean routeTableUpdated = false;
+		routeTable.beginUpdate();
+		try {
+			synchronized(ripEntries) {
+				if (ripEntries.get(subnetIp) != pair) {
+					return;
+				}
+				long curTime = System.currentTimeMillis();
+				if (pair.entry.getMetric() < RIP_METRIC_INF) {
+					// stop routing through other neighbors that no longer advertise the route
+					for (int i = pair.alternates.size() - 1; i >= 0; i--) {
+						if (curTime - pair.alternates.get(i).timestamp >= RIP_TIMEOUT) {
+							removeRipAlternate(pair, pair.alternates.get(i));
+							routeTableUpdated = true;
 						}
 					}
+					remaining = RIP_TIMEOUT - (curTime - pair.timestamp);
+					if (remaining <= 0 && !pair.alternates.isEmpty()) {
+						promoteRipAlternate(pair);
+						routeTableUpdated = true;
+						remaining = RIP_TIMEOUT - (curTime - pair.timestamp);
+					}
+					for (RIPAlternate alternate: pair.alternates) {
+						remaining = Math.min(remaining, RIP_TIMEOUT - (curTime - alternate.timestamp));
+					}
+					if (remaining <= 0) {
+						// advertise the route as unreachable until it is deleted
+						System.out.println("[RIP] timeout: " + IPv4.fromIPv4Address(pair.entry.getAddress()));
+						unreachableRipEntry(pair, curTime);
+						routeTableUpdated = true;
+						remaining = RIP_GARBAGE_TIMEOUT;
+					}
+				}
+				else {
+					remaining = RIP_GARBAGE_TIMEOUT - (curTime - pair.timestamp);
+					if (remaining <= 0) {
+						ripEntries.remove(subnetIp);
+						System.out.println("[RIP] delete: " + IPv4.fromIPv4Address(pair.entry.getAddress()));
+					}
+				}
+			}
+		}
+		finally {
+			routeTable.endUpdate();
+		}
+		if (routeTableUpdated) {
+			showUpdatedRouteTable();
+		}
+		if (remaining > 0) {
+			scheduleRipTimeout(subnetIp, pair, remaining);
+		}
+	}
+
+	/**
+	 * Mark a route as unreachable and remove it from the route table; must be
+	 * called within a route table update, holding the ripEntries lock.
+	 */
+	private void unreachableRipEntry(RIPPair pair, long curTime) {
+		pair.entry.setMetric(RIP_METRIC_INF);
+		pair.timestamp = curTime;
+		pair.alternates.clear();
+		routeTable.remove(pair.entry.getAddress(), pair.entry.getSubnetMask());
+		markRipEntryChanged(pair);
+	}
+
+	/**
+	 * Route through another neighbor at the same metric as well as through the
+	 * gateway; must be called within a route table update, holding the
+	 * ripEntries lock.
+	 * @return false if the route has as many next hops as it may have
+	 */
+	private boolean addRipAlternate(RIPPair pair, int gateway, Iface iface, long curTime) {
+		if (!routeTable.addNextHop(pair.entry.getAddress(), pair.entry.getSubnetMask(), gateway, iface)) {
+			return false;
+		}
+		pair.alternates.add(new RIPAlternate(gateway, iface, curTime));
+		// the route is now poisoned back to this neighbor too
+		markRipEntryChanged(pair);
+		return true;
+	}
+
+	/**
+	 * Stop routing through another neighbor; must be called within a route
+	 * table update, holding the ripEntries lock.
+	 */
+	private void removeRipAlternate(RIPPair pair, RIPAlternate alternate) {
+		pair.alternates.remove(alternate);
+		routeTable.removeNextHop(pair.entry.getAddress(), pair.entry.getSubnetMask(),
+				alternate.gateway, alternate.iface);
+		markRipEntryChanged(pair);
+	}
+
+	/**
+	 * Stop routing through the gateway of a route, and make its first alternate
+	 * the gateway instead; the metric is unchanged. Must be called within a route
+	 * table update, holding the ripEntries lock.
+	 */
+	private void promoteRipAlternate(RIPPair pair) {
+		RIPAlternate alternate = pair.alternates.remove(0);
+		routeTable.removeNextHop(pair.entry.getAddress(), pair.entry.getSubnetMask(),
+				pair.gateway, pair.iface);
+		pair.gateway = alternate.gateway;
+		pair.iface = alternate.iface;
+		pair.timestamp = alternate.timestamp;
+		markRipEntryChanged(pair);
+	}
+
+	/**
+	 * Mark a route as changed and schedule a triggered update carrying it; must
+	 * be called holding the ripEntries lock.
+	 */
+	private void markRipEntryChanged(RIPPair pair) {
+		pair.changed = true;
+		if (ripTriggerPending) {
+			return;
+		}
+		ripTriggerPending = true;
+		long delay = Math.max(0, ripNextTriggerTime - System.currentTimeMillis());
+		this.getTimingWheel().schedule(new Runnable() {
+			@Override
+			public void run() {
+				sendRipUpdate(true);
+			}
+		}, delay);
+	}
+
+	/**
+	 * Schedule the next regular update, RIP_UPDATE_INTERVAL from now give or take
+	 * RIP_UPDATE_JITTER, so routers started together do not send together.
+	 */
+	private void scheduleRipUpdate() {
+		long delay = RIP_UPDATE_INTERVAL + ThreadLocalRandom.current().nextLong(
+				-RIP_UPDATE_JITTER, RIP_UPDATE_JITTER + 1);
+		this.getTimingWheel().schedule(new Runnable() {
+			@Override
+			public void run() {
+				sendRipUpdate(false);
+				scheduleRipUpdate();
+			}
+		}, delay);
+	}
+
+	/**
+	 * Send a response on every interface: the whole distance vector for a regular
+	 * update, or only the routes that changed since the last update for a
+	 * triggered one. Either way, the change flags are cleared. The messages of a
+	 * regular update are spread over RIP_PACING_TIME; triggered updates are sent
+	 * at once.
+	 * @param triggered whether only changed routes are sent
+	 */
+	private void sendRipUpdate(boolean triggered) {
+		Map<Iface, List<RIPv2Entry>> responses = new HashMap<Iface, List<RIPv2Entry>>();
+		synchronized(ripEntries) {
+			for (Iface iface : interfaces.values()) {
+				responses.put(iface, advertisedRipEntries(iface, triggered));
+			}
+			for (RIPPair pair: ripEntries.values()) {
+				pair.changed = false;
+			}
+			if (triggered) {
+				ripTriggerPending = false;
+				ripNextTriggerTime = System.currentTimeMillis() + ThreadLocalRandom.current().nextLong(
+						RIP_TRIGGER_MIN_DELAY, RIP_TRIGGER_MAX_DELAY + 1);
+			}
+		}
+		if (triggered) {
+			for (Map.Entry<Iface, List<RIPv2Entry>> response: responses.entrySet()) {
+				if (!response.getValue().isEmpty()) {
+					sendRipPacket(RIPv2.COMMAND_RESPONSE, null, response.getKey(), true, response.getValue());
 				}
 			}
-		}, 0, 100);
+			return;
+		}
+
+		// take messages from each interface in turn, so every neighbor gets the
+		// start of the table early
+		final List<Iface> ifaces = new ArrayList<Iface>();
+		final List<List<RIPv2Entry>> messages = new ArrayList<List<RIPv2Entry>>();
+		for (int first = 0; ; first += RIPv2.MAX_ENTRIES) {
+			boolean more = false;
+			for (Map.Entry<Iface, List<RIPv2Entry>> response: responses.entrySet()) {
+				List<RIPv2Entry> entries = response.getValue();
+				if (first < entries.size() || (0 == first && entries.isEmpty())) {
+					ifaces.add(response.getKey());
+					messages.add(entries.subList(first, Math.min(entries.size(), first + RIPv2.MAX_ENTRIES)));
+					more = true;
+				}
+			}
+			if (!more) {
+				break;
+			}
+		}
+
+		long ticks = Math.max(1, RIP_PACING_TIME / TimingWheel.DEFAULT_TICK);
+		final int perTick = (int)((messages.size() + ticks - 1) / ticks);
+		final TimingWheel timingWheel = this.getTimingWheel();
+		timingWheel.schedule(new Runnable() {
+			int next = 0;
 
-		// show distance vector
-		timer.schedule(new TimerTask() {
 			@Override
 			public void run() {
-				synchronized(ripEntries) {
-					System.out.println("Show route entries.");
-					System.out.println("-------------------------------------------------");
-					for (RIPPair pair: ripEntries.values()) {
-						System.out.println(pair.entry.toString() + " timestamp: " + String.valueOf(pair.timestamp));
+				final int end = Math.min(messages.size(), next + perTick);
+				sendBurst(new Runnable() {
+					@Override
+					public void run() {
+						for (; next < end; next++) {
+							sendRipPacket(RIPv2.COMMAND_RESPONSE, null, ifaces.get(next), true, messages.get(next));
+						}
 					}
-					System.out.println("-------------------------------------------------");
+				});
+				if (next < messages.size()) {
+					timingWheel.schedule(this, 0);
 				}
 			}
-		}, 13000, 13000);
+		}, 0);
+	}
 
-		System.out.println("RIP started. Two tasks are created.");
+	/**
+	 * Copy the routes to advertise out an interface. Routes learned on the
+	 * interface, from the gateway or an alternate, are advertised as unreachable
+	 * (split horizon with poisoned reverse).
+	 * @param outIface interface the routes are sent on
+	 * @param changedOnly whether only routes changed since the last update are copied
+	 */
+	private List<RIPv2Entry> advertisedRipEntries(Iface outIface, boolean changedOnly) {
+		List<RIPv2Entry> entries = new ArrayList<RIPv2Entry>();
+		synchronized(ripEntries) {
+			for (RIPPair pair: ripEntries.values()) {
+				if (changedOnly && !pair.changed) {
+					continue;
+				}
+				int metric = pair.learnedOn(outIface) ? RIP_METRIC_INF : pair.entry.getMetric();
+				entries.add(new RIPv2Entry(pair.entry.getAddress(), pair.entry.getSubnetMask(), metric));
+			}
+		}
+		return entries;
 	}
 
+	/**
+	 * Print the whole route table after it changed, when debugging; the
+	 * changes themselves are printed by printRouteChanges.
+	 */
 	private void showUpdatedRouteTable() {
+		if (!Log.isEnabled(Log.DEBUG)) {
+			return;
+		}
 		System.out.println("Route table updated. Show new route table.");
 		System.out.println("-------------------------------------------------");
 		System.out.print(this.routeTable.toString());
 		System.out.println("-------------------------------------------------");
 	}
 
+	/**
+	 * Print the changes of a route table update, one per line, or only how many
+	 * there were if there are many.
+	 */
+	private void printRouteChanges(List<RouteChange> changes) {
+		if (!Log.isEnabled(Log.INFO)) {
+			return;
+		}
+		if (changes.size() > ROUTE_CHANGES_PRINTED) {
+			System.out.println(String.format("[Route] %d changes (#%d to #%d)", changes.size(),
+					changes.get(0).getSequence(), changes.get(changes.size() - 1).getSequence()));
+			return;
+		}
+		for (RouteChange change: changes) {
+			System.out.println("[Route] " + change);
+		}
+	}
+
+	/**
+	 * @return the distance vector, one entry per line
+	 */
+	public String dumpRipEntries() {
+		StringBuilder result = new StringBuilder("Show route entries.\n");
+		result.append("-------------------------------------------------\n");
+		synchronized(ripEntries) {
+			for (RIPPair pair: ripEntries.values()) {
+				result.append(pair.entry.toString()).append(" timestamp: ").append(pair.timestamp).append('\n');
+			}
+		}
+		result.append("-------------------------------------------------\n");
+		return result.toString();
+	}
+
 	/**
 	 * Handle an Ethernet packet received on a specific interface.
 	 * @param etherPacket the Ethernet packet that was received
@@ -225,6 +884,111 @@ public class Router extends Device {
 		/********************************************************************/
 	}
 
+	/**
+	 * Handle an Ethernet frame received on a specific interface. IPv4 packets
+	 * that only need to be forwarded to a next hop with a known MAC address are
+	 * rewritten and sent directly from the receive buffer; all other frames are
+	 * deserialized and passed to handlePacket.
+	 */
+	@Override
+	public void handleFrame(byte[] frame, int offset, int length, Iface inIface) {
+		if (!this.fastForward(frame, offset, length, inIface)) {
+			super.handleFrame(frame, offset, length, inIface);
+		}
+	}
+
+	/**
+	 * Forward an IPv4 packet in place, if nothing but a route and ARP lookup is
+	 * needed to do so. The frame is patched in the buffer it was received in,
+	 * which is then sent as is with the new interface name.
+	 * @return true if the packet was forwarded, false if it must be handled by
+	 *         handlePacket
+	 */
+	private boolean fastForward(byte[] frame, int offset, int length, Iface inIface) {
+		FrameViews views = this.frameViews.get();
+		EthernetView ether = views.ether;
+		IPv4View ip = views.ip;
+		if (null == inIface
+				|| !ether.wrap(frame, offset, length)
+				|| ether.getEtherType() != Ethernet.TYPE_IPv4
+				|| !ip.wrap(ether)
+				|| !ip.isChecksumValid()
+				|| (ip.getTtl() & 0xff) <= 1) {
+			return false;
+		}
+
+		// Packets for the router itself, including RIP, take the slow path
+		int dstAddr = ip.getDestinationAddress();
+		if (runRipFlag && dstAddr == RIP_MULTICAST_ADDR) {
+			return false;
+		}
+		for (Iface iface: this.interfaces.values()) {
+			if (iface.getIpAddress() == dstAddr) {
+				return false;
+			}
+		}
+
+		// So do packets needing an ICMP error or an ARP request
+		RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
+		if (null == bestMatch) {
+			return false;
+		}
+		NextHop route = selectNextHop(bestMatch, ip);
+		Iface outIface = route.getInterface();
+		if (outIface == inIface) {
+			return false;
+		}
+		int nextHop = route.getGatewayAddress();
+		if (0 == nextHop) {
+			nextHop = dstAddr;
+		}
+		long nextHopMac = this.arpCache.lookupMac(nextHop);
+		if (ArpCache.NO_MAC == nextHopMac) {
+			return false;
+		}
+
+		ip.decrementTtl();
+		ether.setSourceMAC(outIface.getMacAddress().toLong());
+		ether.setDestinationMAC(nextHopMac);
+		this.forwardFrame(frame, offset, length, outIface);
+		return true;
+	}
+
+	/**
+	 * Choose the next hop of a packet among the equal cost next hops of its
+	 * route, by the hash of its flow.
+	 */
+	private static NextHop selectNextHop(RouteEntry route, IPv4View ip) {
+		if (1 == route.getNextHopCount()) {
+			return route.selectNextHop(0);
+		}
+		return route.selectNextHop(RouteEntry.hashFlow(ip.getSourceAddress(),
+				ip.getDestinationAddress(), ip.getProtocol(), ip.getTransportPorts()));
+	}
+
+	/**
+	 * Choose the next hop of a deserialized packet; the same next hop as for
+	 * the packet viewed in its buffer.
+	 */
+	private static NextHop selectNextHop(RouteEntry route, IPv4 ipPacket) {
+		if (1 == route.getNextHopCount()) {
+			return route.selectNextHop(0);
+		}
+		int ports = 0;
+		boolean fragment = (ipPacket.getFlags() & IPv4View.FLAG_MORE_FRAGMENTS) != 0
+				|| ipPacket.getFragmentOffset() != 0;
+		if (!fragment && ipPacket.getPayload() instanceof TCP) {
+			TCP tcp = (TCP)ipPacket.getPayload();
+			ports = (tcp.getSourcePort() << 16) | (tcp.getDestinationPort() & 0xffff);
+		}
+		else if (!fragment && ipPacket.getPayload() instanceof UDP) {
+			UDP udp = (UDP)ipPacket.getPayload();
+			ports = (udp.getSourcePort() << 16) | (udp.getDestinationPort() & 0xffff);
+		}
+		return route.selectNextHop(RouteEntry.hashFlow(ipPacket.getSourceAddress(),
+				ipPacket.getDestinationAddress(), ipPacket.getProtocol(), ports));
+	}
+
 	private static int bytesToInt(byte[] bytes) {
 		return ByteBuffer.wrap(bytes).getInt();
 	}
@@ -250,27 +1014,19 @@ public class Router extends Device {
 
         System.out.println("Handle IP packet");
 
-        // Verify checksum
-        short origCksum = ipPacket.getChecksum();
-        ipPacket.resetChecksum();
-        byte[] serialized = ipPacket.serialize();
-        ipPacket.deserialize(serialized, 0, serialized.length);
-        short calcCksum = ipPacket.getChecksum();
-        if (origCksum != calcCksum) {
+        // Verify checksum over the header only
+        if (!ipPacket.isChecksumValid()) {
 			System.out.println("[IP Error] checksum failed");
 			return;
 		}
 
-        // Check TTL
-        ipPacket.setTtl((byte)(ipPacket.getTtl()-1));
+        // Check TTL; the checksum is updated along with it
+        ipPacket.decrementTtl();
         if (0 == ipPacket.getTtl()) {
 			this.sendIcmpPacket((byte)11, (byte)0, ipPacket, inIface); // time exceed message
 			return;
 		}
 
-        // Reset checksum now that TTL is decremented
-        ipPacket.resetChecksum();
-
         // Check if packet is destined for one of router's interfaces
         for (Iface iface: this.interfaces.values()) {
 			if (iface.getIpAddress() == ipPacket.getDestinationAddress()) {
@@ -311,19 +1067,10 @@ public class Router extends Device {
 		else if (arpPacket.getOpCode() == ARP.OP_REPLY) {
 			int queryIp = bytesToInt(arpPacket.getSenderProtocolAddress());
 			byte[] queryMac = arpPacket.getSenderHardwareAddress();
-			arpCache.insert(MACAddress.valueOf(arpPacket.getSenderHardwareAddress()), queryIp);
+			arpCache.insert(queryMac, queryIp);
 
-			synchronized(arpWaitLists) {
-				ArrayList<Ethernet> waitList = arpWaitLists.get(queryIp);
-				if (waitList  == null) {
-					System.out.println("[ARP Error] receive a ARP Reply but not found in WaitList.");
-					return;
-				}
-				for (Ethernet ether: waitList) {
-					ether.setDestinationMACAddress(queryMac);
-					this.sendPacket(ether, inIface);
-				}
-			}
+			// send packets waiting for the reply, if any (replies to refreshes have none)
+			arpResolver.resolved(queryIp, queryMac);
 		}
 	}
 
@@ -332,59 +1079,112 @@ public class Router extends Device {
 		RIPv2 ripPacket = (RIPv2) udpPacket.getPayload();
 		if (ripPacket.getCommand() == RIPv2.COMMAND_REQUEST) {
 			System.out.println("RIP Request from: " + IPv4.fromIPv4Address(ipPacket.getSourceAddress()));
-			sendRipPacket(RIPv2.COMMAND_RESPONSE, etherPacket, inIface, false);
+			sendRipPacket(RIPv2.COMMAND_RESPONSE, etherPacket, inIface, false, advertisedRipEntries(inIface, false));
 		}
 		else if (ripPacket.getCommand() == RIPv2.COMMAND_RESPONSE) {
 			System.out.println("RIP Response from: " + IPv4.fromIPv4Address(ipPacket.getSourceAddress()));
 			Long curTime = System.currentTimeMillis();
-			for (RIPv2Entry entry: ripPacket.getEntries()) {
-				int newMetric = Math.min(entry.getMetric()+1, RIP_METRIC_INF);
-				int subnetIp = entry.getAddress() & entry.getSubnetMask();
-				boolean rootTableUpdated = false;
+			boolean routeTableUpdated = false;
+			// all changes carried by one response are published together
+			routeTable.beginUpdate();
+			try {
+				for (RIPv2Entry entry: ripPacket.getEntries()) {
+					if (updateRipEntry(entry, ipPacket.getSourceAddress(), inIface, curTime)) {
+						routeTableUpdated = true;
+					}
+				}
+			}
+			finally {
+				routeTable.endUpdate();
+			}
 
-				synchronized(ripEntries) {
-					if (ripEntries.containsKey(subnetIp)) {
-						RIPPair pair = ripEntries.get(subnetIp);
+			if (routeTableUpdated) {
+				showUpdatedRouteTable();
+			}
+		}
+	}
 
-						if (pair.timestamp != RIP_PERSISTENT_TIMESTAMP && newMetric <= pair.entry.getMetric()) {
-							pair.timestamp = curTime;
-						}
+	/**
+	 * Merge one advertised RIP entry into the distance vector and the route table
+	 * (RFC2453 3.9.2). Other neighbors advertising a route at the same metric as
+	 * its gateway are kept as alternates, and packets are spread over all of them.
+	 * Must be called within a route table update.
+	 * @return true if the route table was modified
+	 */
+	private boolean updateRipEntry(RIPv2Entry entry, int gwIp, Iface inIface, Long curTime) {
+		int newMetric = Math.min(entry.getMetric()+1, RIP_METRIC_INF);
+		int subnetIp = entry.getAddress() & entry.getSubnetMask();
 
-						if (newMetric < RIP_METRIC_INF) {
-							if (newMetric < pair.entry.getMetric()) {
-								pair.entry.setMetric(newMetric);
-								routeTable.update(entry.getAddress(), entry.getSubnetMask(), ipPacket.getSourceAddress(), inIface);
-								rootTableUpdated = true;
-								System.out.println("[RIP] update routeTable: " + IPv4.fromIPv4Address(entry.getAddress()));
-							}
-						}
-						else {
-							RouteEntry bestMatch = routeTable.lookup(entry.getAddress());
-							if (bestMatch != null && bestMatch.getInterface() == inIface) {
-								// poisoned reverse
-								pair.entry.setMetric(newMetric);
-								routeTable.remove(entry.getAddress(), entry.getSubnetMask());
-								rootTableUpdated = true;
-							}
-						}
-					}
-					else {
-						ripEntries.put(subnetIp, new RIPPair(
-							new RIPv2Entry(entry.getAddress(), entry.getSubnetMask(), newMetric),
-							curTime
-						));
-						if (newMetric < RIP_METRIC_INF) {
-							routeTable.insert(entry.getAddress(), ipPacket.getSourceAddress(), entry.getSubnetMask(), inIface);
-							rootTableUpdated = true;
-							System.out.println("[RIP] insert routeTable: " + IPv4.fromIPv4Address(entry.getAddress()));
-						}
-					}
+		synchronized(ripEntries) {
+			RIPPair pair = ripEntries.get(subnetIp);
+			if (null == pair) {
+				// nothing to learn from an unreachable route we do not have
+				if (newMetric >= RIP_METRIC_INF) {
+					return false;
 				}
+				pair = new RIPPair(
+					new RIPv2Entry(entry.getAddress(), entry.getSubnetMask(), newMetric),
+					curTime, gwIp, inIface
+				);
+				ripEntries.put(subnetIp, pair);
+				scheduleRipTimeout(subnetIp, pair, RIP_TIMEOUT);
+				routeTable.insert(entry.getAddress(), gwIp, entry.getSubnetMask(), inIface);
+				markRipEntryChanged(pair);
+				return true;
+			}
+
+			// directly connected subnets are never replaced
+			if (pair.timestamp == RIP_PERSISTENT_TIMESTAMP) {
+				return false;
+			}
 
-				if (rootTableUpdated) {
-					showUpdatedRouteTable();
+			int oldMetric = pair.entry.getMetric();
+			boolean sameGateway = (pair.gateway == gwIp);
+			RIPAlternate alternate = pair.findAlternate(gwIp);
+			if (sameGateway && newMetric < RIP_METRIC_INF) {
+				pair.timestamp = curTime;
+			}
+			if (alternate != null) {
+				if (newMetric == oldMetric) {
+					alternate.timestamp = curTime;
+					return false;
+				}
+				if (newMetric > oldMetric) {
+					removeRipAlternate(pair, alternate);
+					return true;
 				}
 			}
+			else if (!sameGateway && newMetric == oldMetric && newMetric < RIP_METRIC_INF) {
+				return addRipAlternate(pair, gwIp, inIface, curTime);
+			}
+			if (newMetric == oldMetric || (!sameGateway && newMetric >= oldMetric)) {
+				return false;
+			}
+
+			if (newMetric > oldMetric && !pair.alternates.isEmpty()) {
+				// the gateway got worse or lost the route; keep routing through the others
+				promoteRipAlternate(pair);
+				return true;
+			}
+
+			if (newMetric >= RIP_METRIC_INF) {
+				// the neighbor we route through lost the route, or poisoned it back to us
+				unreachableRipEntry(pair, curTime);
+				System.out.println("[RIP] unreachable: " + IPv4.fromIPv4Address(entry.getAddress()));
+				return true;
+			}
+
+			// a better route, or a new metric from the neighbor we route through;
+			// insert replaces the route and all its next hops, and the route may have
+			// been removed while unreachable
+			pair.alternates.clear();
+			pair.entry.setMetric(newMetric);
+			pair.gateway = gwIp;
+			pair.iface = inIface;
+			pair.timestamp = curTime;
+			routeTable.insert(entry.getAddress(), gwIp, entry.getSubnetMask(), inIface);
+			markRipEntryChanged(pair);
+			return true;
 		}
 	}
 
@@ -442,33 +1242,16 @@ public class Router extends Device {
 	}
 
 	/**
-	 * A wrapper of the necessary information in ArpSendTask.
-	 * (Since TimerTask.run can not use local variable)
+	 * Re-request the MAC address of a next hop whose ARP cache entry is about
+	 * to expire, on the interface it is reached through.
 	 */
-	private void arpTaskWithContext(final int nextHop, final IPv4 ipPacket, final Iface inIface, final Iface outIface) {
-		new Timer().schedule(
-			new TimerTask() {
-				int sentCounter = 0;
-				@Override
-				public void run() {
-					if (arpCache.lookup(nextHop) != null) {
-						this.cancel();
-						return;
-					}
-
-					if (sentCounter == 3) {
-						// 1 sec after third sent
-						sendIcmpPacket((byte)3, (byte)1, ipPacket, inIface);
-						arpWaitLists.remove(nextHop);
-						this.cancel();
-					}
-					else {
-						sendArpRequest(nextHop, inIface, outIface);
-						sentCounter ++;
-					}
-				}
-			}
-		, 0, 1000); // every 1 second)
+	private void refreshArpEntry(int nextHop) {
+		RouteEntry bestMatch = this.routeTable.lookup(nextHop);
+		if (null == bestMatch) {
+			return;
+		}
+		Iface outIface = bestMatch.getInterface();
+		this.sendArpRequest(nextHop, outIface, outIface);
 	}
 
 	private void sendIcmpPacket(byte icmpType, byte icmpCode, IPv4 ipPacket, Iface inIface) {
@@ -534,55 +1317,105 @@ public class Router extends Device {
 		this.sendPacket(ether, inIface);
 	}
 
-	private void sendRipPacket(byte command, Ethernet origEther, Iface outIface, boolean unsolicited) {
+	/**
+	 * Send RIP entries out an interface, in messages of at most RIPv2.MAX_ENTRIES
+	 * entries. Each message is built in a buffer reused by the thread.
+	 * @param origEther request being answered; null for requests and unsolicited
+	 *        responses, which are multicast
+	 */
+	private void sendRipPacket(byte command, Ethernet origEther, Iface outIface, boolean unsolicited,
+			List<RIPv2Entry> entries) {
 		System.out.println("Send RIP Packet. Command: " + String.valueOf(command));
 
+		// select by type
+		long dstMac;
+		int dstIp;
+		if (command == RIPv2.COMMAND_REQUEST || unsolicited) {
+			dstMac = MACAddress.valueOf(BROADCAST_MAC_ADDR).toLong();
+			dstIp = RIP_MULTICAST_ADDR;
+		}
+		else {
+			dstMac = origEther.getSourceMAC().toLong();
+			dstIp = ((IPv4)origEther.getPayload()).getSourceAddress();
+		}
+
+		byte[] frame = this.ripFrames.get();
+		int first = 0;
+		do {
+			int count = Math.min(entries.size() - first, RIPv2.MAX_ENTRIES);
+			int length = writeRipFrame(frame, command, outIface, dstMac, dstIp, entries, first, count);
+			this.sendFrame(frame, 0, length, outIface);
+			first += count;
+		} while (first < entries.size());
+	}
+
+	/**
+	 * Write a RIP message, with its Ethernet, IP and UDP headers, into a buffer.
+	 * @return length of the frame
+	 */
+	private static int writeRipFrame(byte[] frame, byte command, Iface outIface, long dstMac, int dstIp,
+			List<RIPv2Entry> entries, int first, int count) {
+		int ripLength = RIPv2.HEADER_LENGTH + count * RIPv2.ENTRY_LENGTH;
+		ByteBuffer bb = ByteBuffer.wrap(frame);
+
 		// making Ethernet Packet
-		Ethernet ether = new Ethernet();
-		ether.setEtherType(Ethernet.TYPE_IPv4);
-		ether.setSourceMACAddress(outIface.getMacAddress().toBytes());
+		bb.putShort((short)(dstMac >>> 32)).putInt((int)dstMac);
+		long srcMac = outIface.getMacAddress().toLong();
+		bb.putShort((short)(srcMac >>> 32)).putInt((int)srcMac);
+		bb.putShort(Ethernet.TYPE_IPv4);
 
 		// making ip
-		IPv4 ip = new IPv4();
-		ip.setProtocol(IPv4.PROTOCOL_UDP);
-		ip.setTtl((byte)64);
-		ip.setSourceAddress(outIface.getIpAddress());
+		bb.put((byte)0x45).put((byte)0);
+		bb.putShort((short)(20 + 8 + ripLength));
+		bb.putInt(0); // identification, flags and fragment offset
+		bb.put((byte)64).put(IPv4.PROTOCOL_UDP);
+		bb.putShort((short)0);
+		bb.putInt(outIface.getIpAddress());
+		bb.putInt(dstIp);
+		bb.putShort(14 + 10, (short)~foldChecksum(sumWords(frame, 14, 20, 0)));
 
 		// making udp
-		UDP udp = new UDP();
-		udp.setSourcePort(UDP.RIP_PORT);
-		udp.setDestinationPort(UDP.RIP_PORT);
+		bb.putShort(UDP.RIP_PORT).putShort(UDP.RIP_PORT);
+		bb.putShort((short)(8 + ripLength));
+		bb.putShort((short)0);
 
 		// making rip
-		RIPv2 rip = new RIPv2();
-		rip.setCommand(command);
-
-		synchronized(ripEntries) {
-			for (RIPPair pair: ripEntries.values()) {
-				rip.addEntry(new RIPv2Entry(pair.entry.getAddress(), pair.entry.getSubnetMask(), pair.entry.getMetric()));
-			}
+		bb.put(command).put(RIPv2.VERSION).putShort((short)0);
+		for (int i = first; i < first + count; i++) {
+			RIPv2Entry entry = entries.get(i);
+			bb.putShort(entry.getAddressFamily()).putShort(entry.getRouteTag());
+			bb.putInt(entry.getAddress()).putInt(entry.getSubnetMask());
+			bb.putInt(entry.getNextHopAddress()).putInt(entry.getMetric());
 		}
 
-		// select by type
-		if (command == RIPv2.COMMAND_REQUEST || unsolicited) {
-			ip.setDestinationAddress(RIP_MULTICAST_IP);
-			ether.setDestinationMACAddress(BROADCAST_MAC_ADDR);
+		// UDP checksum over the pseudo header, UDP header and RIP message
+		int sum = sumWords(frame, 14 + 12, 8, 0) + IPv4.PROTOCOL_UDP + 8 + ripLength;
+		short checksum = (short)~foldChecksum(sumWords(frame, 14 + 20, 8 + ripLength, sum));
+		bb.putShort(14 + 20 + 6, (0 == checksum) ? (short)0xffff : checksum);
+		return bb.position();
+	}
+
+	/**
+	 * @return sum of the 16-bit words of a buffer, added to an initial sum
+	 */
+	private static int sumWords(byte[] buf, int offset, int length, int sum) {
+		for (int i = 0; i + 1 < length; i += 2) {
+			sum += ((buf[offset + i] & 0xff) << 8) | (buf[offset + i + 1] & 0xff);
 		}
-		else {
-			ip.setDestinationAddress(((IPv4)origEther.getPayload()).getSourceAddress());
-			ether.setDestinationMACAddress(origEther.getSourceMACAddress());
+		if ((length & 1) != 0) {
+			sum += (buf[offset + length - 1] & 0xff) << 8;
 		}
+		return sum;
+	}
 
-		udp.setPayload(rip);
-		ip.setPayload(udp);
-		ether.setPayload(ip);
-
-		rip.resetChecksum();
-		udp.resetChecksum();
-		ip.resetChecksum();
-		ether.resetChecksum();
-
-		this.sendPacket(ether, outIface);
+	/**
+	 * @return a sum of 16-bit words folded into a ones' complement sum
+	 */
+	private static int foldChecksum(int sum) {
+		while ((sum >>> 16) != 0) {
+			sum = (sum & 0xffff) + (sum >>> 16);
+		}
+		return sum;
 	}
 
     private void forwardIpPacket(Ethernet etherPacket, Iface inIface) {
@@ -605,7 +1438,8 @@ public class Router extends Device {
 		}
 
         // Make sure we don't sent a packet back out the interface it came in
-        Iface outIface = bestMatch.getInterface();
+        NextHop route = selectNextHop(bestMatch, ipPacket);
+        Iface outIface = route.getInterface();
         if (outIface == inIface) {
 			// ...
 			return;
@@ -615,7 +1449,7 @@ public class Router extends Device {
         etherPacket.setSourceMACAddress(outIface.getMacAddress().toBytes());
 
         // If no gateway, then nextHop is IP destination
-        int nextHop = bestMatch.getGatewayAddress();
+        int nextHop = route.getGatewayAddress();
         if (0 == nextHop) {
 			nextHop = dstAddr;
 		}
@@ -624,15 +1458,8 @@ public class Router extends Device {
         ArpEntry arpEntry = this.arpCache.lookup(nextHop);
 
 		if (null == arpEntry) {
-			// synchronized it
-			synchronized(arpWaitLists) {
-				if (!arpWaitLists.containsKey(nextHop)) {
-					ArrayList<Ethernet> newWaitList = new ArrayList<Ethernet>();
-					arpWaitLists.put(nextHop, newWaitList);
-				}
-				arpWaitLists.get(nextHop).add(etherPacket);
-				arpTaskWithContext(nextHop, ipPacket, inIface, outIface);
-			}
+			// wait for the next hop to be resolved
+			this.arpResolver.resolve(nextHop, outIface, etherPacket, inIface);
 			return;
 		}
         etherPacket.setDestinationMACAddress(arpEntry.getMac().toBytes());
@@ -0,0 +1,381 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A binary snapshot of the state of a router: its route table, its ARP cache,
+ * and the routes it learned through RIP. A snapshot is read by mapping its
+ * file into memory, without parsing any text, so a router with a large table
+ * starts quickly, and one that was running RIP starts with the routes it had.
+ * <p>
+ * All numbers are big-endian. A snapshot starts with a header:
+ * <pre>
+ *   int    MAGIC
+ *   short  VERSION
+ *   short  0
+ *   long   time (in milliseconds since the epoch) it was written
+ *   int    CRC-32 of everything after the header
+ * </pre>
+ * followed by four sections, each an int count and that many items:
+ * <pre>
+ *   interface names  short length, UTF-8 bytes
+ *   routes           int destination, int mask, byte next hops, and per
+ *                    next hop: int gateway, short interface
+ *   ARP entries      int IP address, long MAC address, long time added,
+ *                    byte 1 if static
+ *   RIP routes       int address, int mask, int metric, byte next hops, and
+ *                    per next hop: int gateway, short interface
+ * </pre>
+ * Interfaces are referred to by their index in the names section, and are
+ * matched to the router's interfaces by name when the snapshot is read;
+ * entries for interfaces the router does not have are skipped.
+ * <p>
+ * A snapshot is written to a temporary file that is renamed over the old
+ * one, so a reader sees either the old or the new snapshot, never part of
+ * one.
+ */
+public class RouterSnapshot
+{
+	/** First bytes of a snapshot: "VNRS" */
+	public static final int MAGIC = 0x564e5253;
+
+	/** Version of the format written; snapshots of other versions are not
+	 *  read */
+	public static final short VERSION = 1;
+
+	private static final int HEADER_LENGTH = 4 + 2 + 2 + 8 + 4;
+
+	/** A route learned through RIP, with the neighbors it is learned from */
+	static class RipRoute
+	{
+		int address;
+		int mask;
+		int metric;
+
+		/** Gateway first, then the alternates at the same metric */
+		NextHop[] nextHops;
+
+		RipRoute(int address, int mask, int metric, NextHop[] nextHops)
+		{
+			this.address = address;
+			this.mask = mask;
+			this.metric = metric;
+			this.nextHops = nextHops;
+		}
+	}
+
+	/** Time (in milliseconds since the epoch) the snapshot was taken */
+	private long time;
+
+	private List<RouteEntry> routes;
+	private List<ArpEntry> arpEntries;
+	private List<RipRoute> ripRoutes;
+
+	/** Entries skipped when reading because their interface is unknown */
+	private int skipped;
+
+	/**
+	 * Create a snapshot.
+	 * @param routes entries of the route table
+	 * @param arpEntries entries of the ARP cache
+	 * @param ripRoutes routes learned through RIP
+	 */
+	RouterSnapshot(List<RouteEntry> routes, List<ArpEntry> arpEntries,
+			List<RipRoute> ripRoutes)
+	{
+		this.time = System.currentTimeMillis();
+		this.routes = routes;
+		this.arpEntries = arpEntries;
+		this.ripRoutes = ripRoutes;
+		this.skipped = 0;
+	}
+
+	/**
+	 * @return time (in milliseconds since the epoch) the snapshot was taken
+	 */
+	public long getTime()
+	{ return this.time; }
+
+	/**
+	 * @return entries of the route table
+	 */
+	public List<RouteEntry> getRoutes()
+	{ return this.routes; }
+
+	/**
+	 * @return entries of the ARP cache
+	 */
+	public List<ArpEntry> getArpEntries()
+	{ return this.arpEntries; }
+
+	List<RipRoute> getRipRoutes()
+	{ return this.ripRoutes; }
+
+	/**
+	 * @return number of entries that were not read because the router has no
+	 *         interface of their name
+	 */
+	public int getSkipped()
+	{ return this.skipped; }
+
+	/**
+	 * Write the snapshot to a file, replacing the file atomically.
+	 * @param filename name of the file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void write(String filename) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				HEADER_LENGTH + 64 + 16 * this.routes.size()
+				+ 21 * this.arpEntries.size() + 20 * this.ripRoutes.size());
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.write(new byte[HEADER_LENGTH]);
+
+		// Interfaces, in the order they are first referred to
+		Map<Iface, Integer> ifaceIndices = new HashMap<Iface, Integer>();
+		List<Iface> ifaces = new ArrayList<Iface>();
+		for (RouteEntry entry : this.routes)
+		{ addIfaces(entry.getNextHops(), ifaceIndices, ifaces); }
+		for (RipRoute route : this.ripRoutes)
+		{
+			for (NextHop nextHop : route.nextHops)
+			{ addIface(nextHop.getInterface(), ifaceIndices, ifaces); }
+		}
+		out.writeInt(ifaces.size());
+		for (Iface iface : ifaces)
+		{
+			byte[] name = iface.getName().getBytes(StandardCharsets.UTF_8);
+			out.writeShort(name.length);
+			out.write(name);
+		}
+
+		out.writeInt(this.routes.size());
+		for (RouteEntry entry : this.routes)
+		{
+			out.writeInt(entry.getDestinationAddress());
+			out.writeInt(entry.getMaskAddress());
+			out.writeByte(entry.getNextHopCount());
+			for (NextHop nextHop : entry.getNextHops())
+			{ writeNextHop(out, nextHop, ifaceIndices); }
+		}
+
+		out.writeInt(this.arpEntries.size());
+		for (ArpEntry entry : this.arpEntries)
+		{
+			out.writeInt(entry.getIp());
+			out.writeLong(entry.getMac().toLong());
+			out.writeLong(entry.getTimeAdded());
+			out.writeByte(entry.isStatic() ? 1 : 0);
+		}
+
+		out.writeInt(this.ripRoutes.size());
+		for (RipRoute route : this.ripRoutes)
+		{
+			out.writeInt(route.address);
+			out.writeInt(route.mask);
+			out.writeInt(route.metric);
+			out.writeByte(route.nextHops.length);
+			for (NextHop nextHop : route.nextHops)
+			{ writeNextHop(out, nextHop, ifaceIndices); }
+		}
+		out.flush();
+
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), HEADER_LENGTH,
+				buffer.limit() - HEADER_LENGTH);
+		buffer.putInt(MAGIC);
+		buffer.putShort(VERSION);
+		buffer.putShort((short)0);
+		buffer.putLong(this.time);
+		buffer.putInt((int)crc.getValue());
+		buffer.rewind();
+
+		Path path = Paths.get(filename).toAbsolutePath();
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		try
+		{
+			while (buffer.hasRemaining())
+			{ channel.write(buffer); }
+			channel.force(true);
+		}
+		finally
+		{ channel.close(); }
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void addIfaces(List<NextHop> nextHops,
+			Map<Iface, Integer> ifaceIndices, List<Iface> ifaces)
+	{
+		for (NextHop nextHop : nextHops)
+		{ addIface(nextHop.getInterface(), ifaceIndices, ifaces); }
+	}
+
+	private static void addIface(Iface iface, Map<Iface, Integer> ifaceIndices,
+			List<Iface> ifaces)
+	{
+		if (!ifaceIndices.containsKey(iface))
+		{
+			ifaceIndices.put(iface, ifaces.size());
+			ifaces.add(iface);
+		}
+	}
+
+	private static void writeNextHop(DataOutputStream out, NextHop nextHop,
+			Map<Iface, Integer> ifaceIndices) throws IOException
+	{
+		out.writeInt(nextHop.getGatewayAddress());
+		out.writeShort(ifaceIndices.get(nextHop.getInterface()));
+	}
+
+	/**
+	 * Read a snapshot from a file.
+	 * @param filename name of the file
+	 * @param router router whose interfaces the snapshot refers to
+	 * @return the snapshot
+	 * @throws IOException if the file cannot be read, or is not a valid
+	 *         snapshot of this version
+	 */
+	public static RouterSnapshot read(String filename, Router router)
+			throws IOException
+	{
+		MappedByteBuffer buffer;
+		FileChannel channel = FileChannel.open(Paths.get(filename),
+				StandardOpenOption.READ);
+		try
+		{
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		}
+		finally
+		{ channel.close(); }
+
+		try
+		{ return read(buffer, router); }
+		catch (BufferUnderflowException e)
+		{ throw new IOException(filename + " is truncated"); }
+		catch (IndexOutOfBoundsException e)
+		{ throw new IOException(filename + " refers to an unknown interface"); }
+	}
+
+	private static RouterSnapshot read(ByteBuffer buffer, Router router)
+			throws IOException
+	{
+		if (buffer.remaining() < HEADER_LENGTH || buffer.getInt() != MAGIC)
+		{ throw new IOException("not a router snapshot"); }
+		short version = buffer.getShort();
+		if (version != VERSION)
+		{
+			throw new IOException("snapshot version " + version
+					+ " is not supported");
+		}
+		buffer.getShort();
+		long time = buffer.getLong();
+		int expectedCrc = buffer.getInt();
+		CRC32 crc = new CRC32();
+		crc.update(buffer.duplicate());
+		if ((int)crc.getValue() != expectedCrc)
+		{ throw new IOException("snapshot is corrupt"); }
+
+		// Interfaces the router does not have are null
+		Iface[] ifaces = new Iface[buffer.getInt()];
+		for (int i = 0; i < ifaces.length; i++)
+		{
+			byte[] name = new byte[buffer.getShort() & 0xffff];
+			buffer.get(name);
+			ifaces[i] = router.getInterface(
+					new String(name, StandardCharsets.UTF_8));
+		}
+
+		int skipped = 0;
+		int count = buffer.getInt();
+		List<RouteEntry> routes = new ArrayList<RouteEntry>(count);
+		for (int i = 0; i < count; i++)
+		{
+			int destination = buffer.getInt();
+			int mask = buffer.getInt();
+			NextHop[] nextHops = readNextHops(buffer, ifaces);
+			if (null == nextHops)
+			{ skipped++; }
+			else
+			{ routes.add(new RouteEntry(destination, mask, nextHops)); }
+		}
+
+		count = buffer.getInt();
+		List<ArpEntry> arpEntries = new ArrayList<ArpEntry>(count);
+		for (int i = 0; i < count; i++)
+		{
+			int ip = buffer.getInt();
+			long mac = buffer.getLong();
+			long timeAdded = buffer.getLong();
+			boolean isStatic = (buffer.get() != 0);
+			arpEntries.add(new ArpEntry(MACAddress.valueOf(mac), ip,
+					timeAdded, isStatic));
+		}
+
+		count = buffer.getInt();
+		List<RipRoute> ripRoutes = new ArrayList<RipRoute>(count);
+		for (int i = 0; i < count; i++)
+		{
+			int address = buffer.getInt();
+			int mask = buffer.getInt();
+			int metric = buffer.getInt();
+			NextHop[] nextHops = readNextHops(buffer, ifaces);
+			if (null == nextHops)
+			{ skipped++; }
+			else
+			{ ripRoutes.add(new RipRoute(address, mask, metric, nextHops)); }
+		}
+
+		RouterSnapshot snapshot = new RouterSnapshot(routes, arpEntries,
+				ripRoutes);
+		snapshot.time = time;
+		snapshot.skipped = skipped;
+		return snapshot;
+	}
+
+	/**
+	 * Read the next hops of an entry, leaving out those whose interface the
+	 * router does not have.
+	 * @return the next hops; null if none are left
+	 */
+	private static NextHop[] readNextHops(ByteBuffer buffer, Iface[] ifaces)
+	{
+		int count = buffer.get() & 0xff;
+		List<NextHop> nextHops = new ArrayList<NextHop>(count);
+		for (int i = 0; i < count; i++)
+		{
+			int gateway = buffer.getInt();
+			Iface iface = ifaces[buffer.getShort() & 0xffff];
+			if (iface != null)
+			{ nextHops.add(new NextHop(gateway, iface)); }
+		}
+		if (nextHops.isEmpty())
+		{ return null; }
+		return nextHops.toArray(new NextHop[nextHops.size()]);
+	}
+}
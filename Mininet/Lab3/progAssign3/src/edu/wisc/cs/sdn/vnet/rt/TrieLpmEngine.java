@@ -0,0 +1,362 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Longest prefix match engine backed by a multibit trie with a fixed stride
+ * of 8 bits. Each node covers one byte of the address and stores, for each of
+ * its 256 slots, the longest prefix ending in that node that covers the slot
+ * (controlled prefix expansion). A lookup visits at most four nodes and does
+ * not allocate.
+ * <p>
+ * Copies share nodes with the engine they were made from. Each engine owns
+ * the nodes it created and clones any other node on the path it modifies, so
+ * a copy costs O(1) and a modification clones at most four nodes.
+ * <p>
+ * Prefix lengths are taken from the leading ones of the subnet mask, so masks
+ * are expected to be contiguous.
+ */
+public class TrieLpmEngine implements LpmEngine
+{
+	private static final int STRIDE = 8;
+	private static final int FANOUT = 1 << STRIDE;
+	private static final int LEVELS = 32 / STRIDE;
+
+	/** A node of the trie covering STRIDE bits of the address */
+	private static class Node
+	{
+		/** Token of the engine allowed to modify this node in place */
+		Object owner;
+
+		/** Longest prefix ending in this node that covers each slot */
+		RouteEntry[] slots;
+
+		/** Length (within the stride) of the prefix stored in each slot */
+		byte[] lengths;
+
+		/** Child nodes for longer prefixes; null until one is needed */
+		Node[] children;
+
+		/** Prefixes that end in this node, keyed by (1 << length) | bits */
+		short[] prefixKeys;
+		RouteEntry[] prefixes;
+		int prefixCount;
+
+		Node(Object owner)
+		{
+			this.owner = owner;
+			this.slots = new RouteEntry[FANOUT];
+			this.lengths = new byte[FANOUT];
+			this.prefixKeys = new short[2];
+			this.prefixes = new RouteEntry[2];
+		}
+
+		Node(Node other, Object owner)
+		{
+			this.owner = owner;
+			this.slots = other.slots.clone();
+			this.lengths = other.lengths.clone();
+			if (other.children != null)
+			{ this.children = other.children.clone(); }
+			this.prefixKeys = other.prefixKeys.clone();
+			this.prefixes = other.prefixes.clone();
+			this.prefixCount = other.prefixCount;
+		}
+
+		RouteEntry getPrefix(int key)
+		{
+			for (int i = 0; i < this.prefixCount; i++)
+			{
+				if (this.prefixKeys[i] == key)
+				{ return this.prefixes[i]; }
+			}
+			return null;
+		}
+
+		RouteEntry putPrefix(int key, RouteEntry entry)
+		{
+			for (int i = 0; i < this.prefixCount; i++)
+			{
+				if (this.prefixKeys[i] == key)
+				{
+					RouteEntry old = this.prefixes[i];
+					this.prefixes[i] = entry;
+					return old;
+				}
+			}
+			if (this.prefixCount == this.prefixKeys.length)
+			{
+				this.prefixKeys = Arrays.copyOf(this.prefixKeys,
+						this.prefixCount * 2);
+				this.prefixes = Arrays.copyOf(this.prefixes,
+						this.prefixCount * 2);
+			}
+			this.prefixKeys[this.prefixCount] = (short)key;
+			this.prefixes[this.prefixCount] = entry;
+			this.prefixCount++;
+			return null;
+		}
+
+		RouteEntry removePrefix(int key)
+		{
+			for (int i = 0; i < this.prefixCount; i++)
+			{
+				if (this.prefixKeys[i] == key)
+				{
+					RouteEntry old = this.prefixes[i];
+					this.prefixCount--;
+					this.prefixKeys[i] = this.prefixKeys[this.prefixCount];
+					this.prefixes[i] = this.prefixes[this.prefixCount];
+					this.prefixes[this.prefixCount] = null;
+					return old;
+				}
+			}
+			return null;
+		}
+	}
+
+	/** Root node covering the most significant byte */
+	private Node root;
+
+	/** Entry for the zero-length prefix */
+	private RouteEntry defaultRoute;
+
+	/** Number of entries in the trie */
+	private int size;
+
+	/** Token identifying the nodes this engine may modify in place */
+	private Object owner;
+
+	/**
+	 * Initialize an empty trie.
+	 */
+	public TrieLpmEngine()
+	{
+		this.owner = new Object();
+		this.root = new Node(this.owner);
+		this.defaultRoute = null;
+		this.size = 0;
+	}
+
+	/**
+	 * Initialize a trie sharing the nodes of another, none of which it may
+	 * modify in place.
+	 */
+	private TrieLpmEngine(Node root, RouteEntry defaultRoute, int size)
+	{
+		this.owner = new Object();
+		this.root = root;
+		this.defaultRoute = defaultRoute;
+		this.size = size;
+	}
+
+	public RouteEntry lookup(int ip)
+	{
+		RouteEntry bestMatch = this.defaultRoute;
+		Node node = this.root;
+		for (int level = 0; level < LEVELS; level++)
+		{
+			int index = slotIndex(ip, level);
+			RouteEntry entry = node.slots[index];
+			if (entry != null)
+			{ bestMatch = entry; }
+			if (null == node.children)
+			{ break; }
+			node = node.children[index];
+			if (null == node)
+			{ break; }
+		}
+		return bestMatch;
+	}
+
+	public RouteEntry find(int dstIp, int maskIp)
+	{
+		int length = prefixLength(maskIp);
+		if (0 == length)
+		{ return this.defaultRoute; }
+		int level = (length - 1) / STRIDE;
+		Node node = this.descend(dstIp, level);
+		if (null == node)
+		{ return null; }
+		return node.getPrefix(prefixKey(dstIp, length, level));
+	}
+
+	public RouteEntry insert(RouteEntry entry)
+	{
+		int dstIp = entry.getDestinationAddress();
+		int length = prefixLength(entry.getMaskAddress());
+		RouteEntry old;
+		if (0 == length)
+		{
+			old = this.defaultRoute;
+			this.defaultRoute = entry;
+		}
+		else
+		{
+			int level = (length - 1) / STRIDE;
+			int bits = length - level * STRIDE;
+			Node node = this.descendForWrite(dstIp, level);
+			old = node.putPrefix(prefixKey(dstIp, length, level), entry);
+
+			// Expand the prefix over every slot it covers, unless a longer
+			// prefix already owns the slot
+			int first = slotIndex(dstIp, level) & ~((1 << (STRIDE - bits)) - 1);
+			int last = first + (1 << (STRIDE - bits));
+			for (int slot = first; slot < last; slot++)
+			{
+				if (node.lengths[slot] <= bits)
+				{
+					node.slots[slot] = entry;
+					node.lengths[slot] = (byte)bits;
+				}
+			}
+		}
+		if (null == old)
+		{ this.size++; }
+		return old;
+	}
+
+	public RouteEntry remove(int dstIp, int maskIp)
+	{
+		int length = prefixLength(maskIp);
+		if (0 == length)
+		{
+			RouteEntry old = this.defaultRoute;
+			this.defaultRoute = null;
+			if (old != null)
+			{ this.size--; }
+			return old;
+		}
+
+		int level = (length - 1) / STRIDE;
+		int bits = length - level * STRIDE;
+		Node node = this.descend(dstIp, level);
+		if (null == node)
+		{ return null; }
+		int key = prefixKey(dstIp, length, level);
+		if (null == node.getPrefix(key))
+		{ return null; }
+		node = this.descendForWrite(dstIp, level);
+		RouteEntry old = node.removePrefix(key);
+		this.size--;
+
+		// Slots owned by the removed prefix fall back to the next longest
+		// prefix ending in this node, if any
+		int first = slotIndex(dstIp, level) & ~((1 << (STRIDE - bits)) - 1);
+		int last = first + (1 << (STRIDE - bits));
+		for (int slot = first; slot < last; slot++)
+		{
+			if (node.lengths[slot] != bits)
+			{ continue; }
+			node.slots[slot] = null;
+			node.lengths[slot] = 0;
+			for (int shorter = bits - 1; shorter > 0; shorter--)
+			{
+				RouteEntry entry = node.getPrefix(
+						(1 << shorter) | (slot >>> (STRIDE - shorter)));
+				if (entry != null)
+				{
+					node.slots[slot] = entry;
+					node.lengths[slot] = (byte)shorter;
+					break;
+				}
+			}
+		}
+		return old;
+	}
+
+	public List<RouteEntry> getEntries()
+	{
+		List<RouteEntry> result = new ArrayList<RouteEntry>(this.size);
+		if (this.defaultRoute != null)
+		{ result.add(this.defaultRoute); }
+		collect(this.root, result);
+		return result;
+	}
+
+	public int size()
+	{ return this.size; }
+
+	public LpmEngine copy()
+	{
+		// Neither engine may modify the shared nodes in place any more
+		this.owner = new Object();
+		return new TrieLpmEngine(this.root, this.defaultRoute, this.size);
+	}
+
+	/**
+	 * Walk down the trie to the node at a given level on the path of an IP.
+	 * @param ip IP address whose path to follow
+	 * @param level level of the desired node
+	 * @return the node, null if it does not exist
+	 */
+	private Node descend(int ip, int level)
+	{
+		Node node = this.root;
+		for (int i = 0; (i < level) && (node != null); i++)
+		{
+			node = (null == node.children) ? null
+					: node.children[slotIndex(ip, i)];
+		}
+		return node;
+	}
+
+	/**
+	 * Walk down the trie to the node at a given level on the path of an IP,
+	 * creating missing nodes and cloning nodes owned by other engines so that
+	 * the returned node may be modified in place.
+	 * @param ip IP address whose path to follow
+	 * @param level level of the desired node
+	 * @return the node
+	 */
+	private Node descendForWrite(int ip, int level)
+	{
+		if (this.root.owner != this.owner)
+		{ this.root = new Node(this.root, this.owner); }
+		Node node = this.root;
+		for (int i = 0; i < level; i++)
+		{
+			int index = slotIndex(ip, i);
+			if (null == node.children)
+			{ node.children = new Node[FANOUT]; }
+			Node child = node.children[index];
+			if (null == child)
+			{ child = new Node(this.owner); }
+			else if (child.owner != this.owner)
+			{ child = new Node(child, this.owner); }
+			node.children[index] = child;
+			node = child;
+		}
+		return node;
+	}
+
+	private static void collect(Node node, List<RouteEntry> result)
+	{
+		for (int i = 0; i < node.prefixCount; i++)
+		{ result.add(node.prefixes[i]); }
+		if (null == node.children)
+		{ return; }
+		for (Node child : node.children)
+		{
+			if (child != null)
+			{ collect(child, result); }
+		}
+	}
+
+	private static int slotIndex(int ip, int level)
+	{ return (ip >>> (32 - STRIDE * (level + 1))) & (FANOUT - 1); }
+
+	private static int prefixKey(int ip, int length, int level)
+	{
+		int bits = length - level * STRIDE;
+		return (1 << bits) | (slotIndex(ip, level) >>> (STRIDE - bits));
+	}
+
+	/**
+	 * @return number of leading ones in a subnet mask
+	 */
+	static int prefixLength(int maskIp)
+	{ return Integer.numberOfLeadingZeros(~maskIp); }
+}
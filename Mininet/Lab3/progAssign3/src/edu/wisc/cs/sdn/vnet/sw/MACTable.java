@@ -1,77 +1,337 @@
 package edu.wisc.cs.sdn.vnet.sw;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 
-import edu.wisc.cs.sdn.vnet.Iface;
-
-import net.floodlightcontroller.packet.MACAddress;
+import edu.wisc.cs.sdn.vnet.TimingWheel;
 
 /**
  * A MAC learning table.
+ * <p>
+ * MAC addresses are stored as 48-bit longs in an open addressing table, with
+ * the index of the interface they were learned on and the time they were last
+ * seen in parallel arrays, so neither learning nor looking up allocates.
+ * Learning is lock-free: a new MAC address claims an empty slot with a
+ * compare-and-set, and a known one only writes its slot if its time or
+ * interface changed.
+ * <p>
+ * Slots are never emptied while the table is in use, so probe sequences stay
+ * intact; an entry that times out keeps its slot, without an interface, until
+ * it is learned again. Once many slots are held by such entries, the timer
+ * thread copies the live entries to a fresh table. A frame learned on the old
+ * table while it is copied may be lost, in which case the MAC address is
+ * learned again from its next frame.
  * @author Aaron Gember-Jacobson
  */
-public class MACTable implements Runnable
+public class MACTable
 {
 	/** Timeout (in milliseconds) for entries in the MAC table */
 	public static final int TIMEOUT = 15 * 1000;
-	
-	/** Entries in the MAC table */
-	private Map<MACAddress,MACTableEntry> entries;
-	
-	/** Thread for timing out requests and entries in the cache */
-	private Thread timeoutThread;
+
+	/** Default maximum number of entries */
+	public static final int DEFAULT_MAX_ENTRIES = 64 * 1024;
+
+	/** Value returned by lookupPort if a MAC address is not in the table */
+	public static final int NO_PORT = -1;
+
+	/** Value of a slot that does not hold a MAC address */
+	private static final long EMPTY = -1;
+
+	/** Slots of the table; replaced as a whole when the table is compacted */
+	private static class Slots
+	{
+		/** MAC address of each slot; EMPTY if the slot is free */
+		final AtomicLongArray macs;
+
+		/** Interface index of each slot; NO_PORT if the entry timed out */
+		final AtomicIntegerArray ports;
+
+		/** Time (in milliseconds since the epoch) each entry was updated */
+		final AtomicLongArray timesUpdated;
+
+		final int mask;
+
+		/** Number of slots holding a MAC address, with or without a port */
+		final AtomicInteger used;
+
+		/** Number of slots holding a port */
+		final AtomicInteger live;
+
+		Slots(int size)
+		{
+			this.macs = new AtomicLongArray(size);
+			this.ports = new AtomicIntegerArray(size);
+			this.timesUpdated = new AtomicLongArray(size);
+			for (int i = 0; i < size; i++)
+			{
+				this.macs.set(i, EMPTY);
+				this.ports.set(i, NO_PORT);
+			}
+			this.mask = size - 1;
+			this.used = new AtomicInteger();
+			this.live = new AtomicInteger();
+		}
+	}
+
+	/** Maximum number of entries */
+	private int maxEntries;
+
+	/** Slots in use */
+	private volatile Slots slots;
+
+	/** Number of used slots at which new MAC addresses are not learned */
+	private int usedLimit;
+
+	/** Number of used slots from which the table is compacted */
+	private int compactThreshold;
+
+	/** Whether a compaction is scheduled */
+	private AtomicBoolean compacting;
+
+	/** Timing wheel on which entries are timed out and the table is
+	 *  compacted */
+	private TimingWheel timingWheel;
+
+	/**
+	 * Initializes an empty MAC learning table for a switch.
+	 * @param timingWheel timing wheel on which entries are timed out
+	 */
+	public MACTable(TimingWheel timingWheel)
+	{ this(timingWheel, DEFAULT_MAX_ENTRIES); }
 
 	/**
 	 * Initializes an empty MAC learning table for a switch.
-	 * @param sw switch to which this table belongs
+	 * @param timingWheel timing wheel on which entries are timed out
+	 * @param maxEntries maximum number of entries
+	 */
+	public MACTable(TimingWheel timingWheel, int maxEntries)
+	{
+		this.maxEntries = maxEntries;
+		int size = Integer.highestOneBit(Math.max(2 * maxEntries, 2) - 1) << 1;
+		this.slots = new Slots(size);
+		this.usedLimit = size / 4 * 3;
+		this.compactThreshold = size / 2;
+		this.compacting = new AtomicBoolean(false);
+		this.timingWheel = timingWheel;
+	}
+
+	/**
+	 * Learn the interface a MAC address is reached through.
+	 * @param mac MAC address, on the lower order bytes
+	 * @param port index of the interface
+	 * @return true if the MAC address was learned, false if the table is full
+	 */
+	public boolean learn(long mac, int port)
+	{
+		Slots s = this.slots;
+		int slot = this.claim(s, mac);
+		if (slot < 0)
+		{ return false; }
+
+		long now = System.currentTimeMillis();
+		if (s.timesUpdated.get(slot) != now)
+		{ s.timesUpdated.set(slot, now); }
+
+		while (true)
+		{
+			int old = s.ports.get(slot);
+			if (old == port)
+			{ return true; }
+			if (NO_PORT == old && s.live.get() >= this.maxEntries)
+			{ return false; }
+			if (s.ports.compareAndSet(slot, old, port))
+			{
+				// Only the thread that brings an entry back to life times it
+				// out, so each live entry has one timeout
+				if (NO_PORT == old)
+				{
+					s.live.incrementAndGet();
+					this.scheduleTimeout(s, mac, TIMEOUT);
+				}
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Look up the interface a MAC address is reached through.
+	 * @param mac MAC address, on the lower order bytes
+	 * @return index of the interface; NO_PORT if the MAC address is unknown
 	 */
-	public MACTable()
+	public int lookupPort(long mac)
 	{
-		this.entries = new ConcurrentHashMap<MACAddress, MACTableEntry>();
-		timeoutThread = new Thread(this);
-		timeoutThread.start();
+		Slots s = this.slots;
+		int slot = this.find(s, mac);
+		return (slot < 0) ? NO_PORT : s.ports.get(slot);
 	}
-	
-	public void insert(MACAddress macAddress, Iface iface)
+
+	/**
+	 * @return number of entries
+	 */
+	public int size()
+	{ return this.slots.live.get(); }
+
+	/**
+	 * @return slot a MAC address is inserted at if there are no collisions
+	 */
+	private static int home(Slots s, long mac)
+	{
+		long hash = mac * 0x9e3779b97f4a7c15L;
+		return (int)(hash >>> 32) & s.mask;
+	}
+
+	/**
+	 * @return the slot holding a MAC address; -1 if there is none
+	 */
+	private int find(Slots s, long mac)
 	{
-		MACTableEntry entry = this.lookup(macAddress);
-		if(entry != null)
-		{ entry.update(iface); }
-		else
-		{ 
-			entry = new MACTableEntry(macAddress, iface);
-			this.entries.put(macAddress, entry); 
+		int slot = home(s, mac);
+		for (int i = 0; i <= s.mask; i++)
+		{
+			long m = s.macs.get(slot);
+			if (m == mac)
+			{ return slot; }
+			if (EMPTY == m)
+			{ return -1; }
+			slot = (slot + 1) & s.mask;
 		}
+		return -1;
 	}
-	
-	public MACTableEntry lookup(MACAddress macAddress) 
+
+	/**
+	 * Find the slot holding a MAC address, claiming an empty slot for it if
+	 * there is none.
+	 * @return the slot; -1 if the table has no room for the MAC address
+	 */
+	private int claim(Slots s, long mac)
 	{
-		if (this.entries.containsKey(macAddress))
-		{ return this.entries.get(macAddress); }
-		return null;
+		int slot = home(s, mac);
+		for (int i = 0; i <= s.mask; i++)
+		{
+			long m = s.macs.get(slot);
+			if (m == mac)
+			{ return slot; }
+			if (EMPTY == m)
+			{
+				if (s.used.get() >= this.usedLimit)
+				{
+					this.requestCompaction(s);
+					return -1;
+				}
+				if (s.macs.compareAndSet(slot, EMPTY, mac))
+				{
+					if (s.used.incrementAndGet() >= this.compactThreshold)
+					{ this.requestCompaction(s); }
+					return slot;
+				}
+				// Another thread claimed the slot; it may have been for the
+				// same MAC address
+				if (s.macs.get(slot) == mac)
+				{ return slot; }
+			}
+			slot = (slot + 1) & s.mask;
+		}
+		return -1;
 	}
-	
+
 	/**
-	 * Every second: timeout MAC table entries.
+	 * Time out an entry once it has not been updated for the timeout.
+	 * Updating an entry does not reschedule its timeout; when the timeout
+	 * fires, it is rescheduled for the time remaining since the update.
+	 * Timeouts of slots that have been replaced by a compaction do nothing.
 	 */
-	public void run()
+	private void scheduleTimeout(final Slots s, final long mac, long delay)
 	{
+		this.timingWheel.schedule(new Runnable() {
+			public void run()
+			{ expire(s, mac); }
+		}, delay);
+	}
+
+	private void expire(Slots s, long mac)
+	{
+		if (s != this.slots)
+		{ return; }
+		int slot = this.find(s, mac);
+		if (slot < 0)
+		{ return; }
 		while (true)
 		{
-			// Run every second
-			try 
-			{ Thread.sleep(1000); }
-			catch (InterruptedException e) 
-			{ break; }
-			
-			// Timeout entries
-			for (MACTableEntry entry : this.entries.values())
+			int port = s.ports.get(slot);
+			if (NO_PORT == port)
+			{ return; }
+			long remaining = TIMEOUT - (System.currentTimeMillis()
+					- s.timesUpdated.get(slot));
+			if (remaining > 0)
+			{
+				this.scheduleTimeout(s, mac, remaining);
+				return;
+			}
+			if (s.ports.compareAndSet(slot, port, NO_PORT))
 			{
-				if ((System.currentTimeMillis() - entry.getTimeUpdated()) 
-						> TIMEOUT)
-				{ this.entries.remove(entry.getMACAddress()); }
+				s.live.decrementAndGet();
+				if (s.used.get() >= this.compactThreshold)
+				{ this.requestCompaction(s); }
+				return;
 			}
 		}
 	}
+
+	/**
+	 * Compact the table on the timer thread, if at least a quarter of the used
+	 * slots are held by entries that timed out.
+	 */
+	private void requestCompaction(final Slots s)
+	{
+		int used = s.used.get();
+		if ((used - s.live.get()) * 4 < used
+				|| !this.compacting.compareAndSet(false, true))
+		{ return; }
+		this.timingWheel.schedule(new Runnable() {
+			public void run()
+			{
+				try
+				{ compact(s); }
+				finally
+				{ compacting.set(false); }
+			}
+		}, 0);
+	}
+
+	/**
+	 * Copy the live entries to a fresh table, and reschedule their timeouts
+	 * against it. Runs on the timer thread, so no entry times out meanwhile.
+	 */
+	private void compact(Slots s)
+	{
+		if (s != this.slots)
+		{ return; }
+		Slots fresh = new Slots(s.mask + 1);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i <= s.mask; i++)
+		{
+			int port = s.ports.get(i);
+			if (NO_PORT == port)
+			{ continue; }
+			long mac = s.macs.get(i);
+			int slot = this.claim(fresh, mac);
+			if (slot < 0)
+			{ continue; }
+			fresh.ports.set(slot, port);
+			fresh.timesUpdated.set(slot, s.timesUpdated.get(i));
+			fresh.live.incrementAndGet();
+			this.scheduleTimeout(fresh, mac,
+					TIMEOUT - (now - s.timesUpdated.get(i)));
+		}
+		this.slots = fresh;
+	}
+
+	public String toString()
+	{
+		Slots s = this.slots;
+		return String.format("%d entries, %d slots used of %d",
+				s.live.get(), s.used.get(), s.mask + 1);
+	}
 }
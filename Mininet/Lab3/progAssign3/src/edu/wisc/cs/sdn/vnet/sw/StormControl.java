@@ -0,0 +1,212 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Limits the rate of frames a switch floods: broadcast, multicast and unknown
+ * unicast frames. Each kind of frame has a token bucket per interface it is
+ * received on, and all flooded frames from a source MAC address share a
+ * token bucket, so one looping or misbehaving host cannot use up the budget
+ * of the others on its interface. Frames that exceed either bucket are
+ * dropped and counted.
+ * <p>
+ * Sources are hashed onto a fixed number of buckets, so memory does not grow
+ * with the number of hosts; sources that collide share a bucket. A bucket is
+ * kept as the time at which it will be full again (the generic cell rate
+ * algorithm), so taking a token is a single compare-and-set.
+ */
+public class StormControl
+{
+	/** Kinds of flooded frames */
+	public static final int BROADCAST = 0;
+	public static final int MULTICAST = 1;
+	public static final int UNKNOWN_UNICAST = 2;
+	private static final int KINDS = 3;
+
+	private static final String[] KIND_NAMES =
+			{ "broadcast", "multicast", "unknown unicast" };
+
+	/** Default rate (in frames per second) of each kind of frame received on
+	 *  an interface */
+	public static final int DEFAULT_PORT_RATE = 1000;
+
+	/** Default rate (in frames per second) of flooded frames from a source */
+	public static final int DEFAULT_SOURCE_RATE = 100;
+
+	/** Default number of frames that may exceed the rate in a burst */
+	public static final int DEFAULT_BURST = 50;
+
+	/** Number of buckets sources are hashed onto; a power of two */
+	private static final int SOURCE_BUCKETS = 4096;
+
+	/** Time (in nanoseconds) between tokens of an interface's buckets; 0 if
+	 *  unlimited */
+	private long portInterval;
+
+	/** Time (in nanoseconds) between tokens of a source's bucket; 0 if
+	 *  unlimited */
+	private long sourceInterval;
+
+	/** Time (in nanoseconds) a bucket may run ahead of now */
+	private long portLimit;
+	private long sourceLimit;
+
+	/** Buckets by interface index and kind of frame; grown as interfaces are
+	 *  added */
+	private volatile AtomicLongArray portBuckets;
+
+	/** Buckets by hash of source MAC address */
+	private AtomicLongArray sourceBuckets;
+
+	/** Frames dropped, by kind */
+	private AtomicLongArray dropped;
+
+	/**
+	 * Create storm control with the default rates.
+	 */
+	public StormControl()
+	{ this(DEFAULT_PORT_RATE, DEFAULT_SOURCE_RATE, DEFAULT_BURST); }
+
+	/**
+	 * Create storm control.
+	 * @param portRate frames per second of each kind received on an
+	 *        interface; 0 for no limit
+	 * @param sourceRate flooded frames per second from a source; 0 for no
+	 *        limit
+	 * @param burst number of frames that may exceed the rates in a burst
+	 */
+	public StormControl(int portRate, int sourceRate, int burst)
+	{
+		this.portInterval = (portRate > 0) ? 1000000000L / portRate : 0;
+		this.sourceInterval = (sourceRate > 0) ? 1000000000L / sourceRate : 0;
+		this.portLimit = this.portInterval * Math.max(burst, 1);
+		this.sourceLimit = this.sourceInterval * Math.max(burst, 1);
+		this.portBuckets = newBuckets(0);
+		this.sourceBuckets = newBuckets(SOURCE_BUCKETS);
+		this.dropped = new AtomicLongArray(KINDS);
+	}
+
+	/**
+	 * @return buckets that are all full
+	 */
+	private static AtomicLongArray newBuckets(int count)
+	{
+		AtomicLongArray buckets = new AtomicLongArray(count);
+		long now = System.nanoTime();
+		for (int i = 0; i < count; i++)
+		{ buckets.set(i, now); }
+		return buckets;
+	}
+
+	/**
+	 * Make room for the buckets of an interface.
+	 * @param port index of the interface
+	 */
+	public synchronized void addPort(int port)
+	{
+		AtomicLongArray old = this.portBuckets;
+		if ((port + 1) * KINDS <= old.length())
+		{ return; }
+		AtomicLongArray buckets = newBuckets((port + 1) * KINDS);
+		for (int i = 0; i < old.length(); i++)
+		{ buckets.set(i, old.get(i)); }
+		this.portBuckets = buckets;
+	}
+
+	/**
+	 * @param dstMac destination MAC address, on the lower order bytes
+	 * @return kind of a frame that is flooded
+	 */
+	public static int kindOf(long dstMac)
+	{
+		if (0xffffffffffffL == dstMac)
+		{ return BROADCAST; }
+		if ((dstMac & (1L << 40)) != 0)
+		{ return MULTICAST; }
+		return UNKNOWN_UNICAST;
+	}
+
+	/**
+	 * Take a token for a frame about to be flooded, or count it as dropped.
+	 * @param kind kind of frame
+	 * @param port index of the interface the frame was received on
+	 * @param srcMac source MAC address, on the lower order bytes
+	 * @return true if the frame may be flooded, false if it must be dropped
+	 */
+	public boolean admit(int kind, int port, long srcMac)
+	{
+		long now = System.nanoTime();
+		AtomicLongArray buckets = this.portBuckets;
+		int portBucket = -1;
+		if (this.portInterval > 0 && port >= 0
+				&& (port + 1) * KINDS <= buckets.length())
+		{
+			portBucket = port * KINDS + kind;
+			if (!take(buckets, portBucket, now, this.portInterval,
+					this.portLimit))
+			{
+				this.dropped.incrementAndGet(kind);
+				return false;
+			}
+		}
+		if (this.sourceInterval > 0)
+		{
+			long hash = srcMac * 0x9e3779b97f4a7c15L;
+			int bucket = (int)(hash >>> 32) & (SOURCE_BUCKETS - 1);
+			if (!take(this.sourceBuckets, bucket, now, this.sourceInterval,
+					this.sourceLimit))
+			{
+				// A dropped frame must not use up the port's rate
+				if (portBucket >= 0)
+				{ refund(buckets, portBucket, this.portInterval); }
+				this.dropped.incrementAndGet(kind);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Take a token from a bucket.
+	 * @return false if the bucket is empty
+	 */
+	private static boolean take(AtomicLongArray buckets, int i, long now,
+			long interval, long limit)
+	{
+		while (true)
+		{
+			long full = buckets.get(i);
+			long next = ((full - now < 0) ? now : full) + interval;
+			if (next - now > limit)
+			{ return false; }
+			if (buckets.compareAndSet(i, full, next))
+			{ return true; }
+		}
+	}
+
+	/**
+	 * Give back a token taken from a bucket.
+	 */
+	private static void refund(AtomicLongArray buckets, int i, long interval)
+	{ buckets.addAndGet(i, -interval); }
+
+	/**
+	 * @param kind kind of frame
+	 * @return number of frames of the kind dropped
+	 */
+	public long getDropped(int kind)
+	{ return this.dropped.get(kind); }
+
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder();
+		for (int kind = 0; kind < KINDS; kind++)
+		{
+			if (kind > 0)
+			{ result.append(", "); }
+			result.append(this.dropped.get(kind)).append(" ")
+					.append(KIND_NAMES[kind]);
+		}
+		return result.append(" frames dropped").toString();
+	}
+}
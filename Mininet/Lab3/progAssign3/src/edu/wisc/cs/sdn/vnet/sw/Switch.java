@@ -1,9 +1,13 @@
 package edu.wisc.cs.sdn.vnet.sw;
 
+import java.util.Arrays;
+
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.EthernetView;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
 
 /**
  * @author Aaron Gember-Jacobson
@@ -11,7 +15,20 @@ import edu.wisc.cs.sdn.vnet.Iface;
 public class Switch extends Device
 {
 	private MACTable macTable;
-	
+
+	/** Limits the rate of flooded frames */
+	private volatile StormControl stormControl;
+
+	/** Interfaces by index */
+	private volatile Iface[] ports;
+
+	/** View used by each thread to switch frames without deserializing them */
+	private final ThreadLocal<EthernetView> etherViews =
+			new ThreadLocal<EthernetView>() {
+		protected EthernetView initialValue()
+		{ return new EthernetView(); }
+	};
+
 	/**
 	 * Creates a router for a specific host.
 	 * @param host hostname for the router
@@ -19,7 +36,119 @@ public class Switch extends Device
 	public Switch(String host, DumpFile logfile)
 	{
 		super(host,logfile);
-		this.macTable = new MACTable();
+		this.macTable = new MACTable(this.getTimingWheel());
+		this.ports = new Iface[0];
+		this.stormControl = new StormControl();
+	}
+
+	/**
+	 * Replace storm control.
+	 * @param portRate broadcast, multicast or unknown unicast frames per
+	 *        second flooded from an interface; 0 for no limit
+	 * @param sourceRate flooded frames per second from a source; 0 for no
+	 *        limit
+	 * @param burst number of frames that may exceed the rates in a burst
+	 */
+	public void configureStormControl(int portRate, int sourceRate, int burst)
+	{
+		StormControl stormControl = new StormControl(portRate, sourceRate, 
+				burst);
+		// Size the buckets for the interfaces already added; later ones are
+		// sized as they are added
+		if (this.ports.length > 0)
+		{ stormControl.addPort(this.ports.length - 1); }
+		this.stormControl = stormControl;
+	}
+
+	/**
+	 * @return storm control, which counts the flooded frames it dropped
+	 */
+	public StormControl getStormControl()
+	{ return this.stormControl; }
+
+	/**
+	 * Report the frames dropped by storm control, and close the PCAP dump
+	 * file.
+	 */
+	public void destroy()
+	{
+		System.out.println("Storm control: " + this.stormControl);
+		super.destroy();
+	}
+
+	/**
+	 * Add an interface to the switch.
+	 * @param ifaceName the name of the interface
+	 */
+	public Iface addInterface(String ifaceName)
+	{
+		Iface iface = super.addInterface(ifaceName);
+		synchronized(this)
+		{
+			Iface[] ports = this.ports;
+			if (iface.getIndex() >= ports.length)
+			{ ports = Arrays.copyOf(ports, iface.getIndex() + 1); }
+			else
+			{ ports = ports.clone(); }
+			ports[iface.getIndex()] = iface;
+			this.ports = ports;
+			this.stormControl.addPort(iface.getIndex());
+		}
+		return iface;
+	}
+
+	/**
+	 * Handle an Ethernet frame received on a specific interface, learning and
+	 * looking up MAC addresses directly from the buffer. Frames are
+	 * deserialized and handled by handlePacket when debugging, so they can
+	 * be printed.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 */
+	public void handleFrame(byte[] frame, int offset, int length,
+			Iface inIface)
+	{
+		EthernetView ether = this.etherViews.get();
+		if (null == inIface || inIface.getIndex() < 0
+				|| !ether.wrap(frame, offset, length)
+				|| Log.isEnabled(Log.DEBUG))
+		{
+			super.handleFrame(frame, offset, length, inIface);
+			return;
+		}
+
+		// Group addresses are never the source of a frame
+		long srcMac = ether.getSourceMAC();
+		if (0 == (srcMac & (1L << 40)))
+		{ this.macTable.learn(srcMac, inIface.getIndex()); }
+
+		Iface[] ports = this.ports;
+		long dstMac = ether.getDestinationMAC();
+		int port = this.macTable.lookupPort(dstMac);
+		if (port != MACTable.NO_PORT && port < ports.length
+				&& ports[port] != null)
+		{
+			this.forwardFrame(frame, offset, length, ports[port]);
+			return;
+		}
+		if (!this.stormControl.admit(StormControl.kindOf(dstMac),
+				inIface.getIndex(), srcMac))
+		{ return; }
+
+		// Flood, handing the buffer itself to the last interface
+		Iface last = null;
+		for (Iface iface : ports)
+		{
+			if (null == iface || iface == inIface)
+			{ continue; }
+			if (last != null)
+			{ this.sendFrame(frame, offset, length, last); }
+			last = iface;
+		}
+		if (last != null)
+		{ this.forwardFrame(frame, offset, length, last); }
 	}
 
 	/**
@@ -29,29 +158,40 @@ public class Switch extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
-                etherPacket.toString().replace("\n", "\n\t"));
-		
+		if (Log.isEnabled(Log.DEBUG))
+		{
+			System.out.println("*** -> Received packet: " +
+					etherPacket.toString().replace("\n", "\n\t"));
+		}
+
 		/********************************************************************/
 		/* TODO: Handle packets                                             */
-		
-		this.macTable.insert(etherPacket.getSourceMAC(), inIface);
-		
-		MACTableEntry entry = this.macTable.lookup(etherPacket.getDestinationMAC());
-		if (entry != null)
-		{ this.sendPacket(etherPacket, entry.getInterface()); }
-		else
+
+		if (inIface != null && !etherPacket.getSourceMAC().isMulticast())
+		{ this.macTable.learn(etherPacket.getSourceMAC().toLong(),
+				inIface.getIndex()); }
+
+		Iface[] ports = this.ports;
+		long dstMac = etherPacket.getDestinationMAC().toLong();
+		int port = this.macTable.lookupPort(dstMac);
+		if (port != MACTable.NO_PORT && port < ports.length
+				&& ports[port] != null)
+		{ this.sendPacket(etherPacket, ports[port]); }
+		else if (this.stormControl.admit(StormControl.kindOf(dstMac),
+				(null == inIface) ? -1 : inIface.getIndex(),
+				etherPacket.getSourceMAC().toLong()))
 		{
-			for (Iface iface : this.interfaces.values()) 
+			for (Iface iface : this.interfaces.values())
 			{
 				if (iface != inIface)
 				{
 					this.sendPacket(etherPacket, iface);
-					System.out.println("Send packet out interface "+iface);
+					if (Log.isEnabled(Log.DEBUG))
+					{ System.out.println("Send packet out interface "+iface); }
 				}
 			}
 		}
-		
+
 		/********************************************************************/
 	}
 }
@@ -0,0 +1,131 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Transport that reads and writes commands through the blocking streams of a
+ * socket.
+ */
+public class BlockingTransport implements VNSTransport
+{
+	private Socket socket;
+
+	public boolean connect(InetAddress addr, short port)
+	{
+		// Create socket and attempt to connect to the server
+		try
+		{
+			socket = new Socket(addr, port);
+			// Commands are already batched, so do not delay them further
+			socket.setTcpNoDelay(true);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+
+	public ByteBuffer readCommand()
+	{
+		int bytesRead = 0;
+		InputStream inStream = null;
+
+		// Get input stream
+		try
+		{ inStream = this.socket.getInputStream(); }
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+
+		// Attempt to read the size of the incoming packet
+		byte[] lenBytes = new byte[4];
+		while (bytesRead < 4)
+		{
+			try
+			{
+				int ret = inStream.read(lenBytes, bytesRead, 4 - bytesRead);
+				if (ret < 0)
+				{ throw new Exception(); }
+				bytesRead += ret;
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+				return null;
+			}
+		}
+
+		int len = ByteBuffer.wrap(lenBytes).getInt();
+
+		if (len > VNSComm.MAX_COMMAND_LENGTH || len < VNSComm.MIN_COMMAND_LENGTH)
+		{
+			System.err.println(String.format(
+					"Error: invalid command length %d", len));
+			this.close();
+			return null;
+		}
+
+		// Allocate buffer
+		ByteBuffer buf = ByteBuffer.allocate(len);
+
+		// Set first field of command since we've already read it
+		buf.putInt(len);
+
+		// Read the rest of the command
+		while (bytesRead < len)
+		{
+			try
+			{
+				int ret = inStream.read(buf.array(), bytesRead, len - bytesRead);
+				if (ret < 0)
+				{ throw new Exception(); }
+				bytesRead += ret;
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+				System.err.println("Error: failed reading command body");
+				this.close();
+				return null;
+			}
+		}
+
+		buf.position(0);
+		return buf;
+	}
+
+	public boolean writeCommands(List<byte[]> bufs)
+	{
+	    try
+		{
+			OutputStream outStream = socket.getOutputStream();
+			synchronized(outStream)
+			{
+				for (byte[] buf : bufs)
+				{ outStream.write(buf); }
+	            outStream.flush();
+			}
+		}
+		catch(IOException e)
+		{
+			System.err.println("Error writing packet");
+			return false;
+		}
+		return true;
+	}
+
+	public void close()
+	{
+		try { socket.close(); } catch (IOException e) { }
+	}
+}
@@ -6,6 +6,9 @@ import net.floodlightcontroller.packet.Ethernet;
 
 public class CommandPacket extends Command
 {
+	/** Length of the header preceding the Ethernet frame in a command */
+	static final int HEADER_LENGTH = 4 + 4 + 16;
+	
 	protected String mInterfaceName;
 	protected Ethernet etherPacket;
 	
@@ -30,6 +33,50 @@ public class CommandPacket extends Command
 	protected int getSize()
 	{ return super.getSize() + 16; }
 	
+	/**
+	 * Read the interface name from a VNS_PACKET command without
+	 * deserializing the frame it carries.
+	 * @param buf heap buffer holding a whole VNS_PACKET command
+	 * @return name of the interface the frame was received on
+	 */
+	static String getInterfaceName(ByteBuffer buf)
+	{ return new String(buf.array(), buf.arrayOffset() + 8, 16).trim(); }
+	
+	/**
+	 * Serialize a VNS_PACKET command carrying an already serialized frame.
+	 * @param ifaceName name of the interface to send the frame on
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @return the serialized command
+	 */
+	static byte[] serialize(String ifaceName, byte[] frame, int offset,
+			int length)
+	{
+		int size = HEADER_LENGTH + length;
+		byte[] data = new byte[size];
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		bb.putInt(size);
+		bb.putInt(Command.VNS_PACKET);
+		setInterfaceName(data, ifaceName);
+		System.arraycopy(frame, offset, data, HEADER_LENGTH, length);
+		return data;
+	}
+	
+	/**
+	 * Overwrite the interface name in a serialized VNS_PACKET command.
+	 * @param command serialized command
+	 * @param ifaceName name of the interface, in ASCII
+	 */
+	static void setInterfaceName(byte[] command, String ifaceName)
+	{
+		int length = Math.min(ifaceName.length(), 16);
+		for (int i = 0; i < length; i++)
+		{ command[8 + i] = (byte)ifaceName.charAt(i); }
+		for (int i = length; i < 16; i++)
+		{ command[8 + i] = 0; }
+	}
+	
 	protected byte[] serialize()
 	{
 		byte[] packet = this.etherPacket.serialize();
@@ -0,0 +1,87 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+
+import edu.wisc.cs.sdn.vnet.DumpFile;
+
+/**
+ * Transport that stands in for the server in offline runs. Commands to be
+ * read are injected by the caller, and serialized as they are injected, so
+ * reading them only hands out the queued buffers; frames written are counted
+ * and optionally logged to a PCAP file.
+ */
+public class LoopbackTransport implements VNSTransport
+{
+	/** Commands waiting to be read */
+	private Queue<ByteBuffer> inQueue;
+
+	/** File frames written are logged to; null if they are only counted */
+	private DumpFile output;
+
+	/** Number of frames written; guarded by this */
+	private long framesWritten;
+
+	/**
+	 * @param output file to log frames written to; null to only count them
+	 */
+	public LoopbackTransport(DumpFile output)
+	{
+		this.inQueue = new ArrayDeque<ByteBuffer>();
+		this.output = output;
+		this.framesWritten = 0;
+	}
+
+	/**
+	 * Queue a frame to be read as if the server had received it.
+	 * @param ifaceName name of the interface the frame was received on
+	 * @param frame the frame, which is copied
+	 */
+	public void inject(String ifaceName, byte[] frame)
+	{
+		byte[] command = CommandPacket.serialize(ifaceName, frame, 0,
+				frame.length);
+		synchronized(this.inQueue)
+		{ this.inQueue.add(ByteBuffer.wrap(command)); }
+	}
+
+	public boolean connect(InetAddress addr, short port)
+	{ return true; }
+
+	/**
+	 * @return the next injected command; null if none is queued
+	 */
+	public ByteBuffer readCommand()
+	{
+		synchronized(this.inQueue)
+		{ return this.inQueue.poll(); }
+	}
+
+	public synchronized boolean writeCommands(List<byte[]> bufs)
+	{
+		for (byte[] buf : bufs)
+		{
+			if (ByteBuffer.wrap(buf).getInt(4) != Command.VNS_PACKET)
+			{ continue; }
+			this.framesWritten++;
+			if (this.output != null)
+			{
+				this.output.dump(buf, CommandPacket.HEADER_LENGTH,
+						buf.length - CommandPacket.HEADER_LENGTH);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of frames written so far
+	 */
+	public synchronized long getFramesWritten()
+	{ return this.framesWritten; }
+
+	public void close()
+	{ }
+}
@@ -0,0 +1,148 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+/**
+ * Transport that reads and writes commands through a blocking NIO socket
+ * channel using reusable direct buffers. A single read may return several
+ * commands, which are framed from the read buffer without further system
+ * calls. Commands written together are gathered into the write buffer and
+ * sent with as few writes as possible.
+ * <p>
+ * Each command read is copied once out of the direct buffer into its own heap
+ * buffer, since packets are deserialized from byte arrays and may be handed to
+ * another thread.
+ */
+public class NioTransport implements VNSTransport
+{
+	/** Size of the read and write buffers; must exceed the maximum command
+	 *  length */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private SocketChannel channel;
+
+	/** Bytes read from the channel that have not been returned as commands;
+	 *  always kept ready for reading */
+	private ByteBuffer readBuffer;
+
+	/** Commands waiting to be written to the channel */
+	private ByteBuffer writeBuffer;
+
+	public NioTransport()
+	{
+		this.readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		this.readBuffer.flip();
+		this.writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	}
+
+	public boolean connect(InetAddress addr, short port)
+	{
+		try
+		{
+			this.channel = SocketChannel.open(new InetSocketAddress(addr, port));
+			// Commands are already batched, so do not delay them further
+			this.channel.socket().setTcpNoDelay(true);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+
+	public ByteBuffer readCommand()
+	{
+		while (true)
+		{
+			// Return the next command if it has been read completely
+			if (this.readBuffer.remaining() >= 4)
+			{
+				int len = this.readBuffer.getInt(this.readBuffer.position());
+				if (len > VNSComm.MAX_COMMAND_LENGTH
+						|| len < VNSComm.MIN_COMMAND_LENGTH)
+				{
+					System.err.println(String.format(
+							"Error: invalid command length %d", len));
+					this.close();
+					return null;
+				}
+				if (this.readBuffer.remaining() >= len)
+				{
+					ByteBuffer buf = ByteBuffer.allocate(len);
+					int limit = this.readBuffer.limit();
+					this.readBuffer.limit(this.readBuffer.position() + len);
+					buf.put(this.readBuffer);
+					this.readBuffer.limit(limit);
+					buf.position(0);
+					return buf;
+				}
+			}
+
+			// Otherwise read as much as is available
+			try
+			{
+				this.readBuffer.compact();
+				int ret = this.channel.read(this.readBuffer);
+				this.readBuffer.flip();
+				if (ret < 0)
+				{ throw new IOException("Connection closed by server"); }
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				return null;
+			}
+		}
+	}
+
+	public boolean writeCommands(List<byte[]> bufs)
+	{
+		synchronized(this.writeBuffer)
+		{
+			try
+			{
+				for (byte[] buf : bufs)
+				{
+					if (buf.length > this.writeBuffer.remaining())
+					{ this.drainWriteBuffer(); }
+					if (buf.length > this.writeBuffer.capacity())
+					{ this.writeFully(ByteBuffer.wrap(buf)); }
+					else
+					{ this.writeBuffer.put(buf); }
+				}
+				this.drainWriteBuffer();
+			}
+			catch (IOException e)
+			{
+				System.err.println("Error writing packet");
+				this.writeBuffer.clear();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void drainWriteBuffer() throws IOException
+	{
+		this.writeBuffer.flip();
+		this.writeFully(this.writeBuffer);
+		this.writeBuffer.clear();
+	}
+
+	private void writeFully(ByteBuffer buf) throws IOException
+	{
+		while (buf.hasRemaining())
+		{ this.channel.write(buf); }
+	}
+
+	public void close()
+	{
+		try { this.channel.close(); } catch (IOException e) { }
+	}
+}
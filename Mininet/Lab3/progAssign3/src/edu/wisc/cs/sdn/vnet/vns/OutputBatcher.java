@@ -0,0 +1,244 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output queue that coalesces commands sent to the server into batches, so
+ * several packets go out with a single socket write.
+ * <p>
+ * Packets sent while a thread processes one received packet form a burst.
+ * A batch is written when it reaches the maximum batch size, and otherwise
+ * either at the end of the burst (if no latency is allowed) or once its
+ * oldest packet has waited for the maximum latency. Packets sent outside of
+ * a burst, e.g. by timers, are subject to the same limits.
+ */
+public class OutputBatcher
+{
+	/** Default maximum number of bytes in a batch */
+	public static final int DEFAULT_MAX_BATCH_BYTES = 64 * 1024;
+
+	private VNSTransport transport;
+
+	/** Maximum number of bytes in a batch */
+	private int maxBatchBytes;
+
+	/** Maximum time (in nanoseconds) a packet waits for its batch to fill;
+	 *  0 if batches are written at the end of each burst */
+	private long maxLatencyNanos;
+
+	/** Commands waiting to be written; guarded by this */
+	private List<byte[]> pending;
+	private int pendingBytes;
+	private long oldestPendingNanos;
+
+	/** Serializes writes so that batches reach the server in order */
+	private Object writeLock;
+
+	/** Whether the current thread is processing a burst */
+	private ThreadLocal<Boolean> inBurst;
+
+	/** Thread writing batches whose latency has expired; null if no latency
+	 *  is allowed */
+	private Thread flusher;
+	private volatile boolean closed;
+
+	/** Statistics; guarded by writeLock */
+	private long batchCount;
+	private long packetCount;
+	private long byteCount;
+	private int largestBatch;
+	private long startNanos;
+
+	/**
+	 * Create a batcher that writes at the end of each burst.
+	 * @param transport transport batches are written to
+	 */
+	public OutputBatcher(VNSTransport transport)
+	{
+		this.transport = transport;
+		this.maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+		this.maxLatencyNanos = 0;
+		this.pending = new ArrayList<byte[]>();
+		this.pendingBytes = 0;
+		this.writeLock = new Object();
+		this.inBurst = new ThreadLocal<Boolean>();
+		this.flusher = null;
+		this.closed = false;
+		this.startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Configure the batching limits; must be called before any packet is
+	 * sent.
+	 * @param maxBatchBytes maximum number of bytes in a batch
+	 * @param maxLatencyMicros maximum time (in microseconds) a packet waits
+	 *        for its batch to fill; 0 to write at the end of each burst
+	 */
+	public void configure(int maxBatchBytes, long maxLatencyMicros)
+	{
+		this.maxBatchBytes = maxBatchBytes;
+		this.maxLatencyNanos = maxLatencyMicros * 1000;
+		if (this.maxLatencyNanos > 0 && null == this.flusher)
+		{
+			this.flusher = new Thread(new Runnable() {
+				public void run()
+				{ flushExpiredBatches(); }
+			}, "vnet-flusher");
+			this.flusher.setDaemon(true);
+			this.flusher.start();
+		}
+	}
+
+	/**
+	 * Mark the start of a burst on the current thread.
+	 */
+	public void beginBurst()
+	{ this.inBurst.set(Boolean.TRUE); }
+
+	/**
+	 * @return true if the current thread is processing a burst
+	 */
+	public boolean isInBurst()
+	{ return this.inBurst.get() != null; }
+
+	/**
+	 * Mark the end of a burst on the current thread, writing the pending
+	 * batch unless it may wait for more packets.
+	 */
+	public void endBurst()
+	{
+		this.inBurst.remove();
+		if (0 == this.maxLatencyNanos)
+		{ this.flush(); }
+	}
+
+	/**
+	 * Queue a serialized command to be written to the server.
+	 * @param buf serialized command
+	 */
+	public void enqueue(byte[] buf)
+	{
+		boolean full;
+		synchronized(this)
+		{
+			if (this.pending.isEmpty())
+			{
+				this.oldestPendingNanos = System.nanoTime();
+				this.notify();
+			}
+			this.pending.add(buf);
+			this.pendingBytes += buf.length;
+			full = (this.pendingBytes >= this.maxBatchBytes);
+		}
+		if (full || (0 == this.maxLatencyNanos && null == this.inBurst.get()))
+		{ this.flush(); }
+	}
+
+	/**
+	 * Write all pending commands to the server.
+	 * @return true if the commands were written successfully, otherwise false
+	 */
+	public boolean flush()
+	{
+		synchronized(this.writeLock)
+		{
+			List<byte[]> batch;
+			int batchBytes;
+			synchronized(this)
+			{
+				if (this.pending.isEmpty())
+				{ return true; }
+				batch = this.pending;
+				batchBytes = this.pendingBytes;
+				this.pending = new ArrayList<byte[]>(batch.size());
+				this.pendingBytes = 0;
+			}
+
+			this.batchCount++;
+			this.packetCount += batch.size();
+			this.byteCount += batchBytes;
+			this.largestBatch = Math.max(this.largestBatch, batch.size());
+			return this.transport.writeCommands(batch);
+		}
+	}
+
+	/**
+	 * Write all pending commands and stop the flusher thread.
+	 */
+	public void close()
+	{
+		this.closed = true;
+		if (this.flusher != null)
+		{
+			synchronized(this)
+			{ this.notify(); }
+			try
+			{ this.flusher.join(); }
+			catch (InterruptedException e)
+			{ Thread.currentThread().interrupt(); }
+		}
+		this.flush();
+	}
+
+	private void flushExpiredBatches()
+	{
+		while (!this.closed)
+		{
+			synchronized(this)
+			{
+				try
+				{
+					if (this.pending.isEmpty())
+					{
+						this.wait();
+						continue;
+					}
+					long waitNanos = this.oldestPendingNanos
+							+ this.maxLatencyNanos - System.nanoTime();
+					if (waitNanos > 0)
+					{
+						this.wait(waitNanos / 1000000, (int)(waitNanos % 1000000));
+						continue;
+					}
+				}
+				catch (InterruptedException e)
+				{ break; }
+			}
+			this.flush();
+		}
+	}
+
+	/**
+	 * @return number of batches written
+	 */
+	public long getBatchCount()
+	{ synchronized(this.writeLock) { return this.batchCount; } }
+
+	/**
+	 * @return number of packets written
+	 */
+	public long getPacketCount()
+	{ synchronized(this.writeLock) { return this.packetCount; } }
+
+	/**
+	 * @return number of bytes written
+	 */
+	public long getByteCount()
+	{ synchronized(this.writeLock) { return this.byteCount; } }
+
+	public String toString()
+	{
+		synchronized(this.writeLock)
+		{
+			double seconds = (System.nanoTime() - this.startNanos) / 1e9;
+			return String.format("%d packets (%d bytes) in %d batches: "
+					+ "%.2f packets/batch, largest %d, %.1f flushes/s",
+					this.packetCount, this.byteCount, this.batchCount,
+					(0 == this.batchCount) ? 0.0
+						: (double)this.packetCount / this.batchCount,
+					this.largestBatch,
+					(seconds > 0) ? this.batchCount / seconds : 0.0);
+		}
+	}
+}
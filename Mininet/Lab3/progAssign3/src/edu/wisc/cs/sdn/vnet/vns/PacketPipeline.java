@@ -0,0 +1,181 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Staged pipeline for processing packets received from the VNS server.
+ * The thread reading from the server frames commands and hands VNS_PACKET
+ * commands to worker threads, which deserialize them and pass them to the
+ * device. Packets are sharded across workers by a hash of their flow, so the
+ * packets of a flow are processed in the order they were received. Packets
+ * sent by the device are batched by the communication manager's output
+ * queue.
+ */
+public class PacketPipeline
+{
+	/** Maximum number of commands queued for each worker */
+	private static final int QUEUE_CAPACITY = 1024;
+
+	/** Marks the end of a queue */
+	private static final ByteBuffer END_OF_INPUT = ByteBuffer.allocate(0);
+
+	private VNSComm vnsComm;
+
+	/** Commands waiting to be processed by each worker */
+	private List<BlockingQueue<ByteBuffer>> inQueues;
+
+	private List<Thread> workers;
+
+	/**
+	 * Create a pipeline.
+	 * @param vnsComm communication manager that reads and writes commands
+	 * @param numWorkers number of worker threads
+	 */
+	public PacketPipeline(VNSComm vnsComm, int numWorkers)
+	{
+		this.vnsComm = vnsComm;
+		this.inQueues = new ArrayList<BlockingQueue<ByteBuffer>>(numWorkers);
+		this.workers = new ArrayList<Thread>(numWorkers);
+		for (int i = 0; i < numWorkers; i++)
+		{
+			final BlockingQueue<ByteBuffer> inQueue =
+					new ArrayBlockingQueue<ByteBuffer>(QUEUE_CAPACITY);
+			this.inQueues.add(inQueue);
+			Thread worker = new Thread(new Runnable() {
+				public void run()
+				{ processPackets(inQueue); }
+			}, "vnet-worker-" + i);
+			worker.setDaemon(true);
+			this.workers.add(worker);
+		}
+	}
+
+	/**
+	 * Start the worker threads.
+	 */
+	public void start()
+	{
+		for (Thread worker : this.workers)
+		{ worker.start(); }
+	}
+
+	/**
+	 * Queue a VNS_PACKET command for processing; blocks while the worker
+	 * responsible for the packet's flow is busy.
+	 * @param buf buffer holding a whole VNS_PACKET command
+	 */
+	public void dispatch(ByteBuffer buf)
+	{
+		int worker = (flowHash(buf) & 0x7fffffff) % this.inQueues.size();
+		put(this.inQueues.get(worker), buf);
+	}
+
+	/**
+	 * Process the packets already queued and stop all threads.
+	 */
+	public void shutdown()
+	{
+		for (BlockingQueue<ByteBuffer> inQueue : this.inQueues)
+		{ put(inQueue, END_OF_INPUT); }
+		for (Thread worker : this.workers)
+		{ join(worker); }
+	}
+
+	private void processPackets(BlockingQueue<ByteBuffer> inQueue)
+	{
+		while (true)
+		{
+			ByteBuffer buf;
+			try
+			{ buf = inQueue.take(); }
+			catch (InterruptedException e)
+			{ break; }
+			if (END_OF_INPUT == buf)
+			{ break; }
+
+			try
+			{ this.vnsComm.handlePacketCommand(buf); }
+			catch (RuntimeException e)
+			{
+				// One bad packet should not stop the worker
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Compute a hash of the flow a VNS_PACKET command belongs to without
+	 * deserializing it. IPv4 packets are hashed on their addresses, protocol
+	 * and, for unfragmented TCP and UDP, ports; other packets are hashed on
+	 * their MAC addresses.
+	 * @param buf buffer holding a whole VNS_PACKET command
+	 * @return hash of the packet's flow
+	 */
+	static int flowHash(ByteBuffer buf)
+	{
+		int limit = buf.limit();
+		int l2 = CommandPacket.HEADER_LENGTH;
+		if (limit < l2 + 14)
+		{ return 0; }
+
+		int l3 = l2 + 14;
+		short etherType = buf.getShort(l2 + 12);
+		if ((short)0x8100 == etherType && limit >= l3 + 4)
+		{
+			etherType = buf.getShort(l2 + 16);
+			l3 += 4;
+		}
+
+		if (Ethernet.TYPE_IPv4 == etherType && limit >= l3 + 20)
+		{
+			int headerLength = (buf.get(l3) & 0xf) * 4;
+			byte protocol = buf.get(l3 + 9);
+			int hash = 31 * buf.getInt(l3 + 12) + buf.getInt(l3 + 16);
+			hash = 31 * hash + protocol;
+			boolean fragment = (buf.getShort(l3 + 6) & 0x3fff) != 0;
+			int l4 = l3 + headerLength;
+			if (!fragment && limit >= l4 + 4
+					&& (IPv4.PROTOCOL_TCP == protocol
+						|| IPv4.PROTOCOL_UDP == protocol))
+			{ hash = 31 * hash + buf.getInt(l4); }
+			return hash ^ (hash >>> 16);
+		}
+
+		int hash = 1;
+		for (int i = l2; i < l2 + 12; i += 4)
+		{ hash = 31 * hash + buf.getInt(i); }
+		return hash ^ (hash >>> 16);
+	}
+
+	private static <T> void put(BlockingQueue<T> queue, T item)
+	{
+		boolean interrupted = false;
+		while (true)
+		{
+			try
+			{
+				queue.put(item);
+				break;
+			}
+			catch (InterruptedException e)
+			{ interrupted = true; }
+		}
+		if (interrupted)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	private static void join(Thread thread)
+	{
+		try
+		{ thread.join(); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+}
@@ -1,28 +1,93 @@
 package edu.wisc.cs.sdn.vnet.vns;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.Collections;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.MACAddress;
 
 import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
 
 public class VNSComm 
 {
-	private Socket socket;
+	/** Maximum length of a command received from the server */
+	static final int MAX_COMMAND_LENGTH = 10000;
+
+	/** Minimum length of a command received from the server: its length and
+	 *  type */
+	static final int MIN_COMMAND_LENGTH = 4 + 4;
+	
+	/** Connection to the server */
+	private VNSTransport transport;
 	private Device device;
 	
+	/** Pipeline that processes packets on worker threads; null if packets are
+	 *  processed on the thread reading from the server */
+	private volatile PacketPipeline pipeline;
+	
+	/** Queue that batches commands written to the server */
+	private OutputBatcher batcher;
+	
 	public VNSComm(Device device)
+	{ this(device, new BlockingTransport()); }
+	
+	/**
+	 * @param device device whose packets are exchanged with the server
+	 * @param transport unconnected transport to reach the server with
+	 */
+	public VNSComm(Device device, VNSTransport transport)
 	{ 
 		this.device = device;
 		this.device.setVNSComm(this);
+		this.transport = transport;
+		this.pipeline = null;
+		this.batcher = new OutputBatcher(transport);
+	}
+	
+	/**
+	 * Configure how packets sent to the server are batched; must be called
+	 * before any packet is sent.
+	 * @param maxBatchBytes maximum number of bytes written at once
+	 * @param maxLatencyMicros maximum time (in microseconds) a packet waits
+	 *        for more packets to batch with; 0 to write all packets sent
+	 *        while processing a received packet as soon as it is processed
+	 */
+	public void configureBatching(int maxBatchBytes, long maxLatencyMicros)
+	{ this.batcher.configure(maxBatchBytes, maxLatencyMicros); }
+	
+	/**
+	 * @return queue that batches commands written to the server
+	 */
+	public OutputBatcher getOutputBatcher()
+	{ return this.batcher; }
+	
+	/**
+	 * Process packets received from the server on worker threads instead of
+	 * the thread calling {@link #readFromServer()}.
+	 * @param numWorkers number of worker threads
+	 */
+	public void startPipeline(int numWorkers)
+	{
+		this.pipeline = new PacketPipeline(this, numWorkers);
+		this.pipeline.start();
+	}
+	
+	/**
+	 * Wait for queued packets to be processed, stop the pipeline's threads,
+	 * if a pipeline was started, and write all packets still batched.
+	 */
+	public void stopPipeline()
+	{
+		if (this.pipeline != null)
+		{
+			this.pipeline.shutdown();
+			this.pipeline = null;
+		}
+		this.batcher.close();
 	}
 	
 	public boolean connectToServer(short port, String server)
@@ -37,33 +102,16 @@ public class VNSComm
 			return false;
 		}
 		
-		// Create socket and attempt to connect to the server
-		try 
-		{ socket = new Socket(addr, port); }
-		catch (IOException e) 
-		{
-			e.printStackTrace();
-			return false;
-		}
+		// Attempt to connect to the server
+		if (!this.transport.connect(addr, port))
+		{ return false; }
 		
 		// Send VNS_OPEN message to server
 		CommandOpen cmdOpen = new CommandOpen();
 		cmdOpen.mVirtualHostId = this.device.getHost();
 		byte[] buf = cmdOpen.serialize();
 		
-		try
-		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
-		}
-		catch(IOException e)
-		{
-			e.printStackTrace();
-			return false;
-		}
-		
-		return true; 
+		return this.transport.writeCommands(Collections.singletonList(buf)); 
 	}
 	
 	private boolean handleHwInfo(CommandHwInfo cmdHwInfo)
@@ -108,73 +156,12 @@ public class VNSComm
 	
 	public boolean readFromServerExpect(int expectedCmd)
 	{
-		int bytesRead = 0;
-		InputStream inStream = null;
-		
-		// Get input stream
-		try 
-		{ inStream = this.socket.getInputStream(); } 
-		catch (IOException e) 
-		{
-			e.printStackTrace();
-			return false;
-		}
-		
-		// Attempt to read the size of the incoming packet
-		byte[] lenBytes = new byte[4];
-		while (bytesRead < 4)
-		{
-			try 
-			{
-				int ret = inStream.read(lenBytes, bytesRead, 4 - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
-			{
-				e.printStackTrace();
-				return false;
-			}
-		}
-		
-		int len = ByteBuffer.wrap(lenBytes).getInt();
-		
-		if (len > 10000 || len < 0)
-		{
-			System.err.println(String.format(
-					"Error: comamnd length too large %d", len));
-			try { socket.close(); } catch (IOException e) { }
-			return false;
-		}
-		
-		// Allocate buffer
-		ByteBuffer buf = ByteBuffer.allocate(len);
-		
-		// Set first field of command since we've already read it
-		buf.putInt(len);
-		
-		// Read the rest of the command
-		while (bytesRead < len)
-		{
-			try 
-			{
-				int ret = inStream.read(buf.array(), bytesRead, len - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
-			{
-				e.printStackTrace();
-				System.err.println("Error: failed reading command body");
-				try { socket.close(); } catch (IOException e2) { }
-				return false;
-			}
-		}
+		ByteBuffer buf = this.transport.readCommand();
+		if (null == buf)
+		{ return false; }
 		
 		// Make sure the command is what we expected if we were expecting something
-		int command = buf.getInt();
+		int command = buf.getInt(4);
 		if (expectedCmd != 0 && command != expectedCmd)
 		{
 			if (command != Command.VNS_CLOSE) // VNS_CLOSE is always ok
@@ -186,20 +173,19 @@ public class VNSComm
 			}
 		}
 		
-		buf.position(0);
 		switch(command)
 		{
 		case Command.VNS_PACKET:
-			CommandPacket cmdPkt = new CommandPacket();
-			cmdPkt.deserialize(buf);
-			
-			// Log packet
-            if (this.device.getLogFile() != null)
-            { this.device.getLogFile().dump(cmdPkt.etherPacket); }
-			
-			// Pass to device, student's code should take over here
-			this.device.handlePacket(cmdPkt.etherPacket, 
-					this.device.getInterface(cmdPkt.mInterfaceName));
+			if (buf.limit() < CommandPacket.HEADER_LENGTH)
+			{
+				System.err.println(String.format(
+						"Error: packet command too short %d", buf.limit()));
+				break;
+			}
+			if (this.pipeline != null)
+			{ this.pipeline.dispatch(buf); }
+			else
+			{ this.handlePacketCommand(buf); }
 			break;
 			
 		case Command.VNS_CLOSE:
@@ -223,6 +209,34 @@ public class VNSComm
 		return true;
 	}
 	
+	/**
+	 * Pass a packet received from the server to the device.
+	 * @param buf buffer holding a whole VNS_PACKET command
+	 */
+	void handlePacketCommand(ByteBuffer buf)
+	{
+		String ifaceName = CommandPacket.getInterfaceName(buf);
+		byte[] data = buf.array();
+		int offset = buf.arrayOffset() + CommandPacket.HEADER_LENGTH;
+		int length = buf.limit() - CommandPacket.HEADER_LENGTH;
+		
+		// Log packet
+        if (this.device.getLogFile() != null)
+        { this.device.getLogFile().dump(data, offset, length, ifaceName,
+        		DumpFile.DIRECTION_INBOUND); }
+		
+		// Pass to device, student's code should take over here; packets sent
+		// in response are batched until the device is done
+		this.batcher.beginBurst();
+		try
+		{
+			this.device.handleFrame(data, offset, length, 
+					this.device.getInterface(ifaceName));
+		}
+		finally
+		{ this.batcher.endBurst(); }
+	}
+	
 	public boolean etherAddrsMatchInterface(Ethernet etherPacket, 
 			String ifaceName)
 	{
@@ -258,19 +272,64 @@ public class VNSComm
 		
 		// Log packet
         if (this.device.getLogFile() != null)
-        { this.device.getLogFile().dump(etherPacket); }
+        {
+        	this.device.getLogFile().dump(buf, CommandPacket.HEADER_LENGTH,
+        			buf.length - CommandPacket.HEADER_LENGTH, ifaceName,
+        			DumpFile.DIRECTION_OUTBOUND);
+        }
 		
-	    try
-		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
-		}
-		catch(IOException e)
-		{
-			System.err.println("Error writing packet");
-			return false;
-		}
+		this.batcher.enqueue(buf);
+		return true;
+	}
+	
+	/**
+	 * Send a frame received from the server back out, reusing the command it
+	 * was received in if the frame fills the rest of that command. The buffer
+	 * is owned by the output queue afterwards and must not be modified.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param ifaceName name of the interface to send the frame on
+	 * @return true if the frame was queued successfully, otherwise false
+	 */
+	public boolean forwardFrame(byte[] frame, int offset, int length,
+			String ifaceName)
+	{
+		if (offset != CommandPacket.HEADER_LENGTH
+				|| frame.length != offset + length)
+		{ return this.sendFrame(frame, offset, length, ifaceName); }
+		
+		// Only the interface name differs from the command received
+		CommandPacket.setInterfaceName(frame, ifaceName);
+		
+		// Log packet
+        if (this.device.getLogFile() != null)
+        { this.device.getLogFile().dump(frame, offset, length, ifaceName,
+        		DumpFile.DIRECTION_OUTBOUND); }
+		
+		this.batcher.enqueue(frame);
+		return true;
+	}
+	
+	/**
+	 * Send an already serialized Ethernet frame.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param ifaceName name of the interface to send the frame on
+	 * @return true if the frame was queued successfully, otherwise false
+	 */
+	public boolean sendFrame(byte[] frame, int offset, int length,
+			String ifaceName)
+	{
+		byte[] buf = CommandPacket.serialize(ifaceName, frame, offset, length);
+		
+		// Log packet
+        if (this.device.getLogFile() != null)
+        { this.device.getLogFile().dump(frame, offset, length, ifaceName,
+        		DumpFile.DIRECTION_OUTBOUND); }
+		
+		this.batcher.enqueue(buf);
 		return true;
 	}
 }
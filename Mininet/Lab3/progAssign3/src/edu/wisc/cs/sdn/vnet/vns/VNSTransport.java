@@ -0,0 +1,40 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Connection over which VNS commands are exchanged with the server. Commands
+ * on the wire start with their length as a 4-byte integer.
+ */
+public interface VNSTransport
+{
+	/**
+	 * Connect to the server.
+	 * @param addr address of the server
+	 * @param port port of the server
+	 * @return true if the connection was established, otherwise false
+	 */
+	public boolean connect(InetAddress addr, short port);
+
+	/**
+	 * Read one command from the server. Only called from a single thread.
+	 * @return a heap buffer holding the whole command, positioned at its
+	 *         start; null if the command could not be read
+	 */
+	public ByteBuffer readCommand();
+
+	/**
+	 * Write commands to the server and flush them. May be called from several
+	 * threads; the commands of one call are never interleaved with others.
+	 * @param bufs serialized commands
+	 * @return true if the commands were written successfully, otherwise false
+	 */
+	public boolean writeCommands(List<byte[]> bufs);
+
+	/**
+	 * Close the connection to the server.
+	 */
+	public void close();
+}
@@ -0,0 +1,95 @@
+package net.floodlightcontroller.packet;
+
+/**
+ * View of an ARP packet for IPv4 over Ethernet read and written in place.
+ *
+ * @see ARP
+ */
+public class ArpView extends PacketView {
+    protected static final int HARDWARE_TYPE = 0;
+    protected static final int PROTOCOL_TYPE = 2;
+    protected static final int HARDWARE_LENGTH = 4;
+    protected static final int PROTOCOL_LENGTH = 5;
+    protected static final int OP_CODE = 6;
+    protected static final int SENDER_HARDWARE = 8;
+    protected static final int SENDER_PROTOCOL = 14;
+    protected static final int TARGET_HARDWARE = 18;
+    protected static final int TARGET_PROTOCOL = 24;
+
+    /**
+     * @return true if the buffer holds a complete ARP packet mapping IPv4
+     *         addresses to Ethernet addresses, otherwise false
+     */
+    @Override
+    public boolean wrap(byte[] data, int offset, int length) {
+        return super.wrap(data, offset, length)
+                && getHardwareType() == ARP.HW_TYPE_ETHERNET
+                && getProtocolType() == ARP.PROTO_TYPE_IP
+                && getByte(HARDWARE_LENGTH) == 6
+                && getByte(PROTOCOL_LENGTH) == 4;
+    }
+
+    @Override
+    public int getHeaderLength() {
+        return 28;
+    }
+
+    public short getHardwareType() {
+        return getShort(HARDWARE_TYPE);
+    }
+
+    public short getProtocolType() {
+        return getShort(PROTOCOL_TYPE);
+    }
+
+    public short getOpCode() {
+        return getShort(OP_CODE);
+    }
+
+    public ArpView setOpCode(short opCode) {
+        putShort(OP_CODE, opCode);
+        return this;
+    }
+
+    /**
+     * @return the sender MAC address, on the lower order bytes
+     */
+    public long getSenderHardwareAddress() {
+        return getMAC(SENDER_HARDWARE);
+    }
+
+    public ArpView setSenderHardwareAddress(long mac) {
+        putMAC(SENDER_HARDWARE, mac);
+        return this;
+    }
+
+    public int getSenderProtocolAddress() {
+        return getInt(SENDER_PROTOCOL);
+    }
+
+    public ArpView setSenderProtocolAddress(int address) {
+        putInt(SENDER_PROTOCOL, address);
+        return this;
+    }
+
+    /**
+     * @return the target MAC address, on the lower order bytes
+     */
+    public long getTargetHardwareAddress() {
+        return getMAC(TARGET_HARDWARE);
+    }
+
+    public ArpView setTargetHardwareAddress(long mac) {
+        putMAC(TARGET_HARDWARE, mac);
+        return this;
+    }
+
+    public int getTargetProtocolAddress() {
+        return getInt(TARGET_PROTOCOL);
+    }
+
+    public ArpView setTargetProtocolAddress(int address) {
+        putInt(TARGET_PROTOCOL, address);
+        return this;
+    }
+}
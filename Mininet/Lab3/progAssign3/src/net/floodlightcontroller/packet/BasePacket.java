@@ -17,15 +17,46 @@
 
 package net.floodlightcontroller.packet;
 
+import java.util.Arrays;
 
 /**
 *
 * @author David Erickson (daviderickson@cs.stanford.edu)
 */
 public abstract class BasePacket implements IPacket {
+    /** Whether payloads are decoded when first accessed rather than when
+     *  their parent is deserialized */
+    private static volatile boolean lazyDecoding = false;
+
     protected IPacket parent;
     protected IPacket payload;
 
+    /** Class and bytes of a payload that has not been decoded yet; the class
+     *  is null if the payload is decoded */
+    private Class<? extends IPacket> undecodedClass;
+    private byte[] undecodedData;
+    private int undecodedOffset;
+    private int undecodedLength;
+
+    /**
+     * Enables or disables lazy decoding. When enabled, deserializing a packet
+     * only decodes its own header; its payload is kept as a slice of the
+     * deserialized buffer and decoded on the first call to getPayload(). The
+     * buffer must then not be modified while such packets are in use. An
+     * undecoded payload is serialized by copying its original bytes.
+     * @param lazy true to decode payloads lazily
+     */
+    public static void setLazyDecoding(boolean lazy) {
+        lazyDecoding = lazy;
+    }
+
+    /**
+     * @return true if payloads are decoded lazily
+     */
+    public static boolean isLazyDecoding() {
+        return lazyDecoding;
+    }
+
     /**
      * @return the parent
      */
@@ -48,6 +79,13 @@ public abstract class BasePacket implements IPacket {
      */
     @Override
     public IPacket getPayload() {
+        if (this.undecodedClass != null) {
+            this.payload = this.decodePayload(this.undecodedClass,
+                    this.undecodedData, this.undecodedOffset,
+                    this.undecodedLength);
+            this.undecodedClass = null;
+            this.undecodedData = null;
+        }
         return payload;
     }
 
@@ -57,8 +95,65 @@ public abstract class BasePacket implements IPacket {
     @Override
     public IPacket setPayload(IPacket payload) {
         this.payload = payload;
+        this.undecodedClass = null;
+        this.undecodedData = null;
         return this;
     }
+
+    /**
+     * Sets the payload to the packet of the given class held in the given
+     * bytes, decoding it now or, if lazy decoding is enabled, when it is
+     * first accessed.
+     * @param clazz class of the payload
+     * @param data buffer holding the payload
+     * @param offset offset of the payload in the buffer
+     * @param length length of the payload
+     */
+    protected void deserializePayload(Class<? extends IPacket> clazz,
+            byte[] data, int offset, int length) {
+        if (lazyDecoding) {
+            this.payload = null;
+            this.undecodedClass = clazz;
+            this.undecodedData = data;
+            this.undecodedOffset = offset;
+            this.undecodedLength = length;
+        } else {
+            this.undecodedClass = null;
+            this.undecodedData = null;
+            this.payload = this.decodePayload(clazz, data, offset, length);
+        }
+    }
+
+    private IPacket decodePayload(Class<? extends IPacket> clazz,
+            byte[] data, int offset, int length) {
+        IPacket payload;
+        try {
+            payload = clazz.newInstance();
+        } catch (Exception e) {
+            throw new RuntimeException("Error parsing payload for "
+                    + this.getClass().getSimpleName() + " packet", e);
+        }
+        payload = payload.deserialize(data, offset, length);
+        if (payload != null)
+            payload.setParent(this);
+        return payload;
+    }
+
+    /**
+     * Serializes the payload, copying its original bytes if it has not been
+     * decoded.
+     * @return the serialized payload, or null if there is no payload
+     */
+    protected byte[] serializePayload() {
+        if (this.undecodedClass != null) {
+            return Arrays.copyOfRange(this.undecodedData, this.undecodedOffset,
+                    this.undecodedOffset + this.undecodedLength);
+        }
+        if (payload == null)
+            return null;
+        payload.setParent(this);
+        return payload.serialize();
+    }
     
     @Override
     public void resetChecksum() {
@@ -73,6 +168,7 @@ public abstract class BasePacket implements IPacket {
     public int hashCode() {
         final int prime = 6733;
         int result = 1;
+        IPacket payload = this.getPayload();
         result = prime * result + ((payload == null) ? 0 : payload.hashCode());
         return result;
     }
@@ -89,10 +185,11 @@ public abstract class BasePacket implements IPacket {
         if (!(obj instanceof BasePacket))
             return false;
         BasePacket other = (BasePacket) obj;
+        IPacket payload = this.getPayload();
         if (payload == null) {
-            if (other.payload != null)
+            if (other.getPayload() != null)
                 return false;
-        } else if (!payload.equals(other.payload))
+        } else if (!payload.equals(other.getPayload()))
             return false;
         return true;
     }
@@ -0,0 +1,101 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * View of an Ethernet frame, optionally carrying an 802.1Q tag, read and
+ * written in place.
+ *
+ * @see Ethernet
+ */
+public class EthernetView extends PacketView {
+    private static final short TYPE_VLAN = (short) 0x8100;
+
+    protected static final int DESTINATION_MAC = 0;
+    protected static final int SOURCE_MAC = 6;
+    protected static final int TYPE = 12;
+
+    /**
+     * Points this view at the remaining bytes of a heap buffer.
+     * @param buf buffer positioned at the start of the frame
+     * @return true if the buffer holds a complete header, otherwise false
+     */
+    public boolean wrap(ByteBuffer buf) {
+        return this.wrap(buf.array(), buf.arrayOffset() + buf.position(),
+                buf.remaining());
+    }
+
+    @Override
+    public int getHeaderLength() {
+        if (length >= 18 && getShort(TYPE) == TYPE_VLAN) {
+            return 18;
+        }
+        return 14;
+    }
+
+    /**
+     * @return the destination MAC address, on the lower order bytes
+     */
+    public long getDestinationMAC() {
+        return getMAC(DESTINATION_MAC);
+    }
+
+    public EthernetView setDestinationMAC(long mac) {
+        putMAC(DESTINATION_MAC, mac);
+        return this;
+    }
+
+    public EthernetView setDestinationMAC(byte[] mac) {
+        System.arraycopy(mac, 0, data, offset + DESTINATION_MAC, 6);
+        return this;
+    }
+
+    /**
+     * @return the source MAC address, on the lower order bytes
+     */
+    public long getSourceMAC() {
+        return getMAC(SOURCE_MAC);
+    }
+
+    public EthernetView setSourceMAC(long mac) {
+        putMAC(SOURCE_MAC, mac);
+        return this;
+    }
+
+    public EthernetView setSourceMAC(byte[] mac) {
+        System.arraycopy(mac, 0, data, offset + SOURCE_MAC, 6);
+        return this;
+    }
+
+    /**
+     * @return the VLAN ID, or {@link Ethernet#VLAN_UNTAGGED}
+     */
+    public short getVlanID() {
+        if (getHeaderLength() == 14) {
+            return Ethernet.VLAN_UNTAGGED;
+        }
+        return (short) (getShort(TYPE + 2) & 0x0fff);
+    }
+
+    /**
+     * @return the ether type of the payload, after any VLAN tag
+     */
+    public short getEtherType() {
+        return getShort(getHeaderLength() - 2);
+    }
+
+    /**
+     * @return true if the destination is the broadcast address
+     */
+    public boolean isBroadcast() {
+        return getDestinationMAC() == 0xffffffffffffL;
+    }
+
+    /**
+     * @return true if the destination is a multicast, but not the broadcast,
+     *         address
+     */
+    public boolean isMulticast() {
+        return (data[offset + DESTINATION_MAC] & 0x01) != 0 && !isBroadcast();
+    }
+}
@@ -83,12 +83,9 @@ public class ICMP extends BasePacket {
      */
     public byte[] serialize() {
         int length = 4;
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
+        byte[] payloadData = this.serializePayload();
+        if (payloadData != null)
             length += payloadData.length;
-        }
 
         byte[] data = new byte[length];
         ByteBuffer bb = ByteBuffer.wrap(data);
@@ -164,9 +161,7 @@ public class ICMP extends BasePacket {
         this.icmpCode = bb.get();
         this.checksum = bb.getShort();
         
-        this.payload = new Data();
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        this.deserializePayload(Data.class, data, bb.position(), bb.limit()-bb.position());
         return this;
     }
 }
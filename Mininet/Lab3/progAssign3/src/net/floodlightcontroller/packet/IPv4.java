@@ -287,19 +287,18 @@ public class IPv4 extends BasePacket {
      *      -totalLength : 0
      */
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        byte[] payloadData = this.serializePayload();
 
         int optionsLength = 0;
         if (this.options != null)
             optionsLength = this.options.length / 4;
         this.headerLength = (byte) (5 + optionsLength);
 
-        this.totalLength = (short) (this.headerLength * 4 + ((payloadData == null) ? 0
+        short totalLength = (short) (this.headerLength * 4 + ((payloadData == null) ? 0
                 : payloadData.length));
+        if (this.checksum != 0 && totalLength != this.totalLength)
+            this.checksum = updateChecksum(this.checksum, this.totalLength, totalLength);
+        this.totalLength = totalLength;
 
         byte[] data = new byte[this.totalLength];
         ByteBuffer bb = ByteBuffer.wrap(data);
@@ -326,14 +325,101 @@ public class IPv4 extends BasePacket {
             for (int i = 0; i < this.headerLength * 2; ++i) {
                 accumulation += 0xffff & bb.getShort();
             }
-            accumulation = ((accumulation >> 16) & 0xffff)
-                    + (accumulation & 0xffff);
+            while ((accumulation >>> 16) != 0)
+                accumulation = ((accumulation >> 16) & 0xffff)
+                        + (accumulation & 0xffff);
             this.checksum = (short) (~accumulation & 0xffff);
             bb.putShort(10, this.checksum);
         }
         return data;
     }
 
+    /**
+     * Verifies the header checksum from the header fields alone, without
+     * serializing the packet.
+     * @return true if the checksum is correct
+     */
+    public boolean isChecksumValid() {
+        int sum = ((((this.version & 0xf) << 4) | (this.headerLength & 0xf)) << 8)
+                | (this.diffServ & 0xff);
+        sum += this.totalLength & 0xffff;
+        sum += this.identification & 0xffff;
+        sum += ((this.flags & 0x7) << 13) | (this.fragmentOffset & 0x1fff);
+        sum += ((this.ttl & 0xff) << 8) | (this.protocol & 0xff);
+        sum += this.checksum & 0xffff;
+        sum += (this.sourceAddress >>> 16) + (this.sourceAddress & 0xffff);
+        sum += (this.destinationAddress >>> 16) + (this.destinationAddress & 0xffff);
+        if (this.options != null) {
+            for (int i = 0; i + 1 < this.options.length; i += 2)
+                sum += ((this.options[i] & 0xff) << 8) | (this.options[i + 1] & 0xff);
+        }
+        while ((sum >>> 16) != 0)
+            sum = (sum & 0xffff) + (sum >>> 16);
+        return sum == 0xffff;
+    }
+
+    /**
+     * Decrements the TTL, updating the checksum incrementally unless it is
+     * to be computed on serialization.
+     */
+    public IPv4 decrementTtl() {
+        short oldWord = (short) (((this.ttl & 0xff) << 8) | (this.protocol & 0xff));
+        this.ttl--;
+        short newWord = (short) (((this.ttl & 0xff) << 8) | (this.protocol & 0xff));
+        if (this.checksum != 0)
+            this.checksum = updateChecksum(this.checksum, oldWord, newWord);
+        return this;
+    }
+
+    /**
+     * Rewrites the source address, updating the checksum incrementally
+     * unless it is to be computed on serialization.
+     */
+    public IPv4 updateSourceAddress(int sourceAddress) {
+        if (this.checksum != 0)
+            this.checksum = updateChecksum(this.checksum, this.sourceAddress, sourceAddress);
+        this.sourceAddress = sourceAddress;
+        return this;
+    }
+
+    /**
+     * Rewrites the destination address, updating the checksum incrementally
+     * unless it is to be computed on serialization.
+     */
+    public IPv4 updateDestinationAddress(int destinationAddress) {
+        if (this.checksum != 0)
+            this.checksum = updateChecksum(this.checksum, this.destinationAddress,
+                    destinationAddress);
+        this.destinationAddress = destinationAddress;
+        return this;
+    }
+
+    /**
+     * Updates an Internet checksum for a 16-bit word of the checksummed data
+     * changing value, as given by equation 3 of RFC 1624:
+     * HC' = ~(~HC + ~m + m').
+     * @param checksum the checksum before the change
+     * @param oldValue the old value of the word
+     * @param newValue the new value of the word
+     * @return the checksum after the change
+     */
+    public static short updateChecksum(short checksum, short oldValue, short newValue) {
+        int sum = (~checksum & 0xffff) + (~oldValue & 0xffff) + (newValue & 0xffff);
+        sum = (sum & 0xffff) + (sum >>> 16);
+        sum = (sum & 0xffff) + (sum >>> 16);
+        return (short) ~sum;
+    }
+
+    /**
+     * Updates an Internet checksum for a 32-bit, word aligned, field of the
+     * checksummed data changing value.
+     * @see #updateChecksum(short, short, short)
+     */
+    public static short updateChecksum(short checksum, int oldValue, int newValue) {
+        checksum = updateChecksum(checksum, (short) (oldValue >>> 16), (short) (newValue >>> 16));
+        return updateChecksum(checksum, (short) oldValue, (short) newValue);
+    }
+
     @Override
     public IPacket deserialize(byte[] data, int offset, int length) {
         ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
@@ -360,19 +446,10 @@ public class IPv4 extends BasePacket {
             bb.get(this.options);
         }
 
-        IPacket payload;
-        if (IPv4.protocolClassMap.containsKey(this.protocol)) {
-            Class<? extends IPacket> clazz = IPv4.protocolClassMap.get(this.protocol);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for IPv4 packet", e);
-            }
-        } else {
-            payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        Class<? extends IPacket> clazz = IPv4.protocolClassMap.get(this.protocol);
+        if (clazz == null)
+            clazz = Data.class;
+        this.deserializePayload(clazz, data, bb.position(), bb.limit()-bb.position());
 
         if (this.totalLength != length)
             this.isTruncated = true;
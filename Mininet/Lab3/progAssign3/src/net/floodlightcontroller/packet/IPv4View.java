@@ -0,0 +1,197 @@
+package net.floodlightcontroller.packet;
+
+/**
+ * View of an IPv4 header read and written in place.
+ *
+ * @see IPv4
+ */
+public class IPv4View extends PacketView {
+    protected static final int VERSION_IHL = 0;
+    protected static final int DIFF_SERV = 1;
+    protected static final int TOTAL_LENGTH = 2;
+    protected static final int IDENTIFICATION = 4;
+    protected static final int FLAGS_FRAGMENT = 6;
+    protected static final int TTL = 8;
+    protected static final int PROTOCOL = 9;
+    protected static final int CHECKSUM = 10;
+    protected static final int SOURCE = 12;
+    protected static final int DESTINATION = 16;
+
+    /** Flag set on every fragment but the last */
+    public static final byte FLAG_MORE_FRAGMENTS = 0x1;
+
+    /**
+     * @return true if the buffer holds a complete version 4 header,
+     *         otherwise false
+     */
+    @Override
+    public boolean wrap(byte[] data, int offset, int length) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+        if (length < 20 || getVersion() != 4) {
+            return false;
+        }
+        int headerLength = getHeaderLength();
+        return headerLength >= 20 && headerLength <= length;
+    }
+
+    public byte getVersion() {
+        return (byte) (getByte(VERSION_IHL) >>> 4);
+    }
+
+    /**
+     * @return the header length in bytes, not in 32-bit words as in
+     *         {@link IPv4#getHeaderLength()}
+     */
+    @Override
+    public int getHeaderLength() {
+        return (getByte(VERSION_IHL) & 0x0f) * 4;
+    }
+
+    /**
+     * @return the number of bytes of the payload in the buffer, excluding
+     *         any link layer padding past the total length
+     */
+    @Override
+    public int getPayloadLength() {
+        int totalLength = getTotalLength() & 0xffff;
+        return Math.min(totalLength, length) - getHeaderLength();
+    }
+
+    public byte getDiffServ() {
+        return (byte) getByte(DIFF_SERV);
+    }
+
+    public short getTotalLength() {
+        return getShort(TOTAL_LENGTH);
+    }
+
+    public short getIdentification() {
+        return getShort(IDENTIFICATION);
+    }
+
+    public byte getFlags() {
+        return (byte) (getByte(FLAGS_FRAGMENT) >>> 5);
+    }
+
+    public short getFragmentOffset() {
+        return (short) (getShort(FLAGS_FRAGMENT) & 0x1fff);
+    }
+
+    public byte getTtl() {
+        return (byte) getByte(TTL);
+    }
+
+    public IPv4View setTtl(byte ttl) {
+        putByte(TTL, ttl);
+        return this;
+    }
+
+    public byte getProtocol() {
+        return (byte) getByte(PROTOCOL);
+    }
+
+    public short getChecksum() {
+        return getShort(CHECKSUM);
+    }
+
+    public IPv4View setChecksum(short checksum) {
+        putShort(CHECKSUM, checksum);
+        return this;
+    }
+
+    public int getSourceAddress() {
+        return getInt(SOURCE);
+    }
+
+    public IPv4View setSourceAddress(int address) {
+        putInt(SOURCE, address);
+        return this;
+    }
+
+    public int getDestinationAddress() {
+        return getInt(DESTINATION);
+    }
+
+    public IPv4View setDestinationAddress(int address) {
+        putInt(DESTINATION, address);
+        return this;
+    }
+
+    /**
+     * Decrements the TTL, updating the checksum incrementally.
+     */
+    public IPv4View decrementTtl() {
+        short oldWord = getShort(TTL);
+        putByte(TTL, getByte(TTL) - 1);
+        putShort(CHECKSUM,
+                IPv4.updateChecksum(getChecksum(), oldWord, getShort(TTL)));
+        return this;
+    }
+
+    /**
+     * Rewrites the source address, updating the checksum incrementally.
+     */
+    public IPv4View updateSourceAddress(int address) {
+        putShort(CHECKSUM, IPv4.updateChecksum(getChecksum(),
+                getSourceAddress(), address));
+        return setSourceAddress(address);
+    }
+
+    /**
+     * Rewrites the destination address, updating the checksum incrementally.
+     */
+    public IPv4View updateDestinationAddress(int address) {
+        putShort(CHECKSUM, IPv4.updateChecksum(getChecksum(),
+                getDestinationAddress(), address));
+        return setDestinationAddress(address);
+    }
+
+    /**
+     * @return true if the header checksum is correct
+     */
+    public boolean isChecksumValid() {
+        return onesComplementSum(0, getHeaderLength(), 0) == 0xffff;
+    }
+
+    /**
+     * Recomputes the header checksum after the header was modified.
+     */
+    public IPv4View resetChecksum() {
+        putShort(CHECKSUM, (short) 0);
+        putShort(CHECKSUM,
+                (short) ~onesComplementSum(0, getHeaderLength(), 0));
+        return this;
+    }
+
+    /**
+     * @return true if the packet is a fragment other than the first one,
+     *         which carries no transport header
+     */
+    public boolean isLaterFragment() {
+        return getFragmentOffset() != 0;
+    }
+
+    /**
+     * @return true if the packet is a fragment, including the first one
+     */
+    public boolean isFragment() {
+        return (getFlags() & FLAG_MORE_FRAGMENTS) != 0
+                || getFragmentOffset() != 0;
+    }
+
+    /**
+     * @return the source port on the higher and the destination port on the
+     *         lower order bytes, for a TCP or UDP packet that is not
+     *         fragmented; otherwise 0
+     */
+    public int getTransportPorts() {
+        byte protocol = getProtocol();
+        if ((protocol != IPv4.PROTOCOL_TCP && protocol != IPv4.PROTOCOL_UDP)
+                || isFragment() || getPayloadLength() < 4) {
+            return 0;
+        }
+        return getInt(getHeaderLength());
+    }
+}
@@ -0,0 +1,157 @@
+package net.floodlightcontroller.packet;
+
+/**
+ * Base class for views that read and write the header of a packet directly
+ * in the buffer holding it, without deserializing the packet. A view is a
+ * reusable cursor: it can be pointed at another packet with
+ * {@link #wrap(byte[], int, int)} and holds no other state, so forwarding a
+ * packet through views allocates nothing.
+ *
+ * All fields are stored in network byte order.
+ */
+public abstract class PacketView {
+    protected byte[] data;
+    protected int offset;
+    protected int length;
+
+    /**
+     * Points this view at the packet starting at the given offset.
+     * @param data buffer holding the packet
+     * @param offset offset of the packet in the buffer
+     * @param length number of bytes of the packet available in the buffer
+     * @return true if the buffer holds a complete header of this type,
+     *         otherwise false; the view must not be used if false
+     */
+    public boolean wrap(byte[] data, int offset, int length) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+        return length >= this.getHeaderLength();
+    }
+
+    /**
+     * Points this view at the payload of another view.
+     * @param parent view whose payload is this packet
+     * @return true if the payload holds a complete header of this type,
+     *         otherwise false
+     */
+    public boolean wrap(PacketView parent) {
+        return this.wrap(parent.data, parent.getPayloadOffset(),
+                parent.getPayloadLength());
+    }
+
+    /**
+     * @return the buffer holding the packet
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the offset of the packet in the buffer
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the number of bytes of the packet available in the buffer
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the length of the header in bytes
+     */
+    public abstract int getHeaderLength();
+
+    /**
+     * @return the offset of the payload in the buffer
+     */
+    public int getPayloadOffset() {
+        return offset + this.getHeaderLength();
+    }
+
+    /**
+     * @return the number of bytes of the payload available in the buffer
+     */
+    public int getPayloadLength() {
+        return length - this.getHeaderLength();
+    }
+
+    protected int getByte(int pos) {
+        return data[offset + pos] & 0xff;
+    }
+
+    protected void putByte(int pos, int value) {
+        data[offset + pos] = (byte) value;
+    }
+
+    protected short getShort(int pos) {
+        int i = offset + pos;
+        return (short) (((data[i] & 0xff) << 8) | (data[i + 1] & 0xff));
+    }
+
+    protected void putShort(int pos, short value) {
+        int i = offset + pos;
+        data[i] = (byte) (value >>> 8);
+        data[i + 1] = (byte) value;
+    }
+
+    protected int getInt(int pos) {
+        int i = offset + pos;
+        return ((data[i] & 0xff) << 24) | ((data[i + 1] & 0xff) << 16)
+                | ((data[i + 2] & 0xff) << 8) | (data[i + 3] & 0xff);
+    }
+
+    protected void putInt(int pos, int value) {
+        int i = offset + pos;
+        data[i] = (byte) (value >>> 24);
+        data[i + 1] = (byte) (value >>> 16);
+        data[i + 2] = (byte) (value >>> 8);
+        data[i + 3] = (byte) value;
+    }
+
+    /**
+     * Reads a 6-byte MAC address as a long, with the address on the lower
+     * order bytes, as {@link MACAddress#toLong()} does.
+     */
+    protected long getMAC(int pos) {
+        long mac = 0;
+        for (int i = offset + pos; i < offset + pos + 6; i++) {
+            mac = (mac << 8) | (data[i] & 0xffL);
+        }
+        return mac;
+    }
+
+    protected void putMAC(int pos, long mac) {
+        for (int i = offset + pos + 5; i >= offset + pos; i--) {
+            data[i] = (byte) mac;
+            mac >>>= 8;
+        }
+    }
+
+    /**
+     * Computes the ones' complement sum of the given bytes, as used by the
+     * Internet checksum, folded to 16 bits.
+     * @param pos offset of the first byte relative to the packet
+     * @param count number of bytes to sum
+     * @param sum initial sum, e.g. of a pseudo header
+     * @return the folded sum, not complemented
+     */
+    protected int onesComplementSum(int pos, int count, int sum) {
+        int i = offset + pos;
+        int end = i + (count & ~1);
+        for (; i < end; i += 2) {
+            sum += ((data[i] & 0xff) << 8) | (data[i + 1] & 0xff);
+        }
+        if ((count & 1) != 0) {
+            sum += (data[i] & 0xff) << 8;
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return sum;
+    }
+}
@@ -13,6 +13,13 @@ public class RIPv2 extends BasePacket
     public static final byte COMMAND_REQUEST = 1;
     public static final byte COMMAND_RESPONSE = 2;
 
+    /** Length of the header and of each entry */
+    public static final int HEADER_LENGTH = 4;
+    public static final int ENTRY_LENGTH = 5*4;
+
+    /** Maximum number of entries in one message (RFC 2453) */
+    public static final int MAX_ENTRIES = 25;
+
 	protected byte command;
 	protected byte version;
 	protected List<RIPv2Entry> entries;
@@ -0,0 +1,84 @@
+package net.floodlightcontroller.packet;
+
+/**
+ * View of a TCP header read and written in place.
+ *
+ * @see TCP
+ */
+public class TCPView extends PacketView {
+    protected static final int SOURCE_PORT = 0;
+    protected static final int DESTINATION_PORT = 2;
+    protected static final int SEQUENCE = 4;
+    protected static final int ACKNOWLEDGE = 8;
+    protected static final int OFFSET_FLAGS = 12;
+    protected static final int WINDOW = 14;
+    protected static final int CHECKSUM = 16;
+    protected static final int URGENT = 18;
+
+    @Override
+    public boolean wrap(byte[] data, int offset, int length) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+        if (length < 20) {
+            return false;
+        }
+        int headerLength = getHeaderLength();
+        return headerLength >= 20 && headerLength <= length;
+    }
+
+    /**
+     * @return the header length in bytes, including options
+     */
+    @Override
+    public int getHeaderLength() {
+        return (getByte(OFFSET_FLAGS) >>> 4) * 4;
+    }
+
+    public short getSourcePort() {
+        return getShort(SOURCE_PORT);
+    }
+
+    public TCPView setSourcePort(short port) {
+        putShort(SOURCE_PORT, port);
+        return this;
+    }
+
+    public short getDestinationPort() {
+        return getShort(DESTINATION_PORT);
+    }
+
+    public TCPView setDestinationPort(short port) {
+        putShort(DESTINATION_PORT, port);
+        return this;
+    }
+
+    public int getSequence() {
+        return getInt(SEQUENCE);
+    }
+
+    public int getAcknowledge() {
+        return getInt(ACKNOWLEDGE);
+    }
+
+    public short getFlags() {
+        return (short) (getShort(OFFSET_FLAGS) & 0x01ff);
+    }
+
+    public short getWindowSize() {
+        return getShort(WINDOW);
+    }
+
+    public short getChecksum() {
+        return getShort(CHECKSUM);
+    }
+
+    public TCPView setChecksum(short checksum) {
+        putShort(CHECKSUM, checksum);
+        return this;
+    }
+
+    public short getUrgentPointer() {
+        return getShort(URGENT);
+    }
+}
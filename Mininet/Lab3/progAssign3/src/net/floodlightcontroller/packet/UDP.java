@@ -106,11 +106,7 @@ public class UDP extends BasePacket {
      *      -length : 0
      */
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        byte[] payloadData = this.serializePayload();
 
         this.length = (short) (8 + ((payloadData == null) ? 0
                 : payloadData.length));
@@ -205,23 +201,15 @@ public class UDP extends BasePacket {
         this.length = bb.getShort();
         this.checksum = bb.getShort();
 
+        Class<? extends IPacket> clazz;
         if (UDP.decodeMap.containsKey(this.destinationPort)) {
-            try {
-                this.payload = UDP.decodeMap.get(this.destinationPort).getConstructor().newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Failure instantiating class", e);
-            }
+            clazz = UDP.decodeMap.get(this.destinationPort);
         } else if (UDP.decodeMap.containsKey(this.sourcePort)) {
-            try {
-                this.payload = UDP.decodeMap.get(this.sourcePort).getConstructor().newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Failure instantiating class", e);
-            }
+            clazz = UDP.decodeMap.get(this.sourcePort);
         } else {
-            this.payload = new Data();
+            clazz = Data.class;
         }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        this.deserializePayload(clazz, data, bb.position(), bb.limit()-bb.position());
         return this;
     }
 }
@@ -0,0 +1,52 @@
+package net.floodlightcontroller.packet;
+
+/**
+ * View of a UDP header read and written in place.
+ *
+ * @see UDP
+ */
+public class UDPView extends PacketView {
+    protected static final int SOURCE_PORT = 0;
+    protected static final int DESTINATION_PORT = 2;
+    protected static final int LENGTH = 4;
+    protected static final int CHECKSUM = 6;
+
+    @Override
+    public int getHeaderLength() {
+        return 8;
+    }
+
+    public short getSourcePort() {
+        return getShort(SOURCE_PORT);
+    }
+
+    public UDPView setSourcePort(short port) {
+        putShort(SOURCE_PORT, port);
+        return this;
+    }
+
+    public short getDestinationPort() {
+        return getShort(DESTINATION_PORT);
+    }
+
+    public UDPView setDestinationPort(short port) {
+        putShort(DESTINATION_PORT, port);
+        return this;
+    }
+
+    /**
+     * @return the length of the header and payload, as given in the header
+     */
+    public short getDatagramLength() {
+        return getShort(LENGTH);
+    }
+
+    public short getChecksum() {
+        return getShort(CHECKSUM);
+    }
+
+    public UDPView setChecksum(short checksum) {
+        putShort(CHECKSUM, checksum);
+        return this;
+    }
+}